@@ -0,0 +1,111 @@
+package com.sshtools.slf4jtty;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jline.terminal.Size;
+import org.jline.terminal.Terminal;
+import org.jline.terminal.impl.DumbTerminal;
+
+import com.sshtools.slf4jtty.TtyLoggerConfiguration.Format;
+
+/**
+ * Support for benchmarks.
+ */
+final class Benchmarks {
+
+	/** Fields added to the default layout by the <code>detailed</code> layout */
+	private final static List<String> DETAILED = Arrays.asList("name", "thread-id", "markers", "mdc", "kv");
+
+	private Benchmarks() {
+	}
+
+	/**
+	 * Create a configuration using the defaults, with a fixed width and ANSI output that
+	 * is discarded, so the benchmark measures only the logger.
+	 *
+	 * @return configuration
+	 */
+	static TtyLoggerConfiguration configuration() {
+		return configuration(Format.ANSI, "default");
+	}
+
+	/**
+	 * Create a configuration using the defaults, with a fixed width and output that is
+	 * discarded. For {@link Format#AUTO}, an in-memory xterm is used as the terminal. As
+	 * the format cannot be changed to JSON once built, a configuration for JSON is left
+	 * as ANSI, and {@link #logger(String, Format, TtyLoggerConfiguration)} creates a
+	 * {@link JsonLogger} instead.
+	 *
+	 * @param format format
+	 * @param layout <code>default</code> for the default layout, or <code>detailed</code>
+	 *               to add the logger name, thread ID, markers, MDC and key values
+	 * @return configuration
+	 */
+	static TtyLoggerConfiguration configuration(Format format, String layout) {
+		var set = new TtyConfigurationSet();
+		set.terminalFactory(Benchmarks::terminal);
+		var cfg = set.build();
+		cfg.update(bldr -> {
+			bldr.format = format == Format.JSON ? Format.ANSI : format;
+			bldr.width = 132;
+			bldr.outputChoice = new OutputChoice(new PrintStream(OutputStream.nullOutputStream()));
+			if (layout.equals("detailed")) {
+				bldr.layout.addAll(DETAILED);
+			}
+		});
+		return cfg;
+	}
+
+	/**
+	 * Create a logger for a format.
+	 *
+	 * @param name name
+	 * @param format format
+	 * @param cfg configuration
+	 * @return logger
+	 */
+	static AbstractLogger logger(String name, Format format, TtyLoggerConfiguration cfg) {
+		return format == Format.JSON ? new JsonLogger(name, cfg) : new TtyLogger(name, cfg);
+	}
+
+	/**
+	 * Create an exception with a stack of at least the given depth, and a cause.
+	 *
+	 * @param depth depth
+	 * @return exception
+	 */
+	static Exception exception(int depth) {
+		try {
+			recurse(depth);
+			throw new IllegalStateException();
+		} catch (Exception e) {
+			return e;
+		}
+	}
+
+	private static void recurse(int depth) throws IOException {
+		if (depth == 0) {
+			throw new IOException("Connection reset", new IllegalArgumentException("Bad packet"));
+		}
+		recurse(depth - 1);
+	}
+
+	private static Terminal terminal() {
+		try {
+			/* Not a pseudo terminal, whose output would be pumped by another thread */
+			var terminal = new DumbTerminal("benchmark", "xterm-256color", InputStream.nullInputStream(),
+					OutputStream.nullOutputStream(), StandardCharsets.UTF_8);
+			terminal.setSize(new Size(132, 50));
+			return terminal;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
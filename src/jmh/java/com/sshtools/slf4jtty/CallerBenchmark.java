@@ -0,0 +1,70 @@
+package com.sshtools.slf4jtty;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the overhead of the <code>caller-*</code> fields, compared with the same
+ * event without them, with other fields in their place, and with the cost of just
+ * capturing the stack in a {@link Throwable}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CallerBenchmark {
+
+	private TtyLogger plain;
+	private TtyLogger otherFields;
+	private TtyLogger located;
+	private String user = "joe";
+
+	@Setup
+	public void setup() {
+		plain = new TtyLogger("com.acme.Benchmark", Benchmarks.configuration());
+		var other = Benchmarks.configuration();
+		other.update(bldr -> bldr.layout.addAll(Arrays.asList("thread-id", "name", "markers")));
+		otherFields = new TtyLogger("com.acme.Benchmark", other);
+		var cfg = Benchmarks.configuration();
+		cfg.update(bldr -> bldr.layout.addAll(Arrays.asList("caller-class", "caller-method", "caller-line")));
+		located = new TtyLogger("com.acme.Benchmark", cfg);
+	}
+
+	@Benchmark
+	public void withoutCaller() {
+		plain.info("User {} connected", user);
+	}
+
+	/**
+	 * The same number of extra fields as {@link #withCaller()}, so the difference
+	 * between them is the cost of finding the caller rather than of rendering.
+	 */
+	@Benchmark
+	public void withOtherFields() {
+		otherFields.info("User {} connected", user);
+	}
+
+	@Benchmark
+	public void withCaller() {
+		located.info("User {} connected", user);
+	}
+
+	@Benchmark
+	public void throwableLookup(Blackhole bh) {
+		bh.consume(new Throwable().getStackTrace()[0]);
+	}
+}
@@ -0,0 +1,61 @@
+package com.sshtools.slf4jtty;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the fluent API with the classic logger methods, for the same event. Run
+ * with <code>-prof gc</code> to compare allocation rates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FluentApiBenchmark {
+
+	private TtyLogger logger;
+	private String user = "joe";
+	private int port = 22;
+
+	@Setup
+	public void setup() {
+		logger = new TtyLogger("com.acme.Benchmark", Benchmarks.configuration());
+	}
+
+	@Benchmark
+	public void classic() {
+		logger.info("User {} connected on port {}", user, port);
+	}
+
+	@Benchmark
+	public void fluent() {
+		logger.atInfo().setMessage("User {} connected on port {}").addArgument(user).addArgument(port).log();
+	}
+
+	@Benchmark
+	public void fluentKeyValues() {
+		logger.atInfo().addKeyValue("user", user).addKeyValue("port", port).log("User connected");
+	}
+
+	@Benchmark
+	public void classicDisabled() {
+		logger.debug("User {} connected on port {}", user, port);
+	}
+
+	@Benchmark
+	public void fluentDisabled() {
+		logger.atDebug().setMessage("User {} connected on port {}").addArgument(user).addArgument(port).log();
+	}
+}
@@ -0,0 +1,63 @@
+package com.sshtools.slf4jtty;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures {@link MessageFormatter#arrayFormat(String, String, Object[])} with and
+ * without a parameter style, for common argument types.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageFormatterBenchmark {
+
+	private final static String STYLE = "@{bold ${parameter}}";
+
+	private Object[] strings = { "joe", "example.com" };
+	private Object[] mixed = { "joe", 22, 1.5d, Boolean.TRUE };
+	private Object[] array = { new int[] { 1, 2, 3, 4, 5, 6, 7, 8 } };
+
+	@Benchmark
+	public void noArguments(Blackhole bh) {
+		bh.consume(MessageFormatter.arrayFormat(null, "Server started", null));
+	}
+
+	@Benchmark
+	public void strings(Blackhole bh) {
+		bh.consume(MessageFormatter.arrayFormat(null, "User {} connected from {}", strings));
+	}
+
+	@Benchmark
+	public void stringsStyled(Blackhole bh) {
+		bh.consume(MessageFormatter.arrayFormat(STYLE, "User {} connected from {}", strings));
+	}
+
+	@Benchmark
+	public void mixed(Blackhole bh) {
+		bh.consume(MessageFormatter.arrayFormat(null, "User {} port {} load {} secure {}", mixed));
+	}
+
+	@Benchmark
+	public void mixedStyled(Blackhole bh) {
+		bh.consume(MessageFormatter.arrayFormat(STYLE, "User {} port {} load {} secure {}", mixed));
+	}
+
+	@Benchmark
+	public void primitiveArray(Blackhole bh) {
+		bh.consume(MessageFormatter.arrayFormat(STYLE, "Values {}", array));
+	}
+}
@@ -0,0 +1,81 @@
+package com.sshtools.slf4jtty;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.MDC;
+
+import com.sshtools.slf4jtty.TtyLoggerConfiguration.Format;
+
+/**
+ * Measures logging an event end to end, from the logger method to the bytes written
+ * to a discarding output, for each format and for the default and a more detailed
+ * layout. Run with <code>-prof gc</code> for the allocation rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PipelineBenchmark {
+
+	@Param({ "AUTO", "ANSI", "PLAIN", "JSON" })
+	public Format format;
+
+	@Param({ "default", "detailed" })
+	public String layout;
+
+	private AbstractLogger logger;
+	private Exception exception;
+	private String user = "joe";
+	private int port = 22;
+
+	@Setup
+	public void setup() {
+		logger = Benchmarks.logger("com.acme.Benchmark", format, Benchmarks.configuration(format, layout));
+		exception = Benchmarks.exception(20);
+		MDC.put("session", "a1b2c3");
+	}
+
+	@TearDown
+	public void tearDown() {
+		MDC.clear();
+	}
+
+	@Benchmark
+	public void simple() {
+		logger.info("Server started");
+	}
+
+	@Benchmark
+	public void parameters() {
+		logger.info("User {} connected on port {}", user, port);
+	}
+
+	@Benchmark
+	public void keyValues() {
+		logger.atInfo().addKeyValue("user", user).addKeyValue("port", port).log("User connected");
+	}
+
+	@Benchmark
+	public void throwable() {
+		logger.warn("Connection from {} failed", user, exception);
+	}
+
+	@Benchmark
+	public void disabled() {
+		logger.debug("User {} connected on port {}", user, port);
+	}
+}
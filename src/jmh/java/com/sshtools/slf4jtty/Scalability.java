@@ -0,0 +1,359 @@
+package com.sshtools.slf4jtty;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jline.terminal.Size;
+import org.jline.terminal.impl.DumbTerminal;
+
+import com.sshtools.slf4jtty.OutputChoice.OutputChoiceType;
+import com.sshtools.slf4jtty.TtyLoggerConfiguration.Format;
+import com.sshtools.slf4jtty.TtyLoggerConfiguration.Overload;
+
+/**
+ * A harness that measures how logging scales with the number of threads, which
+ * microbenchmarks cannot show. For each output, kind of thread and number of threads,
+ * loggers from a {@link TtyLoggerFactory} are driven as fast as possible, and the
+ * events per second and percentiles of the latency of each call are reported.
+ * <p>
+ * Every line written is checked to contain exactly one complete event, and the events
+ * from each thread to be in order, so any interleaving of output is reported.
+ * <ul>
+ * <li><code>SYS_ERR</code> writes to {@link System#err}, which is replaced with a
+ * stream that checks and then discards the output.</li>
+ * <li><code>FILE</code> writes to a temporary file, which is checked afterwards.</li>
+ * <li><code>TERMINAL</code> writes to an in-memory xterm, whose output is checked and
+ * then discarded. This is a {@link DumbTerminal}, which writes synchronously, rather than
+ * a pseudo terminal whose output is pumped by another thread.</li>
+ * </ul>
+ * Options are given as <code>name=value</code> arguments.
+ * <ul>
+ * <li><code>outputs</code>, a comma separated list of the above, defaults to all.</li>
+ * <li><code>kinds</code>, <code>platform</code> and/or <code>virtual</code>, defaults
+ * to both. Virtual threads are skipped if the runtime does not support them.</li>
+ * <li><code>threads</code>, a comma separated list of thread counts, defaults to powers
+ * of two up to twice the number of processors.</li>
+ * <li><code>format</code>, defaults to <code>AUTO</code>, which styles for the in-memory
+ * terminal.</li>
+ * <li><code>warmup</code> and <code>duration</code>, seconds for each run, defaulting to
+ * 1 and 3.</li>
+ * <li><code>csv</code>, a file to append the results to, to compare releases.</li>
+ * </ul>
+ */
+public class Scalability {
+
+	private final static OutputChoiceType[] OUTPUTS = { OutputChoiceType.SYS_ERR, OutputChoiceType.FILE,
+			OutputChoiceType.TERMINAL };
+
+	private record Result(OutputChoiceType output, String kind, int threads, double eventsPerSecond,
+			LatencyHistogram latency, long lines, long events, String error) {
+	}
+
+	public static void main(String[] args) throws Exception {
+		var options = new LinkedHashMap<String, String>();
+		for (var arg : args) {
+			for (var opt : arg.trim().split("\\s+")) {
+				if (!opt.isEmpty()) {
+					var idx = opt.indexOf('=');
+					if (idx == -1) {
+						throw new IllegalArgumentException("Options must be in the form name=value, not '" + opt + "'.");
+					}
+					options.put(opt.substring(0, idx), opt.substring(idx + 1));
+				}
+			}
+		}
+
+		var outputs = options.containsKey("outputs")
+				? Arrays.stream(options.get("outputs").split(",")).map(OutputChoiceType::valueOf).toArray(OutputChoiceType[]::new)
+				: OUTPUTS;
+		var kinds = options.getOrDefault("kinds", "platform,virtual").split(",");
+		var threads = options.containsKey("threads")
+				? Arrays.stream(options.get("threads").split(",")).mapToInt(Integer::parseInt).toArray()
+				: defaultThreads();
+		var format = Format.valueOf(options.getOrDefault("format", "AUTO"));
+		var warmup = (long) (Double.parseDouble(options.getOrDefault("warmup", "1")) * 1000);
+		var duration = (long) (Double.parseDouble(options.getOrDefault("duration", "3")) * 1000);
+		var csv = options.get("csv");
+
+		var factories = new LinkedHashMap<String, ThreadFactory>();
+		for (var kind : kinds) {
+			switch (kind) {
+			case "platform":
+				factories.put(kind, Thread::new);
+				break;
+			case "virtual":
+				var factory = virtualThreads();
+				if (factory == null) {
+					System.out.println("Virtual threads are not supported by this runtime, skipping.");
+				} else {
+					factories.put(kind, factory);
+				}
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown kind of thread '" + kind + "'.");
+			}
+		}
+
+		System.out.printf("%-9s %-9s %7s %14s %10s %10s %10s %10s  %s%n", "Output", "Threads", "Count", "Events/s",
+				"p50 ns", "p99 ns", "p99.9 ns", "max ns", "Lines");
+		var results = new ArrayList<Result>();
+		for (var output : outputs) {
+			for (var en : factories.entrySet()) {
+				for (var count : threads) {
+					var result = run(output, en.getKey(), en.getValue(), count, format, warmup, duration);
+					results.add(result);
+					System.out.printf("%-9s %-9s %7d %,14.0f %10d %10d %10d %10d  %s%n", output, en.getKey(), count,
+							result.eventsPerSecond(), result.latency().percentile(50), result.latency().percentile(99),
+							result.latency().percentile(99.9), result.latency().max(),
+							result.error() == null ? "OK" : result.error());
+				}
+			}
+		}
+
+		if (csv != null) {
+			writeCsv(csv, format, results);
+		}
+		if (results.stream().anyMatch(r -> r.error() != null)) {
+			System.exit(1);
+		}
+	}
+
+	private static Result run(OutputChoiceType output, String kind, ThreadFactory factory, int threads, Format format,
+			long warmup, long duration) throws Exception {
+		var checker = new LineChecker(OutputStream.nullOutputStream(), threads);
+		var file = output == OutputChoiceType.FILE ? Files.createTempFile("slf4j-tty-scalability", ".log") : null;
+		var err = System.err;
+		if (output == OutputChoiceType.SYS_ERR) {
+			System.setErr(new PrintStream(checker));
+		}
+
+		var set = new TtyConfigurationSet();
+		set.terminalFactory(() -> {
+			try {
+				var terminal = new DumbTerminal("scalability", "xterm-256color", InputStream.nullInputStream(),
+						output == OutputChoiceType.TERMINAL ? checker : OutputStream.nullOutputStream(), StandardCharsets.UTF_8);
+				terminal.setSize(new Size(200, 50));
+				return terminal;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+		var cfg = set.build();
+		cfg.update(bldr -> {
+			bldr.format = format;
+			bldr.width = 200;
+			bldr.overload = Overload.BLOCK;
+			bldr.repeatWindow = 0;
+			bldr.outputType = output;
+			bldr.logFile = file == null ? "" : file.toString();
+			bldr.outputChoice = null;
+		});
+
+		try {
+			var loggerFactory = new TtyLoggerFactory(cfg);
+			var histograms = new LatencyHistogram[threads];
+			var measured = new long[threads];
+			var sequences = new long[threads];
+			/* 0 is warming up, 1 is measuring and 2 is stopped */
+			var phase = new AtomicInteger();
+			var started = new CountDownLatch(threads);
+			var workers = new Thread[threads];
+			for (int i = 0; i < threads; i++) {
+				var index = i;
+				var logger = loggerFactory.getLogger("com.acme.scale.Worker" + (i % 4));
+				var histogram = histograms[i] = new LatencyHistogram();
+				workers[i] = factory.newThread(() -> {
+					started.countDown();
+					long seq = 0;
+					long events = 0;
+					int current;
+					while ((current = phase.get()) < 2) {
+						var start = System.nanoTime();
+						logger.info("Event <<{}:{}>> from {}", index, ++seq, "worker");
+						if (current == 1) {
+							histogram.record(System.nanoTime() - start);
+							events++;
+						}
+					}
+					sequences[index] = seq;
+					measured[index] = events;
+				});
+				workers[i].start();
+			}
+			started.await();
+			Thread.sleep(warmup);
+			phase.set(1);
+			var start = System.nanoTime();
+			Thread.sleep(duration);
+			phase.set(2);
+			var elapsed = System.nanoTime() - start;
+			for (var worker : workers) {
+				worker.join();
+			}
+
+			var latency = new LatencyHistogram();
+			var events = 0L;
+			var total = 0L;
+			for (int i = 0; i < threads; i++) {
+				latency.add(histograms[i]);
+				events += measured[i];
+				total += sequences[i];
+			}
+
+			cfg.compiled.outputChoice.getTargetPrintStream().flush();
+			if (file != null) {
+				/* Swap output, so the file is closed */
+				cfg.update(bldr -> bldr.outputChoice = new OutputChoice(new PrintStream(OutputStream.nullOutputStream())));
+				try (var in = Files.newInputStream(file)) {
+					in.transferTo(checker);
+				}
+			}
+			var error = checker.error();
+			if (error == null && checker.lines() != total) {
+				error = "Expected " + total + " lines, got " + checker.lines();
+			}
+			return new Result(output, kind, threads, events / (elapsed / 1e9), latency, checker.lines(), total, error);
+		} finally {
+			System.setErr(err);
+			if (file != null) {
+				Files.deleteIfExists(file);
+			}
+		}
+	}
+
+	private static int[] defaultThreads() {
+		var max = Runtime.getRuntime().availableProcessors() * 2;
+		var counts = new ArrayList<Integer>();
+		for (int i = 1; i < max; i *= 2) {
+			counts.add(i);
+		}
+		counts.add(max);
+		return counts.stream().mapToInt(Integer::intValue).toArray();
+	}
+
+	private static ThreadFactory virtualThreads() {
+		try {
+			var builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	private static void writeCsv(String path, Format format, List<Result> results) throws IOException {
+		var file = new File(path);
+		var header = !file.exists();
+		try (var out = new PrintStream(new FileOutputStream(file, true))) {
+			if (header) {
+				out.println("output,format,kind,threads,events_per_second,p50_ns,p99_ns,p999_ns,max_ns,ok");
+			}
+			for (var r : results) {
+				out.printf("%s,%s,%s,%d,%.0f,%d,%d,%d,%d,%s%n", r.output(), format, r.kind(), r.threads(),
+						r.eventsPerSecond(), r.latency().percentile(50), r.latency().percentile(99),
+						r.latency().percentile(99.9), r.latency().max(), r.error() == null);
+			}
+		}
+	}
+
+	/**
+	 * Checks that each line of output contains exactly one event, and that the events
+	 * from each thread are in order, ignoring any ANSI escape sequences.
+	 */
+	private final static class LineChecker extends FilterOutputStream {
+
+		private final long[] last;
+		private final byte[] line = new byte[4096];
+		private int length;
+		private long lines;
+		private String error;
+
+		LineChecker(OutputStream out, int threads) {
+			super(out);
+			last = new long[threads];
+		}
+
+		@Override
+		public synchronized void write(int b) throws IOException {
+			out.write(b);
+			accept((byte) b);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			for (int i = off; i < off + len; i++) {
+				accept(b[i]);
+			}
+		}
+
+		synchronized long lines() {
+			return lines;
+		}
+
+		synchronized String error() {
+			return error;
+		}
+
+		private void accept(byte b) {
+			if (b == '\n') {
+				check();
+				length = 0;
+			} else if (b != '\r' && length < line.length) {
+				line[length++] = b;
+			}
+		}
+
+		private void check() {
+			lines++;
+			if (error != null) {
+				return;
+			}
+			/* Strip escape sequences */
+			var clean = new StringBuilder(length);
+			for (int i = 0; i < length; i++) {
+				if (line[i] == 0x1b && i + 1 < length && line[i + 1] == '[') {
+					i += 2;
+					while (i < length && (line[i] < 0x40 || line[i] > 0x7e)) {
+						i++;
+					}
+				} else {
+					clean.append((char) (line[i] & 0xff));
+				}
+			}
+			var text = clean.toString();
+			var start = text.indexOf("<<");
+			var end = text.indexOf(">>");
+			if (start == -1 || end < start || text.indexOf("<<", start + 2) != -1 || text.indexOf(">>", end + 2) != -1) {
+				error = "Interleaved line " + lines + ": " + text.trim();
+				return;
+			}
+			var event = text.substring(start + 2, end).split(":");
+			try {
+				var thread = Integer.parseInt(event[0]);
+				var seq = Long.parseLong(event[1]);
+				if (seq != last[thread] + 1) {
+					error = "Out of order line " + lines + ": " + text.trim();
+				}
+				last[thread] = seq;
+			} catch (RuntimeException e) {
+				error = "Corrupt line " + lines + ": " + text.trim();
+			}
+		}
+	}
+
+}
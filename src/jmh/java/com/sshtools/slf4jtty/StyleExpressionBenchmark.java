@@ -0,0 +1,62 @@
+package com.sshtools.slf4jtty;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jline.utils.AttributedStringBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures {@link RecursiveStyleExpression#evaluate(AttributedStringBuilder, String)}
+ * for the kind of expressions the default styles produce.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class StyleExpressionBenchmark {
+
+	private final RecursiveStyleExpression expression = new RecursiveStyleExpression();
+	private final AttributedStringBuilder buf = new AttributedStringBuilder();
+
+	@Benchmark
+	public void plain(Blackhole bh) {
+		bh.consume(evaluate("User joe connected on port 22"));
+	}
+
+	@Benchmark
+	public void flat(Blackhole bh) {
+		bh.consume(evaluate("@{fg:blue,bold com.acme.Benchmark}"));
+	}
+
+	@Benchmark
+	public void nested(Blackhole bh) {
+		bh.consume(evaluate("@{fg:blue User @{bold joe} connected on port @{bold 22}}"));
+	}
+
+	@Benchmark
+	public void truncated(Blackhole bh) {
+		expression.setMaxLength(20);
+		try {
+			bh.consume(evaluate("@{fg:blue User @{bold joe} connected on port @{bold 22}}"));
+		} finally {
+			expression.setMaxLength(0);
+		}
+	}
+
+	private int evaluate(String text) {
+		buf.setLength(0);
+		expression.evaluate(buf, text);
+		return buf.length();
+	}
+}
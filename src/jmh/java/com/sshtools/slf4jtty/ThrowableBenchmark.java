@@ -0,0 +1,53 @@
+package com.sshtools.slf4jtty;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sshtools.slf4jtty.TtyLoggerConfiguration.Format;
+
+/**
+ * Measures rendering an exception with a deep stack trace and a cause, as appended
+ * after the event's row by {@link TtyLogger#appendThrowable}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ThrowableBenchmark {
+
+	@Param({ "ANSI", "PLAIN" })
+	public Format format;
+
+	@Param({ "10", "100" })
+	public int depth;
+
+	private AbstractLogger logger;
+	private Exception exception;
+	private final StringBuilder buf = new StringBuilder();
+
+	@Setup
+	public void setup() {
+		logger = Benchmarks.logger("com.acme.Benchmark", format, Benchmarks.configuration(format, "default"));
+		exception = Benchmarks.exception(depth);
+	}
+
+	@Benchmark
+	public int append() {
+		buf.setLength(0);
+		TtyLogger.appendThrowable(logger, format, exception, buf);
+		return buf.length();
+	}
+}
@@ -0,0 +1,53 @@
+package com.sshtools.slf4jtty;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link WCWidth#mk_wcswidth(String)} for ASCII, CJK and emoji text of the
+ * length of a typical message.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class WCWidthBenchmark {
+
+	@Param({ "ASCII", "CJK", "EMOJI" })
+	public String text;
+
+	private String input;
+
+	@Setup
+	public void setup() {
+		switch (text) {
+		case "CJK":
+			input = "用户已连接到服务器，端口二十二，会话已建立。".repeat(4);
+			break;
+		case "EMOJI":
+			input = "ℹ️ INFO 🚀 Server started ✅ ⚠️ WARN ⛔ ERROR 🐞 DEBUG ".repeat(2);
+			break;
+		default:
+			input = "User joe connected from example.com on port 22, session established. ".repeat(2);
+			break;
+		}
+	}
+
+	@Benchmark
+	public int width() {
+		return WCWidth.mk_wcswidth(input);
+	}
+}
@@ -1,18 +1,22 @@
 package com.sshtools.slf4jtty;
 
-import java.io.PrintStream;
-import java.util.ArrayList;
-import java.util.Date;
+import java.util.Arrays;
 import java.util.List;
 
 import org.slf4j.Marker;
+import org.slf4j.event.KeyValuePair;
 import org.slf4j.event.Level;
 import org.slf4j.event.LoggingEvent;
 import org.slf4j.helpers.LegacyAbstractLogger;
 import org.slf4j.helpers.NormalizedParameters;
 import org.slf4j.spi.LocationAwareLogger;
+import org.slf4j.spi.LoggingEventAware;
+import org.slf4j.spi.LoggingEventBuilder;
 
-public abstract class AbstractLogger extends LegacyAbstractLogger {
+import com.sshtools.slf4jtty.TtyLoggerConfiguration.Format;
+import com.sshtools.slf4jtty.TtyLoggerConfiguration.Notice;
+
+public abstract class AbstractLogger extends LegacyAbstractLogger implements LoggingEventAware {
 
     private static final long serialVersionUID = -632788891211436180L;
 
@@ -29,14 +33,23 @@ public abstract class AbstractLogger extends LegacyAbstractLogger {
     // no printing method associated with it in o.s.Logger interface.
     protected static final int LOG_LEVEL_OFF = LOG_LEVEL_ERROR + 10;
 
-    /** The current log level */
-    private final int currentLogLevel;
+    /**
+     * The lowest level that is enabled, either to be output or to be kept in the
+     * {@link EventRing}, updated when configuration changes
+     */
+    private volatile int currentLogLevel;
+    /** The level that is output, published by the write to {@link #currentLogLevel} that follows it */
+    private int outputLevel;
     /** The short name of this simple log instance */
     protected transient String shortLogName = null;
 
-    private static ThreadLocal<Boolean> reentrant = new ThreadLocal<>();
-    
     protected final TtyLoggerConfiguration loggerConfiguration;
+
+    final RepeatFilter repeats;
+    /** Published by the write to {@link #currentLogLevel} that follows it */
+    private Throttle[] throttles;
+    /** Published in the same way as {@link #throttles}, {@code null} if not routed */
+    private Route route;
     
     /**
      * Package access allows only {@link TtyLoggerFactory} to instantiate
@@ -45,62 +58,70 @@ public abstract class AbstractLogger extends LegacyAbstractLogger {
     AbstractLogger(String name, TtyLoggerConfiguration loggerConfiguration) {
         this.name = name;
         this.loggerConfiguration = loggerConfiguration;
-
-        int levelString = recursivelyComputeLevel();
-        if (levelString != -1) {
-            this.currentLogLevel = levelString;
-        } else {
-            this.currentLogLevel = loggerConfiguration.defaultLogLevel;
-        }
+        this.repeats = new RepeatFilter(run -> loggerConfiguration.repeated(this, run));
+        loggerConfiguration.loggerTrie.register(this);
     }
 
-    int recursivelyComputeLevel() {
-        String tempName = name;
-        int levelString = -1;
-        int indexOfLastDot = tempName.length();
-        while ((levelString == -1) && (indexOfLastDot > -1)) {
-            tempName = tempName.substring(0, indexOfLastDot);
-            levelString = loggerConfiguration.loggerLevels.getOrDefault(tempName, -1);
-            indexOfLastDot = String.valueOf(tempName).lastIndexOf(".");
-        }
-        return levelString;
+    /**
+     * Set the current level. Called when the level for any prefix of this
+     * logger's name changes, or the level kept in the ring changes. The lower of the
+     * two is enabled, so checking a level remains a single field read.
+     * 
+     * @param level level that is output
+     * @param captureLevel level kept in the ring, or {@link #LOG_LEVEL_OFF} if there is no ring
+     */
+    final void level(int level, int captureLevel) {
+        this.outputLevel = level;
+        this.currentLogLevel = Math.min(level, captureLevel);
     }
 
     /**
-     * To avoid intermingling of log messages and associated stack traces, the two
-     * operations are done in a synchronized block.
+     * Set the throttles. Called when the throttles for any prefix of this logger's
+     * name change. The level is written again afterwards, so any thread that has
+     * checked the level (as every event does before it reaches the throttles) also
+     * sees the new throttles, without another volatile read per event.
      * 
-     * @param buf
-     * @param t
+     * @param throttles throttles or {@code null}
      */
-    final void write(StringBuilder buf, Throwable t) {
-        PrintStream targetStream = loggerConfiguration.outputChoice.getTargetPrintStream();
-
-        synchronized (loggerConfiguration) {
-            targetStream.println(buf.toString());
-            writeThrowable(t, targetStream);
-            targetStream.flush();
-        } 
-
+    final void throttles(Throttle[] throttles) {
+        this.throttles = throttles;
+        this.currentLogLevel = currentLogLevel;
     }
 
-    protected abstract void writeThrowable(Throwable t, PrintStream targetStream);
-
-    protected final String getFormattedDate() {
-        Date now = new Date();
-        String dateText;
-        synchronized (loggerConfiguration.dateFormatter) {
-            dateText = loggerConfiguration.dateFormatter.format(now);
-        }
-        return dateText;
+    /**
+     * Set the names of the sinks this logger writes to. Called when the routes for any
+     * prefix of this logger's name change, or the sinks are reconfigured. The names are
+     * resolved now, and published in the same way as {@link #throttles(Throttle[])}.
+     * 
+     * @param sinks sink names, or {@code null} for the primary output and all sinks that are not routed
+     */
+    final void route(String[] sinks) {
+        this.route = sinks == null ? null : Route.of(sinks, loggerConfiguration.compiled);
+        this.currentLogLevel = currentLogLevel;
     }
 
+    /**
+     * Get the format this logger renders events in for the primary output.
+     * 
+     * @param cfg configuration
+     * @return format
+     */
+    abstract Format format(CompiledConfiguration cfg);
+
     protected final String computeShortName() {
         return name.substring(name.lastIndexOf(".") + 1);
     }
 
+    final String shortName() {
+        if (shortLogName == null) {
+            shortLogName = computeShortName();
+        }
+        return shortLogName;
+    }
+
     /**
-     * Is the given log level currently enabled?
+     * Is the given log level currently enabled? A level below the logger's level is
+     * enabled if events of that level are kept in the {@link EventRing}.
      *
      * @param logLevel is this level enabled?
      * @return whether the logger is enabled for the given level
@@ -108,7 +129,47 @@ public abstract class AbstractLogger extends LegacyAbstractLogger {
     protected final boolean isLevelEnabled(int logLevel) {
         // log level are numerically ordered so can use simple numeric
         // comparison
-        return (logLevel >= currentLogLevel);
+        return logLevel >= currentLogLevel;
+    }
+
+    /**
+     * Is an event that has passed the level check below the level that is output, so
+     * only reached the logger to be kept in the {@link EventRing}? A marker rule that
+     * matches overrides the logger's level.
+     */
+    private boolean isCaptureOnly(CompiledConfiguration cfg, int levelInt, Marker marker, List<Marker> markers) {
+    	if(levelInt >= outputLevel) {
+    		return false;
+    	}
+    	if(cfg.markerRules != null) {
+    		var threshold = marker != null ? cfg.markerRules.threshold(marker) 
+    				: markers != null && !markers.isEmpty() ? cfg.markerRules.threshold(markers) : MarkerRules.NO_RULE;
+    		if(threshold != MarkerRules.NO_RULE) {
+    			return levelInt < threshold;
+    		}
+    	}
+    	return true;
+    }
+
+    /**
+     * Is the given log level currently enabled for an event with a marker? A marker
+     * rule that matches overrides the logger's level.
+     *
+     * @param logLevel is this level enabled?
+     * @param marker marker, may be {@code null}
+     * @return whether the logger is enabled for the given level and marker
+     */
+    protected final boolean isLevelEnabled(int logLevel, Marker marker) {
+        if (marker != null) {
+            var rules = loggerConfiguration.compiled.markerRules;
+            if (rules != null) {
+                var threshold = rules.threshold(marker);
+                if (threshold != MarkerRules.NO_RULE) {
+                    return logLevel >= threshold;
+                }
+            }
+        }
+        return isLevelEnabled(logLevel);
     }
 
     /** Are {@code trace} messages currently enabled? */
@@ -136,6 +197,36 @@ public abstract class AbstractLogger extends LegacyAbstractLogger {
         return isLevelEnabled(LOG_LEVEL_ERROR);
     }
 
+    /** Are {@code trace} messages with this marker currently enabled? */
+    @Override
+    public final boolean isTraceEnabled(Marker marker) {
+        return isLevelEnabled(LOG_LEVEL_TRACE, marker);
+    }
+
+    /** Are {@code debug} messages with this marker currently enabled? */
+    @Override
+    public final boolean isDebugEnabled(Marker marker) {
+        return isLevelEnabled(LOG_LEVEL_DEBUG, marker);
+    }
+
+    /** Are {@code info} messages with this marker currently enabled? */
+    @Override
+    public final boolean isInfoEnabled(Marker marker) {
+        return isLevelEnabled(LOG_LEVEL_INFO, marker);
+    }
+
+    /** Are {@code warn} messages with this marker currently enabled? */
+    @Override
+    public final boolean isWarnEnabled(Marker marker) {
+        return isLevelEnabled(LOG_LEVEL_WARN, marker);
+    }
+
+    /** Are {@code error} messages with this marker currently enabled? */
+    @Override
+    public final boolean isErrorEnabled(Marker marker) {
+        return isLevelEnabled(LOG_LEVEL_ERROR, marker);
+    }
+
     /**
      * SimpleLogger's implementation of
      * {@link org.slf4j.helpers.AbstractLogger#handleNormalizedLoggingCall(Level, Marker, String, Object[], Throwable) AbstractLogger#handleNormalizedLoggingCall}
@@ -149,43 +240,380 @@ public abstract class AbstractLogger extends LegacyAbstractLogger {
      */
     @Override
     protected final void handleNormalizedLoggingCall(Level level, Marker marker, String messagePattern, Object[] arguments, Throwable throwable) {
+        /* Marker rules have already been applied by isXXXXEnabled(Marker) */
+        dispatch(loggerConfiguration.compiled, level, marker, null, messagePattern, arguments, throwable, null);
+    }
+
+    @Override
+    public final void log(LoggingEvent event) {
+        int levelInt = event.getLevel().toInt();
+        var cfg = loggerConfiguration.compiled;
+
+        if (!isLevelEnabled(cfg, levelInt, event.getMarkers())) {
+            return;
+        }
+
+        NormalizedParameters np = NormalizedParameters.normalize(event);
+
+        dispatch(cfg, event.getLevel(), null, event.getMarkers(), np.getMessage(), np.getArguments(), event.getThrowable(), event.getKeyValuePairs());
+    }
+
+    private void dispatch(CompiledConfiguration cfg, Level level, Marker marker, List<Marker> markers, String messagePattern, Object[] arguments, Throwable throwable, List<KeyValuePair> keyValuePairs) {
+    	if(isCaptureOnly(cfg, level.toInt(), marker, markers)) {
+    		if(cfg.ring != null) {
+    			cfg.ring.capture(this, level, marker, markers, messagePattern, arguments, throwable, keyValuePairs);
+    		}
+    		return;
+    	}
+    	
+    	var ended = filter(cfg, level.toInt(), messagePattern, arguments, throwable);
+    	if(ended == RepeatFilter.SUPPRESSED) {
+    		return;
+    	}
+    	
     	/* JLine uses SLF4J for logging, which we may trigger by using it to style our text! Avoid
     	 * re-entering.
     	 */
-    	Boolean reentered = reentrant.get();
-    	if(Boolean.TRUE.equals(reentered)) {
+    	var ctx = LoggingContext.enter();
+    	if(ctx == null) {
+    		return;
+    	}
+    	
+    	try {
+    		emitPending(ctx, cfg, ended);
+    		if(level == Level.ERROR) {
+    			emitRing(ctx, cfg);
+    		}
+    		var event = ctx.event.set(level, markers, messagePattern, arguments, throwable).keyValuePairs(keyValuePairs);
+    		if(marker != null) {
+    			event.marker(marker);
+    		}
+    		accepted(cfg, event);
+    		innerHandleNormalizedLoggingCall(ctx, cfg, event);
+    	}
+    	finally {
+    		ctx.exit();
+    	}
+    }
+
+    /**
+     * Dispatch an event that has been built by an {@link EventBuilder}.
+     * 
+     * @param event event
+     */
+    final void dispatch(Event event) {
+    	var cfg = loggerConfiguration.compiled;
+    	
+    	/* The level has been checked when the builder was created, but not the markers */
+    	if(!isLevelEnabled(cfg, event.level.toInt(), event.markers)) {
+    		return;
+    	}
+    	
+    	if(isCaptureOnly(cfg, event.level.toInt(), null, event.markers)) {
+    		if(cfg.ring != null) {
+    			cfg.ring.capture(this, event);
+    		}
+    		return;
+    	}
+    	
+    	var ended = filter(cfg, event.level.toInt(), event.pattern, event.arguments, event.throwable);
+    	if(ended == RepeatFilter.SUPPRESSED) {
+    		return;
+    	}
+    	
+    	var ctx = LoggingContext.enter();
+    	if(ctx == null) {
     		return;
     	}
     	
     	try {
-    		reentrant.set(true);
-    		
-	        List<Marker> markers = null;
-	
-	        if (marker != null) {
-	            markers = new ArrayList<>();
-	            markers.add(marker);
-	        }
-	
-	        innerHandleNormalizedLoggingCall(level, markers, messagePattern, arguments, throwable);
+    		emitPending(ctx, cfg, ended);
+    		if(event.level == Level.ERROR) {
+    			emitRing(ctx, cfg);
+    		}
+    		accepted(cfg, event);
+    		innerHandleNormalizedLoggingCall(ctx, cfg, event);
     	}
     	finally {
-    		reentrant.remove();
+    		ctx.exit();
+    	}
+    }
+    
+    /**
+     * Count an event that has passed all filters and will be output, and record it if
+     * recording.
+     */
+    private void accepted(CompiledConfiguration cfg, Event event) {
+    	loggerConfiguration.metrics.event(event.level);
+    	if(cfg.recorder != null) {
+    		cfg.recorder.record(this, event);
+    	}
+    	if(cfg.jfrLogEvents) {
+    		JfrEvents.log(name, event);
     	}
     }
+    
+    private boolean isLevelEnabled(CompiledConfiguration cfg, int levelInt, List<Marker> markers) {
+        if (markers != null && !markers.isEmpty() && cfg.markerRules != null) {
+            var threshold = cfg.markerRules.threshold(markers);
+            if (threshold != MarkerRules.NO_RULE) {
+                return levelInt >= threshold;
+            }
+        }
+        return isLevelEnabled(levelInt);
+    }
+    
+    /**
+     * Apply throttles and repeat suppression to an event. Load shedding is applied by each
+     * output as it is written to.
+     * 
+     * @return {@link RepeatFilter#SUPPRESSED} if the event should be dropped, otherwise a run of repeats to report first, or {@code null}
+     */
+    private RepeatFilter.Run filter(CompiledConfiguration cfg, int levelInt, String messagePattern, Object[] arguments, Throwable throwable) {
+        if(throttles != null) {
+        	for(var throttle : throttles) {
+        		if(!throttle.allow(messagePattern)) {
+        			loggerConfiguration.metrics.filtered();
+        			return RepeatFilter.SUPPRESSED;
+        		}
+        	}
+        }
+        
+    	if(cfg.repeatWindow > 0) {
+    		var run = repeats.filter(levelInt, messagePattern, arguments, throwable, cfg.repeatWindow);
+    		if(run == RepeatFilter.SUPPRESSED) {
+    			loggerConfiguration.metrics.filtered();
+    		}
+    		return run;
+    	}
+    	return null;
+    }
+    
+    /**
+     * Output any queued notices, and the run of repeats that an event has ended, before
+     * the event itself. These use the context's {@link Event}, so must be output before
+     * it is filled in for the event.
+     */
+    private void emitPending(LoggingContext ctx, CompiledConfiguration cfg, RepeatFilter.Run ended) {
+		emitNotices(ctx, cfg);
+		if(ended != null) {
+			emitRepeats(ctx, cfg, ended);
+		}
+    }
 
-    protected abstract void innerHandleNormalizedLoggingCall(Level level, List<Marker> markers, String messagePattern, Object[] arguments, Throwable t);
+    /**
+     * Output any queued {@link Notice}s.
+     */
+    final void flushNotices() {
+    	var ctx = LoggingContext.enter();
+    	if(ctx != null) {
+	    	try {
+	    		emitNotices(ctx, loggerConfiguration.compiled);
+	    	}
+	    	finally {
+	    		ctx.exit();
+	    	}
+    	}
+    }
 
-    public final void log(LoggingEvent event) {
-        int levelInt = event.getLevel().toInt();
+    /**
+     * Output a summary of a run of repeated events that has ended.
+     *
+     * @param run run
+     */
+    final void reportRepeats(RepeatFilter.Run run) {
+    	var ctx = LoggingContext.enter();
+    	if(ctx != null) {
+	    	try {
+	    		emitRepeats(ctx, loggerConfiguration.compiled, run);
+	    	}
+	    	finally {
+	    		ctx.exit();
+	    	}
+    	}
+    }
 
-        if (!isLevelEnabled(levelInt)) {
-            return;
-        }
+    private void emitRepeats(LoggingContext ctx, CompiledConfiguration cfg, RepeatFilter.Run run) {
+		innerHandleNormalizedLoggingCall(ctx, cfg, ctx.event.set(Level.intToLevel(run.level), null, "Last message repeated {} times", new Object[] { run.count.get() }, null));
+		ctx.clear();
+    }
 
-        NormalizedParameters np = NormalizedParameters.normalize(event);
+    /**
+     * Output the events kept in the {@link EventRing}, if any.
+     */
+    final void outputRing() {
+    	var ctx = LoggingContext.enter();
+    	if(ctx != null) {
+	    	try {
+	    		emitRing(ctx, loggerConfiguration.compiled);
+	    	}
+	    	finally {
+	    		ctx.exit();
+	    	}
+    	}
+    }
+
+    private void emitRing(LoggingContext ctx, CompiledConfiguration cfg) {
+    	if(cfg.ring != null) {
+    		cfg.ring.output(ctx, cfg, loggerConfiguration.internalLogger());
+    	}
+    }
+
+    private void emitNotices(LoggingContext ctx, CompiledConfiguration cfg) {
+    	Notice notice;
+    	while((notice = loggerConfiguration.notices.poll()) != null) {
+    		loggerConfiguration.internalLogger().innerHandleNormalizedLoggingCall(ctx, cfg, ctx.event.set(notice.level(), null, notice.pattern(), notice.args(), null));
+    		ctx.clear();
+    	}
+    }
+
+    /**
+     * Get the route of this logger for a configuration. Routes are resolved again when the
+     * configuration is swapped, so only events logged while that is happening need to
+     * resolve it themselves.
+     */
+    private Route route(CompiledConfiguration cfg) {
+    	var route = this.route;
+    	if(route == null) {
+    		return cfg.route;
+    	}
+    	return route.cfg == cfg ? route : Route.of(route.names, cfg);
+    }
 
-        innerHandleNormalizedLoggingCall(event.getLevel(), event.getMarkers(), np.getMessage(), np.getArguments(), event.getThrowable());
+    /**
+     * Render an event and write it to the outputs this logger is routed to, which by
+     * default are the primary output and every sink that is not routed, if it meets their
+     * level. Each distinct rendering is done at most once, however many outputs share it,
+     * and the inputs to rendering are computed once by the {@link Event}.
+     */
+    protected final void innerHandleNormalizedLoggingCall(LoggingContext ctx, CompiledConfiguration cfg, Event event) {
+    	var format = format(cfg);
+    	var route = route(cfg);
+    	var sinks = route.sinks;
+    	if(sinks.length > (route.primary ? 0 : 1)) {
+    		event.share();
+    	}
+    	
+    	String text = null;
+    	var levelInt = event.level.toInt();
+    	if(route.primary && !shed(loggerConfiguration.writer, levelInt)) {
+    		if(format == Format.BINARY) {
+    			loggerConfiguration.writer.encode(this, event, cfg.outputChoice, cfg.jfr);
+    		}
+    		else {
+		    	text = render(ctx, cfg, event, format, cfg.width);
+		    	loggerConfiguration.writer.write(text, event.time(), cfg.outputChoice, cfg.jfr);
+    		}
+    	}
+    	
+    	if(sinks.length > 0) {
+    		var rendered = ctx.rendered(cfg.renderings);
+    		try {
+	    		for(var sink : sinks) {
+	    			if(levelInt < sink.level() || shed(sink.writer(), levelInt)) {
+	    				continue;
+	    			}
+	    			if(sink.format() == Format.BINARY) {
+	    				sink.writer().encode(this, event, sink.outputChoice(), cfg.jfr);
+	    				continue;
+	    			}
+	    			var sinkText = text != null && sink.renders(format, cfg.width) ? text : rendered[sink.rendering()];
+	    			if(sinkText == null) {
+	    				sinkText = rendered[sink.rendering()] = render(ctx, cfg, event, sink.format(), sink.width());
+	    			}
+	    			sink.writer().write(sinkText, event.time(), sink.outputChoice(), cfg.jfr);
+	    		}
+    		}
+    		finally {
+    			Arrays.fill(rendered, null);
+    		}
+    	}
+    }
+
+    /**
+     * Should an event be dropped at an output, because it cannot keep up? Each output
+     * sheds separately, so one slow output does not drop events for the others.
+     */
+    private boolean shed(CombiningWriter writer, int levelInt) {
+    	if(writer.overload().shed(levelInt)) {
+    		loggerConfiguration.metrics.dropped();
+    		return true;
+    	}
+    	return false;
+    }
+
+    /**
+     * To avoid intermingling of log messages and associated stack traces, the two
+     * are rendered as a single record, that each output's {@link CombiningWriter} writes
+     * in one go.
+     */
+    private String render(LoggingContext ctx, CompiledConfiguration cfg, Event event, Format format, int width) {
+    	var jfr = cfg.jfr ? JfrEvents.beginRender() : null;
+    	var started = System.nanoTime();
+    	var buf = ctx.buf;
+    	buf.setLength(0);
+    	if(format == Format.JSON) {
+    		JsonLogger.render(this, cfg, event, buf);
+    		buf.append(System.lineSeparator());
+    		JsonLogger.appendThrowable(this, event.throwable, buf);
+    	}
+    	else {
+    		TtyLogger.render(this, ctx, cfg, event, format, width, buf);
+    		buf.append(System.lineSeparator());
+    		TtyLogger.appendThrowable(this, format, event.throwable, buf);
+    	}
+    	var text = buf.toString();
+    	loggerConfiguration.metrics.rendered(System.nanoTime() - started);
+    	if(jfr != null) {
+    		JfrEvents.endRender(jfr, name, event.level, format, text.length());
+    	}
+    	return text;
+    }
+
+    /**
+     * Render an event that was logged earlier, such as one read from a {@link Format#BINARY}
+     * or {@link Format#JSON} output, as it would have been rendered when it was logged,
+     * with its original time, thread name, thread id and MDC.
+     * 
+     * @param cfg configuration
+     * @param recorded event
+     * @param date date as it was originally formatted, or {@code null} to format the event's time
+     * @param caller location that logged the event, or {@link Caller#UNKNOWN}
+     * @param format format, other than {@link Format#BINARY}
+     * @param width width
+     * @return rendered event
+     */
+    final String render(CompiledConfiguration cfg, RecordedEvent recorded, String date, Caller caller, Format format, int width) {
+    	var ctx = LoggingContext.enter();
+    	if(ctx == null) {
+    		throw new IllegalStateException("Cannot render a recorded event while logging.");
+    	}
+    	var mdc = TtyMDCAdapter.context();
+    	try {
+    		TtyMDCAdapter.set(recorded.mdc());
+    		var event = ctx.event.set(recorded.level(), recorded.markers(), recorded.pattern(), recorded.arguments(), recorded.throwable())
+    				.recorded(recorded.time(), date, recorded.thread(), recorded.threadId(), caller)
+    				.keyValuePairs(null);
+    		var keys = recorded.keys();
+    		var values = recorded.values();
+    		for(int i = 0 ; i < keys.length; i++) {
+    			event.addKeyValue(keys[i], values[i]);
+    		}
+    		return render(ctx, cfg, event, format, width);
+    	}
+    	finally {
+    		TtyMDCAdapter.set(mdc);
+    		ctx.exit();
+    	}
+    }
+
+    /**
+     * Supply a re-used {@link EventBuilder} for the fluent API, rather than the default
+     * builder and event that would otherwise be created for every event.
+     */
+    @Override
+    public final LoggingEventBuilder makeLoggingEventBuilder(Level level) {
+        return LoggingContext.builder().start(this, level);
     }
 
     @Override
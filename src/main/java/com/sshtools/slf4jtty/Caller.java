@@ -0,0 +1,86 @@
+package com.sshtools.slf4jtty;
+
+import java.lang.StackWalker.StackFrame;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.spi.LoggingEventBuilder;
+
+/**
+ * The location in the application that logged an event, used by the
+ * <code>caller-*</code> fields.
+ * <p>
+ * This is found with a {@link StackWalker} that stops at the first frame outside of
+ * the logging API, rather than by capturing the whole stack in a {@link Throwable}.
+ * The walk is only made for events that are rendered with a <code>caller-*</code>
+ * field, but then it is made for every one. The location of each call site, identified
+ * by its class, method, method descriptor and bytecode index, is memoised, so the file
+ * name and line number are only resolved, and the {@link Caller} only created, the
+ * first time it logs.
+ *
+ * @param className fully qualified class name
+ * @param methodName method name
+ * @param fileName source file name, or <code>?</code> if not known
+ * @param lineNumber line number, or a negative number if not known
+ * @param line line number as text, or <code>?</code> if not known
+ */
+record Caller(String className, String methodName, String fileName, int lineNumber, String line) {
+
+	final static Caller UNKNOWN = new Caller("?", "?", "?", -1, "?");
+
+	private final static StackWalker WALKER = StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE);
+
+	/** Whether a class is part of the logging API, either a logger or an event builder */
+	private final static ClassValue<Boolean> LOGGING = new ClassValue<>() {
+		@Override
+		protected Boolean computeValue(Class<?> type) {
+			return Logger.class.isAssignableFrom(type) || LoggingEventBuilder.class.isAssignableFrom(type);
+		}
+	};
+
+	private final static ClassValue<Map<Site, Caller>> SITES = new ClassValue<>() {
+		@Override
+		protected Map<Site, Caller> computeValue(Class<?> type) {
+			return new ConcurrentHashMap<>();
+		}
+	};
+
+	private record Site(String methodName, String descriptor, int bytecodeIndex) {
+	}
+
+	/**
+	 * Find the caller of the logging API from the current thread.
+	 *
+	 * @param boundary the fully qualified class name of a facade whose caller should
+	 *                 be found instead, or <code>null</code>
+	 * @return caller, or {@link #UNKNOWN}
+	 */
+	static Caller find(String boundary) {
+		Optional<StackFrame> frame;
+		if (boundary == null) {
+			frame = WALKER.walk(s -> s.dropWhile(f -> !isLogging(f)).dropWhile(Caller::isLogging).findFirst());
+		} else {
+			frame = WALKER.walk(s -> s.dropWhile(f -> !f.getClassName().equals(boundary))
+					.dropWhile(f -> f.getClassName().equals(boundary)).findFirst());
+			if (frame.isEmpty()) {
+				return find(null);
+			}
+		}
+		return frame.map(Caller::of).orElse(UNKNOWN);
+	}
+
+	private static boolean isLogging(StackFrame frame) {
+		return LOGGING.get(frame.getDeclaringClass());
+	}
+
+	private static Caller of(StackFrame frame) {
+		return SITES.get(frame.getDeclaringClass()).computeIfAbsent(new Site(frame.getMethodName(), frame.getDescriptor(), frame.getByteCodeIndex()), site -> {
+			var fileName = frame.getFileName();
+			var lineNumber = frame.getLineNumber();
+			return new Caller(frame.getClassName(), frame.getMethodName(), fileName == null ? "?" : fileName,
+					lineNumber, lineNumber < 0 ? "?" : String.valueOf(lineNumber));
+		});
+	}
+}
@@ -0,0 +1,305 @@
+package com.sshtools.slf4jtty;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.sshtools.slf4jtty.OutputChoice.OutputChoiceType;
+import com.sshtools.slf4jtty.TtyLoggerConfiguration.Format;
+
+/**
+ * Writes fully formatted log records to the target stream using <em>flat combining</em>.
+ * <p>
+ * Rather than every logging thread queueing on a single monitor to write its own record,
+ * each thread pushes its record onto a lock-free stack, then tries to take the output lock.
+ * Whichever thread wins the lock (the <em>combiner</em>) drains the stack and writes all
+ * pending records, in the order they were published, with a single write and flush. The
+ * threads whose records were written on their behalf are woken and return without ever
+ * taking the lock themselves.
+ * <p>
+ * Each record is a complete line along with any stack trace, so records are never
+ * interleaved, the same as when each write was individually synchronized. A call to
+ * {@link #write(String, long, OutputChoice, boolean)} does not return until its record has been written, so logging
+ * remains synchronous. A thread that is interrupted still waits for its record, and
+ * has its interrupt status restored afterwards.
+ * <p>
+ * The output to write to, and whether to emit JFR events, are passed with each record from
+ * the configuration the logger read for the event, rather than read again here. Records
+ * for an output that has since been replaced are written to its replacement.
+ * <p>
+ * Outputs in the {@link Format#BINARY} format are instead written by
+ * {@link #encode(AbstractLogger, Event, OutputChoice, boolean)}, which is cheap enough to
+ * do while holding the lock.
+ */
+final class CombiningWriter {
+
+	private final static int SPINS = 64;
+	private final static long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final static class Node {
+		private final String text;
+		private final long time;
+		private final OutputChoice output;
+		private final Thread thread;
+		private Node next;
+		private volatile boolean done;
+
+		private Node(String text, long time, OutputChoice output) {
+			this.text = text;
+			this.time = time;
+			this.output = output;
+			this.thread = Thread.currentThread();
+		}
+	}
+
+	private final AtomicReference<Node> pending = new AtomicReference<>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final OverloadPolicy overload;
+	private final LoggingMetrics.Output metrics;
+
+	/* Guarded by lock */
+	private StringBuilder batch = new StringBuilder(LoggingContext.INITIAL_BUFFER);
+	private EventEncoder encoder;
+	private PrintStream encoding;
+
+	CombiningWriter(OverloadPolicy overload, LoggingMetrics.Output metrics) {
+		this.overload = overload;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Get the policy that decides when events are dropped because this writer's output
+	 * cannot keep up.
+	 *
+	 * @return overload policy
+	 */
+	OverloadPolicy overload() {
+		return overload;
+	}
+
+	/**
+	 * Write a complete record (including line separator), returning once it has been
+	 * written and flushed, either by this thread or by another on its behalf.
+	 *
+	 * @param text record text
+	 * @param time time of the event
+	 * @param output output to write to
+	 * @param jfr emit JFR events
+	 */
+	void write(String text, long time, OutputChoice output, boolean jfr) {
+		var node = new Node(text, time, output);
+		Node head;
+		do {
+			head = pending.get();
+			node.next = head;
+		} while (!pending.compareAndSet(head, node));
+
+		var started = System.nanoTime();
+		var jfrWait = jfr ? JfrEvents.beginLockWait() : null;
+		var waited = -1L;
+		var spins = 0;
+		var interrupted = false;
+		while (!node.done) {
+			if (lock.tryLock()) {
+				try {
+					if (!node.done) {
+						waited = System.nanoTime() - started;
+						if (jfrWait != null) {
+							JfrEvents.endLockWait(jfrWait, metrics.name);
+							jfrWait = null;
+						}
+						combine(jfr);
+					}
+				} finally {
+					lock.unlock();
+				}
+				wakeNext();
+			} else if (spins < SPINS) {
+				spins++;
+				Thread.onSpinWait();
+			} else {
+				/* Parking returns at once while interrupted, so clear it until done */
+				if (Thread.interrupted()) {
+					interrupted = true;
+				}
+				LockSupport.parkNanos(this, PARK_NANOS);
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		/* Either until this thread took the lock, or until another wrote the record */
+		metrics.waited(waited == -1 ? System.nanoTime() - started : waited);
+		if (jfrWait != null) {
+			JfrEvents.endLockWait(jfrWait, metrics.name);
+		}
+	}
+
+	/**
+	 * Write an event in the {@link Format#BINARY} format, returning once it has been
+	 * written and flushed. Rather than being combined, each event is encoded by its own
+	 * thread while holding the lock, as encoding is little more than copying its fields.
+	 * <p>
+	 * The strings interned by the encoder are only valid for the stream they were written
+	 * to, so a new header is written whenever the target stream changes.
+	 *
+	 * @param logger logger
+	 * @param event event
+	 * @param output output to write to
+	 * @param jfr emit JFR events
+	 */
+	void encode(AbstractLogger logger, Event event, OutputChoice output, boolean jfr) {
+		var arguments = event.resolvedArguments();
+		var thread = event.threadName();
+		var mdc = TtyMDCAdapter.context();
+
+		var started = System.nanoTime();
+		var jfrWait = jfr ? JfrEvents.beginLockWait() : null;
+		lock.lock();
+		try {
+			var now = System.nanoTime();
+			metrics.waited(now - started);
+			if (jfrWait != null) {
+				JfrEvents.endLockWait(jfrWait, metrics.name);
+			}
+			var jfrWrite = jfr ? JfrEvents.beginWrite() : null;
+			var stream = current(output).getTargetPrintStream();
+			var bytes = 0;
+			if (stream != encoding) {
+				encoder = new EventEncoder(stream, System.currentTimeMillis(), now);
+				encoding = stream;
+				bytes = EventEncoder.HEADER_LENGTH;
+			}
+			bytes += encoder.write(now, event.level, logger.getName(), thread, event.threadId(), event.markers,
+					event.pattern, arguments, event.keys, event.values, event.keyValueCount, mdc, event.throwable);
+			stream.flush();
+			var took = System.nanoTime() - now;
+			overload.written(took);
+			metrics.encoded(bytes, took);
+			if (jfrWrite != null) {
+				JfrEvents.endWrite(jfrWrite, metrics.name, 1, 0, bytes);
+			}
+		} catch (IOException ioe) {
+			/* A PrintStream records errors rather than throwing them */
+			throw new UncheckedIOException(ioe);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Close an output that has been replaced following a configuration change. Once the
+	 * output lock is taken no further records can be written to the old output. Any that
+	 * were rendered with the old configuration but are written afterwards go to the
+	 * replacement, if there is one. Only file outputs are closed.
+	 *
+	 * @param output replaced output
+	 * @param replacement output that replaces it, or {@code null} if none
+	 */
+	void retire(OutputChoice output, OutputChoice replacement) {
+		lock.lock();
+		try {
+			output.replacement = replacement;
+			if (output.outputChoiceType == OutputChoiceType.FILE) {
+				output.targetPrintStream.close();
+				if (output.index != null) {
+					output.index.close();
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void combine(boolean jfr) {
+		/* Take everything published so far, and reverse it so it is in publish order */
+		var node = pending.getAndSet(null);
+		Node first = null;
+		while (node != null) {
+			var next = node.next;
+			node.next = first;
+			first = node;
+			node = next;
+		}
+
+		try {
+			/* Each run of records for the same output is written in one go. There is only
+			 * more than one run while the output is being replaced.
+			 */
+			var start = first;
+			while (start != null) {
+				var output = current(start.output);
+				var end = start.next;
+				var events = 1;
+				while (end != null && current(end.output) == output) {
+					end = end.next;
+					events++;
+				}
+				write(output, start, end, events, jfr);
+				start = end;
+			}
+		} finally {
+			for (var n = first; n != null; n = n.next) {
+				n.done = true;
+				if (n.thread != Thread.currentThread()) {
+					LockSupport.unpark(n.thread);
+				}
+			}
+		}
+	}
+
+	private void write(OutputChoice output, Node start, Node end, int events, boolean jfr) {
+		try {
+			for (var n = start; n != end; n = n.next) {
+				batch.append(n.text);
+			}
+			var stream = output.getTargetPrintStream();
+			var index = output.index;
+			var offset = index == null ? 0 : index.position();
+			var jfrWrite = jfr ? JfrEvents.beginWrite() : null;
+			var started = System.nanoTime();
+			stream.print(batch.toString());
+			stream.flush();
+			if (index != null) {
+				index.written(offset, start.time, events);
+			}
+			var took = System.nanoTime() - started;
+			overload.written(took);
+			metrics.written(batch.length(), took);
+			if (jfrWrite != null) {
+				JfrEvents.endWrite(jfrWrite, metrics.name, events, batch.length(), 0);
+			}
+		} finally {
+			if (batch.capacity() > LoggingContext.MAX_BUFFER) {
+				batch = new StringBuilder(LoggingContext.INITIAL_BUFFER);
+			} else {
+				batch.setLength(0);
+			}
+		}
+	}
+
+	/**
+	 * Get the output that records for an output should now be written to, following any
+	 * replacements. Must be called while holding the lock.
+	 */
+	private static OutputChoice current(OutputChoice output) {
+		while (output.replacement != null) {
+			output = output.replacement;
+		}
+		return output;
+	}
+
+	private void wakeNext() {
+		/* Records published while we were combining will be waiting for a combiner,
+		 * so hand over to the most recent one's thread.
+		 */
+		var head = pending.get();
+		if (head != null) {
+			LockSupport.unpark(head.thread);
+		}
+	}
+}
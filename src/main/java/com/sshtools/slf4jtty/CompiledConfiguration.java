@@ -0,0 +1,618 @@
+package com.sshtools.slf4jtty;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.event.Level;
+import org.slf4j.helpers.Reporter;
+
+import com.sshtools.jini.INI;
+import com.sshtools.jini.INI.Section;
+import com.sshtools.slf4jtty.OutputChoice.OutputChoiceType;
+import com.sshtools.slf4jtty.TtyLoggerConfiguration.Alignment;
+import com.sshtools.slf4jtty.TtyLoggerConfiguration.Format;
+import com.sshtools.slf4jtty.TtyLoggerConfiguration.Overload;
+
+/**
+ * An immutable snapshot of the output configuration, compiled from the INI documents
+ * into the form loggers need it in when rendering an event.
+ * <p>
+ * Loggers read the current snapshot from {@link TtyLoggerConfiguration} once for each
+ * event they are handed, and pass that snapshot down to everything that renders and
+ * writes it, including the {@link CombiningWriter}. The only other read is by the checks
+ * for events with markers, such as {@code isDebugEnabled(Marker)}, which SLF4J makes
+ * before handing the event over. When the configuration is reloaded a new snapshot is
+ * compiled and swapped in, so an event is never rendered with a mix of old and new
+ * configuration.
+ * <p>
+ * A snapshot may only be created using a {@link Builder}, which may be populated from
+ * INI documents or from another snapshot.
+ */
+final class CompiledConfiguration {
+
+	/**
+	 * The type of each field that may appear in a layout.
+	 */
+	enum FieldType {
+		DATE_TIME, THREAD_NAME, THREAD_ID, LEVEL, SHORT_NAME, NAME, MESSAGE, MARKERS, MDC, KV, CALLER_CLASS, CALLER_METHOD, CALLER_LINE,
+		CALLER_FILE;
+
+		static FieldType of(String name) {
+			switch (name) {
+			case "date-time":
+				return DATE_TIME;
+			case "thread-name":
+				return THREAD_NAME;
+			case "thread-id":
+				return THREAD_ID;
+			case "level":
+				return LEVEL;
+			case "short-name":
+				return SHORT_NAME;
+			case "name":
+				return NAME;
+			case "message":
+				return MESSAGE;
+			case "markers":
+				return MARKERS;
+			case "mdc":
+				return MDC;
+			case "kv":
+				return KV;
+			case "caller-class":
+				return CALLER_CLASS;
+			case "caller-method":
+				return CALLER_METHOD;
+			case "caller-line":
+				return CALLER_LINE;
+			case "caller-file":
+				return CALLER_FILE;
+			default:
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * A single field in the layout, with everything needed to render it.
+	 */
+	record Field(String name, FieldType type, String style, String decoration, String placeholder,
+			int decorationWidth, int width, Alignment alignment) {
+	}
+
+	private final static int MAX_WIDTHS = 8;
+
+	private record Widths(int total, int[] widths) {
+	}
+
+	/**
+	 * An additional output with its own format, minimum level and width, that receives
+	 * events as well as the primary output. Sinks that would render an event the same
+	 * way share the same <code>rendering</code> index, so it is only rendered once.
+	 * A <code>routed</code> sink only receives events from loggers that are routed to it
+	 * by name.
+	 */
+	record Sink(String name, Format format, int level, int width, boolean routed, OutputChoiceType outputType,
+			String logFile, OutputChoice outputChoice, CombiningWriter writer, int rendering) {
+
+		Sink withOutput(OutputChoice outputChoice, CombiningWriter writer) {
+			return new Sink(name, format, level, width, routed, outputType, logFile, outputChoice, writer, rendering);
+		}
+
+		Sink withRendering(int rendering) {
+			return new Sink(name, format, level, width, routed, outputType, logFile, outputChoice, writer, rendering);
+		}
+
+		/**
+		 * Get whether this sink's output is the same as an event rendered in the given
+		 * format and width. Width does not affect JSON.
+		 *
+		 * @param format format
+		 * @param width width
+		 * @return renders the same
+		 */
+		boolean renders(Format format, int width) {
+			return this.format == format && (format == Format.JSON || this.width == width);
+		}
+
+		boolean sameOutput(Sink other) {
+			return other.outputType == outputType && other.logFile.equals(logFile);
+		}
+	}
+
+	/**
+	 * Mutable configuration used to build a {@link CompiledConfiguration}.
+	 */
+	final static class Builder {
+		Format format = Format.AUTO;
+		boolean styleAsLevel;
+		int gap;
+		int width;
+		int fallbackWidth;
+		String parameterStyle;
+		String ellipsis;
+		Set<String> layout = new LinkedHashSet<>();
+		final Map<String, String> fieldStyles = new HashMap<>();
+		final Map<String, String> fieldDecoration = new HashMap<>();
+		final Map<String, Alignment> fieldAlignment = new HashMap<>();
+		final Map<String, Integer> fieldWidth = new HashMap<>();
+		final Map<Level, String> levelStyles = new HashMap<>();
+		final Map<Level, String> levelText = new HashMap<>();
+		final List<String> mdcKeys = new ArrayList<>();
+		String kvKeyStyle = "${key}";
+		String kvValueStyle = "${value}";
+		final Map<String, String> kvStyles = new HashMap<>();
+		/** Marker rules, each in the form marker:action, in order of precedence */
+		final List<String> markerRules = new ArrayList<>();
+		/** Additional outputs, by name */
+		final Map<String, Sink> sinks = new LinkedHashMap<>();
+		DateFormat dateFormatter;
+		int defaultLevel = AbstractLogger.LOG_LEVEL_INFO;
+		OutputChoiceType outputType = OutputChoiceType.SYS_ERR;
+		String logFile = "";
+		OutputChoice outputChoice;
+		String recordFile = "";
+		int indexEvents;
+		int indexKb;
+		int ringSize;
+		int ringLevel = AbstractLogger.LOG_LEVEL_DEBUG;
+		String ringSignal = "";
+		/** Created (or re-used) when the configuration is swapped in */
+		EventRing ring;
+		/** Opened (or re-used) when the configuration is swapped in */
+		EventRecorder recorder;
+		long repeatWindow;
+		long throttleReportInterval = TimeUnit.SECONDS.toMillis(60);
+		Overload overload = Overload.BLOCK;
+		long shedDebugLatency = 20;
+		long shedInfoLatency = 100;
+		boolean jmx = true;
+		boolean jfr;
+		boolean jfrLogEvents;
+
+		Builder() {
+		}
+
+		Builder(CompiledConfiguration cfg) {
+			format = cfg.format;
+			styleAsLevel = cfg.styleAsLevel;
+			gap = cfg.gap;
+			width = cfg.width;
+			fallbackWidth = cfg.fallbackWidth;
+			parameterStyle = cfg.parameterStyle;
+			ellipsis = cfg.ellipsis;
+			for (var field : cfg.layout) {
+				layout.add(field.name());
+			}
+			fieldStyles.putAll(cfg.fieldStyles);
+			fieldDecoration.putAll(cfg.fieldDecoration);
+			fieldAlignment.putAll(cfg.fieldAlignment);
+			fieldWidth.putAll(cfg.fieldWidth);
+			for (var lvl : Level.values()) {
+				levelStyles.put(lvl, cfg.levelStyles[lvl.ordinal()]);
+				levelText.put(lvl, cfg.levelText[lvl.ordinal()]);
+			}
+			mdcKeys.addAll(Arrays.asList(cfg.mdcKeys));
+			kvKeyStyle = cfg.kvKeyStyle;
+			kvValueStyle = cfg.kvValueStyle;
+			kvStyles.putAll(cfg.kvStyles);
+			markerRules.addAll(cfg.markerRuleList);
+			for (var sink : cfg.sinks) {
+				sinks.put(sink.name(), sink);
+			}
+			dateFormatter = cfg.dateFormatter;
+			defaultLevel = cfg.defaultLevel;
+			outputType = cfg.outputType;
+			logFile = cfg.logFile;
+			outputChoice = cfg.outputChoice;
+			recordFile = cfg.recordFile;
+			indexEvents = cfg.indexEvents;
+			indexKb = cfg.indexKb;
+			ringSize = cfg.ringSize;
+			ringLevel = cfg.ringLevel;
+			ringSignal = cfg.ringSignal;
+			repeatWindow = cfg.repeatWindow;
+			throttleReportInterval = cfg.throttleReportInterval;
+			overload = cfg.overload;
+			shedDebugLatency = cfg.shedDebugLatency;
+			shedInfoLatency = cfg.shedInfoLatency;
+			jmx = cfg.jmx;
+			jfr = cfg.jfr;
+			jfrLogEvents = cfg.jfrLogEvents;
+		}
+
+		Builder(INI config) {
+			var outputSection = config.section("output");
+			format = outputSection.getEnum(Format.class, "format");
+			styleAsLevel = outputSection.getBoolean("style-as-level");
+			gap = outputSection.getInt("gap");
+			width = outputSection.getInt("width");
+			fallbackWidth = outputSection.getInt("fallback-width");
+			parameterStyle = outputSection.get("parameter-style");
+			ellipsis = outputSection.get("ellipsis");
+			layout.addAll(Arrays.asList(outputSection.getAll("layout")));
+
+			var levels = config.section("levels");
+			for (var lvl : Level.values()) {
+				var levelSection = levels.section(lvl.name());
+				levelStyles.put(lvl, levelSection.get("style"));
+				levelText.put(lvl, levelSection.get("text"));
+			}
+
+			var fields = config.section("fields");
+			for (var fieldSection : fields.allSections()) {
+				fieldDecoration.put(fieldSection.key(), fieldSection.get("decoration"));
+				fieldStyles.put(fieldSection.key(), fieldSection.get("style"));
+				fieldWidth.put(fieldSection.key(), fieldSection.getInt("width"));
+				fieldAlignment.put(fieldSection.key(), fieldSection.getEnum(Alignment.class, "alignment"));
+				if (fieldSection.key().equals("date-time")) {
+					dateFormatter = dateFormat(fieldSection);
+				} else if (fieldSection.key().equals("mdc")) {
+					mdcKeys.addAll(Arrays.asList(fieldSection.getAllOr("keys")));
+				} else if (fieldSection.key().equals("kv")) {
+					kvKeyStyle = fieldSection.get("key-style");
+					kvValueStyle = fieldSection.get("value-style");
+					for (var style : fieldSection.getAllOr("styles")) {
+						var idx = style.indexOf(':');
+						if (idx == -1) {
+							Reporter.warn("Key value style '" + style + "' should be in the form key:style, it will be ignored.");
+						} else {
+							kvStyles.put(style.substring(0, idx), style.substring(idx + 1));
+						}
+					}
+				}
+			}
+
+			config.sectionOr("markers").ifPresent(sec -> markerRules.addAll(Arrays.asList(sec.getAllOr("rule"))));
+
+			var sinkSections = config.sections().get("sink");
+			if (sinkSections != null) {
+				for (var sinkSection : sinkSections) {
+					if (sinkSection.get("name", "").equals("")) {
+						/* Not configured, only defaults from the schema */
+						continue;
+					}
+					var sink = sink(sinkSection);
+					if (sinks.put(sink.name(), sink) != null) {
+						Reporter.warn("Sink '" + sink.name() + "' is configured more than once, only the last will be used.");
+					}
+				}
+			}
+
+			var logSection = config.section("log");
+			if (logSection.getBoolean("enabled")) {
+				defaultLevel = TtyLoggerConfiguration.stringToLevel(System.getProperty(
+						"org.slf4j.simpleLogger.defaultLogLevel", logSection.getEnum(Level.class, "default-level").name()));
+			} else {
+				defaultLevel = AbstractLogger.LOG_LEVEL_OFF;
+			}
+
+			logFile = expandHome(logSection.get("log-file", ""));
+			outputType = logSection.getEnum(OutputChoiceType.class, "output");
+			recordFile = expandHome(logSection.get("record-file", ""));
+			indexEvents = logSection.getInt("index-events");
+			indexKb = logSection.getInt("index-kb");
+			ringSize = logSection.getInt("ring-size");
+			ringLevel = TtyLoggerConfiguration.stringToLevel(logSection.get("ring-level"));
+			ringSignal = logSection.get("ring-signal", "").trim();
+
+			repeatWindow = logSection.getLong("repeat-window");
+			throttleReportInterval = TimeUnit.SECONDS.toMillis(logSection.getLong("throttle-report-interval"));
+			overload = logSection.getEnum(Overload.class, "overload");
+			shedDebugLatency = logSection.getLong("shed-debug-latency");
+			shedInfoLatency = logSection.getLong("shed-info-latency");
+			jmx = logSection.getBoolean("jmx");
+			jfr = logSection.getBoolean("jfr");
+			jfrLogEvents = logSection.getBoolean("jfr-log-events");
+		}
+
+		CompiledConfiguration build() {
+			return new CompiledConfiguration(this);
+		}
+
+		private static Sink sink(Section section) {
+			var logFile = expandHome(section.get("log-file", ""));
+			return new Sink(section.get("name"), Format.valueOf(section.get("format", "PLAIN").trim()),
+					TtyLoggerConfiguration.stringToLevel(section.get("level", "TRACE")),
+					Integer.parseInt(section.get("width", "0").trim()), section.getBoolean("routed", false),
+					OutputChoiceType.valueOf(section.get("output", "SYS_ERR").trim()), logFile, null, null, 0);
+		}
+
+		private static String expandHome(String path) {
+			if (path.startsWith("~/") || path.startsWith("~\\"))
+				return System.getProperty("user.home") + path.substring(1);
+			return path;
+		}
+
+		private static DateFormat dateFormat(Section fieldSection) {
+			var dateType = fieldSection.getEnum(TtyConfigurationSet.DateTimeType.class, "type");
+			var dateFormatStr = fieldSection.get("format");
+			int style;
+			switch (dateFormatStr) {
+			case "SHORT":
+				style = DateFormat.SHORT;
+				break;
+			case "MEDIUM":
+				style = DateFormat.MEDIUM;
+				break;
+			case "LONG":
+				style = DateFormat.LONG;
+				break;
+			case "FULL":
+				style = DateFormat.FULL;
+				break;
+			case "TIMESTAMP":
+				return null;
+			default:
+				try {
+					return new SimpleDateFormat(dateFormatStr);
+				} catch (IllegalArgumentException e) {
+					Reporter.error("Bad date format; will output relative time", e);
+					return null;
+				}
+			}
+			switch (dateType) {
+			case DATE:
+				return DateFormat.getDateInstance(style);
+			case TIME:
+				return DateFormat.getTimeInstance(style);
+			default:
+				return DateFormat.getDateTimeInstance(style, style);
+			}
+		}
+	}
+
+	final Format format;
+	final boolean styleAsLevel;
+	final int gap;
+	final int width;
+	final int fallbackWidth;
+	final String parameterStyle;
+	final String ellipsis;
+	final int ellipsisWidth;
+	final Field[] layout;
+	final String[] levelStyles;
+	final String[] levelText;
+	/** MDC keys to output, or empty for all */
+	final String[] mdcKeys;
+	final String kvKeyStyle;
+	final String kvValueStyle;
+	/** Value styles for particular keys */
+	final Map<String, String> kvStyles;
+	/** Marker rules, or {@code null} if there are none */
+	final MarkerRules markerRules;
+	/** Additional outputs */
+	final Sink[] sinks;
+	/** Number of distinct ways the sinks render an event */
+	final int renderings;
+	/** The outputs of loggers that are not routed to particular sinks */
+	final Route route;
+	final DateFormat dateFormatter;
+	final int defaultLevel;
+	final OutputChoiceType outputType;
+	final String logFile;
+	final OutputChoice outputChoice;
+	/** File events are recorded to, or empty */
+	final String recordFile;
+	/** Recorder of events, or {@code null} if not recording */
+	final EventRecorder recorder;
+	/** Number of events between entries in the time index of file outputs, or zero */
+	final int indexEvents;
+	/** Number of kilobytes between entries in the time index of file outputs, or zero */
+	final int indexKb;
+	/** Number of events below the output level that are kept, or zero */
+	final int ringSize;
+	/** Lowest level of events that are kept */
+	final int ringLevel;
+	/** Name of a signal that outputs the kept events, or empty */
+	final String ringSignal;
+	/** Ring of events below the output level, or {@code null} if not kept */
+	final EventRing ring;
+	/** Lowest level that must reach a logger, either to be output or to be kept in the ring */
+	final int captureLevel;
+	final long repeatWindow;
+	final long throttleReportInterval;
+	final Overload overload;
+	final long shedDebugLatency;
+	final long shedInfoLatency;
+	/** Whether metrics are registered as an MBean */
+	final boolean jmx;
+	/** Whether Java Flight Recorder events are emitted for the cost of logging */
+	final boolean jfr;
+	/** Whether events that are output are also emitted as Java Flight Recorder events */
+	final boolean jfrLogEvents;
+
+	/* Retained so a builder can be created from this snapshot */
+	private final Map<String, String> fieldStyles;
+	private final Map<String, String> fieldDecoration;
+	private final Map<String, Alignment> fieldAlignment;
+	private final Map<String, Integer> fieldWidth;
+	private final List<String> markerRuleList;
+
+	private volatile Widths[] widths = new Widths[0];
+
+	private CompiledConfiguration(Builder builder) {
+		format = builder.format;
+		styleAsLevel = builder.styleAsLevel;
+		gap = builder.gap;
+		width = builder.width;
+		fallbackWidth = builder.fallbackWidth;
+		parameterStyle = builder.parameterStyle;
+		ellipsis = builder.ellipsis;
+		ellipsisWidth = WCWidth.mk_wcswidth(ellipsis);
+		fieldStyles = Collections.unmodifiableMap(new HashMap<>(builder.fieldStyles));
+		fieldDecoration = Collections.unmodifiableMap(new HashMap<>(builder.fieldDecoration));
+		fieldAlignment = Collections.unmodifiableMap(new HashMap<>(builder.fieldAlignment));
+		fieldWidth = Collections.unmodifiableMap(new HashMap<>(builder.fieldWidth));
+
+		levelStyles = new String[Level.values().length];
+		levelText = new String[Level.values().length];
+		for (var lvl : Level.values()) {
+			levelStyles[lvl.ordinal()] = builder.levelStyles.get(lvl);
+			levelText[lvl.ordinal()] = builder.levelText.get(lvl);
+		}
+
+		var fields = new ArrayList<Field>();
+		for (var name : builder.layout) {
+			var type = FieldType.of(name);
+			if (type == null || !fieldWidth.containsKey(name)) {
+				Reporter.warn("Layout field '" + name + "' is not known or not configured, it will be ignored.");
+				continue;
+			}
+			var placeholder = "${" + name + "}";
+			var decoration = fieldDecoration.get(name);
+			fields.add(new Field(name, type, fieldStyles.get(name), decoration, placeholder,
+					WCWidth.mk_wcswidth(decoration.replace(placeholder, "")), fieldWidth.get(name),
+					fieldAlignment.get(name)));
+		}
+		layout = fields.toArray(new Field[0]);
+
+		mdcKeys = builder.mdcKeys.toArray(new String[0]);
+		kvKeyStyle = builder.kvKeyStyle;
+		kvValueStyle = builder.kvValueStyle;
+		kvStyles = Collections.unmodifiableMap(new HashMap<>(builder.kvStyles));
+		markerRuleList = List.copyOf(builder.markerRules);
+		markerRules = MarkerRules.of(markerRuleList);
+
+		var renderingSinks = new ArrayList<Sink>();
+		var distinct = 0;
+		for (var sink : builder.sinks.values()) {
+			var rendering = -1;
+			for (var other : renderingSinks) {
+				if (other.renders(sink.format(), sink.width())) {
+					rendering = other.rendering();
+					break;
+				}
+			}
+			renderingSinks.add(sink.withRendering(rendering == -1 ? distinct++ : rendering));
+		}
+		sinks = renderingSinks.toArray(new Sink[0]);
+		renderings = distinct;
+		route = Route.unrouted(this);
+		dateFormatter = builder.dateFormatter;
+		defaultLevel = builder.defaultLevel;
+		outputType = builder.outputType;
+		logFile = builder.logFile;
+		outputChoice = builder.outputChoice;
+		recordFile = builder.recordFile;
+		recorder = builder.recorder;
+		indexEvents = builder.indexEvents;
+		indexKb = builder.indexKb;
+		ringSize = builder.ringSize;
+		ringLevel = builder.ringLevel;
+		ringSignal = builder.ringSignal;
+		ring = builder.ring;
+		captureLevel = ring == null ? AbstractLogger.LOG_LEVEL_OFF : ringLevel;
+		repeatWindow = builder.repeatWindow;
+		throttleReportInterval = builder.throttleReportInterval;
+		overload = builder.overload;
+		shedDebugLatency = builder.shedDebugLatency;
+		shedInfoLatency = builder.shedInfoLatency;
+		jmx = builder.jmx;
+		jfr = builder.jfr;
+		jfrLogEvents = builder.jfrLogEvents;
+	}
+
+	List<String> layoutNames() {
+		var l = new ArrayList<String>(layout.length);
+		for (var field : layout) {
+			l.add(field.name());
+		}
+		return l;
+	}
+
+	/**
+	 * Get a sink by name.
+	 *
+	 * @param name name
+	 * @return sink, or {@code null} if there is no such sink
+	 */
+	Sink sink(String name) {
+		for (var sink : sinks) {
+			if (sink.name().equals(name)) {
+				return sink;
+			}
+		}
+		return null;
+	}
+
+	String levelStyle(Level level) {
+		return levelStyles[level.ordinal()];
+	}
+
+	String levelText(Level level) {
+		return levelText[level.ordinal()];
+	}
+
+	/**
+	 * Get the width of each field in the layout, when the total available width is as
+	 * given. The result for each total width is cached (there is one for the primary
+	 * output and one for each sink width), and is only recalculated when a total width
+	 * changes (e.g. the terminal is resized).
+	 *
+	 * @param total total width
+	 * @return widths, in the same order as the layout
+	 */
+	int[] widths(int total) {
+		var cached = widths;
+		for (var w : cached) {
+			if (w.total == total) {
+				return w.widths;
+			}
+		}
+
+		var fieldWidths = new int[layout.length];
+		var available = total - (Math.max(0, layout.length - 1) * gap);
+		var autoFields = 0;
+
+		/* First pass that sets initial size of fixed size fields, and calculates
+		 * remaining space for any auto fields
+		 */
+		for (int i = 0; i < layout.length; i++) {
+			var fieldWidth = layout[i].width();
+			fieldWidths[i] = fieldWidth;
+			if (fieldWidth > 0) {
+				available -= fieldWidth;
+				if (available < 0)
+					available = 0;
+			} else
+				autoFields++;
+		}
+
+		/* Give each auto field a portion of the available space (if any).
+		 */
+		var autoFieldSize = autoFields == 0 ? 0 : (int) ((float) Math.max(autoFields, available) / (float) autoFields);
+		var totalWidth = 0;
+		for (int i = 0; i < fieldWidths.length; i++) {
+			if (fieldWidths[i] == 0) {
+				fieldWidths[i] = autoFieldSize;
+			}
+			totalWidth += fieldWidths[i];
+		}
+
+		/* If the total width of the row exceeds the available width, remove one character
+		 * from each field until all fields will fit
+		 */
+		var overflow = totalWidth - total;
+		for (int i = 0; i < overflow && fieldWidths.length > 0; i++) {
+			var idx = i % fieldWidths.length;
+			fieldWidths[idx] = Math.max(1, fieldWidths[idx] - 1);
+		}
+
+		/* A terminal being resized adds a new width each time, so don't keep too many */
+		var updated = cached.length < MAX_WIDTHS ? Arrays.copyOf(cached, cached.length + 1) : new Widths[1];
+		updated[updated.length - 1] = new Widths(total, fieldWidths);
+		widths = updated;
+		return fieldWidths;
+	}
+}
@@ -0,0 +1,99 @@
+package com.sshtools.slf4jtty;
+
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+import com.sshtools.slf4jtty.TtyLoggerConfiguration.Format;
+
+/**
+ * Renders events that were written by an output in the {@link Format#BINARY} format, so
+ * the cost of formatting them is paid later, and on another machine if need be, rather
+ * than when they are logged.
+ * <p>
+ * Each event is rendered through the current configuration, using its layout, styles,
+ * fields and date format, exactly as it would have been if the output had been in the
+ * chosen format. The time, thread name, thread ID and MDC are those of the original
+ * event. Only the <code>caller-*</code> fields are not recorded, so are shown as
+ * unknown.
+ * <p>
+ * The first argument is the file, and any others are options given as
+ * <code>name=value</code>.
+ * <ul>
+ * <li><code>format</code>, one of <code>AUTO</code>, <code>ANSI</code>,
+ * <code>PLAIN</code> or <code>JSON</code>. Defaults to the configured format, or
+ * <code>AUTO</code> if that is <code>BINARY</code>.</li>
+ * <li><code>width</code>, the width to render for formats other than JSON, defaults to
+ * the configured width.</li>
+ * </ul>
+ */
+public final class Decode {
+
+	private final static int BUFFER_SIZE = 65536;
+
+	private Decode() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			System.err.println("Usage: Decode <file> [format=AUTO|ANSI|PLAIN|JSON] [width=<n>]");
+			System.exit(2);
+		}
+
+		var options = new LinkedHashMap<String, String>();
+		for (int i = 1; i < args.length; i++) {
+			var idx = args[i].indexOf('=');
+			if (idx == -1) {
+				throw new IllegalArgumentException("Options must be in the form name=value, not '" + args[i] + "'.");
+			}
+			options.put(args[i].substring(0, idx), args[i].substring(idx + 1));
+		}
+
+		var cfg = TtyLoggerConfiguration.get();
+		var compiled = cfg.compiled;
+		var format = Format.valueOf(options.getOrDefault("format",
+				compiled.format == Format.BINARY ? Format.AUTO.name() : compiled.format.name()));
+		var width = Integer.parseInt(options.getOrDefault("width", String.valueOf(compiled.width)));
+
+		var out = new BufferedWriter(new OutputStreamWriter(System.out), BUFFER_SIZE);
+		try (var in = new FileInputStream(args[0])) {
+			decode(cfg, in, format, width, out);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Render all events in a stream.
+	 *
+	 * @param cfg configuration to render with
+	 * @param in stream to read
+	 * @param format format to render, other than {@link Format#BINARY}
+	 * @param width width to render
+	 * @param out writer to write rendered events to
+	 * @return number of events
+	 * @throws IOException on error, or if the stream is not in the binary format
+	 */
+	static long decode(TtyLoggerConfiguration cfg, InputStream in, Format format, int width, Writer out)
+			throws IOException {
+		if (format == Format.BINARY) {
+			throw new IllegalArgumentException("Cannot decode to the binary format.");
+		}
+		var compiled = cfg.compiled;
+		var loggers = new HashMap<String, TtyLogger>();
+		var count = 0L;
+		try (var decoder = new EventDecoder(in)) {
+			RecordedEvent event;
+			while ((event = decoder.next()) != null) {
+				var logger = loggers.computeIfAbsent(event.logger(), name -> new TtyLogger(name, cfg));
+				out.write(logger.render(compiled, event, null, Caller.UNKNOWN, format, width));
+				count++;
+			}
+		}
+		return count;
+	}
+}
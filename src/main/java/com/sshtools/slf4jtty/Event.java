@@ -0,0 +1,264 @@
+package com.sshtools.slf4jtty;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+
+import org.slf4j.Marker;
+import org.slf4j.event.KeyValuePair;
+import org.slf4j.event.Level;
+
+/**
+ * A single event being rendered. Each {@link LoggingContext} holds one of these that
+ * is re-used for every event the thread logs, so carrying an event's details through
+ * to rendering costs no allocation. Key value pairs and arguments are only converted
+ * to text as they are appended to the output.
+ * <p>
+ * Key value pairs are held in a pair of arrays that grow as needed and are then
+ * re-used, rather than as a list of {@link KeyValuePair}.
+ * <p>
+ * Inputs that every rendering of the event needs, such as the time and formatted
+ * message, are computed once when first needed, so an event that is output to
+ * several sinks only computes them once.
+ */
+final class Event {
+
+	private final static int INITIAL_KEY_VALUES = 4;
+
+	Level level;
+	List<Marker> markers;
+	String pattern;
+	Object[] arguments;
+	Throwable throwable;
+	String[] keys = new String[INITIAL_KEY_VALUES];
+	Object[] values = new Object[INITIAL_KEY_VALUES];
+	int keyValueCount;
+	/** Fully qualified class name of a facade whose caller should be reported */
+	String callerBoundary;
+	private Caller caller;
+	private final ArrayList<Marker> single = new ArrayList<>(1);
+
+	/* Inputs shared by every rendering of the event, computed when first needed */
+	private long time;
+	private String date;
+	private String threadName;
+	/** Zero until taken, as thread ids are positive, or -1 if not known */
+	private long threadId;
+	private Object[] resolved;
+	private boolean shared;
+	private String message;
+	private String messageStyle;
+	private int messageLimit;
+
+	Event set(Level level, List<Marker> markers, String pattern, Object[] arguments, Throwable throwable) {
+		this.level = level;
+		this.markers = markers;
+		this.pattern = pattern;
+		this.arguments = arguments;
+		this.throwable = throwable;
+		this.caller = null;
+		resetShared();
+		return this;
+	}
+
+	/**
+	 * Set the details that would otherwise be taken from the thread that logged the
+	 * event, for an event that was logged earlier.
+	 *
+	 * @param time time
+	 * @param date formatted date, or {@code null} to format the time
+	 * @param threadName thread name
+	 * @param threadId thread id, or -1 if not known
+	 * @param caller location that logged the event
+	 * @return this for chaining
+	 */
+	Event recorded(long time, String date, String threadName, long threadId, Caller caller) {
+		this.time = time;
+		this.date = date;
+		this.threadName = threadName;
+		this.threadId = threadId;
+		this.caller = caller;
+		return this;
+	}
+
+	/**
+	 * Mark this event as being rendered more than once, so any lazy arguments are
+	 * evaluated once and the same values used by every rendering.
+	 */
+	void share() {
+		shared = true;
+	}
+
+	/**
+	 * Get the time of the event, which is taken when it is first needed.
+	 *
+	 * @return time
+	 */
+	long time() {
+		if (time == 0) {
+			time = System.currentTimeMillis();
+		}
+		return time;
+	}
+
+	/**
+	 * Get the formatted date of the event, or the milliseconds since start up if there
+	 * is no date format.
+	 *
+	 * @param cfg configuration
+	 * @return date
+	 */
+	String date(CompiledConfiguration cfg) {
+		if (date == null) {
+			if (cfg.dateFormatter == null) {
+				date = String.valueOf(time() - AbstractLogger.START_TIME);
+			} else {
+				synchronized (cfg.dateFormatter) {
+					date = cfg.dateFormatter.format(new Date(time()));
+				}
+			}
+		}
+		return date;
+	}
+
+	String threadName() {
+		if (threadName == null) {
+			threadName = Thread.currentThread().getName();
+		}
+		return threadName;
+	}
+
+	/**
+	 * Get the id of the thread that logged the event.
+	 *
+	 * @return thread id, or -1 if not known
+	 */
+	long threadId() {
+		if (threadId == 0) {
+			threadId = Thread.currentThread().getId();
+		}
+		return threadId;
+	}
+
+	/**
+	 * Get the id of the thread that logged the event as it is rendered.
+	 *
+	 * @return thread id, or <code>?</code> if not known
+	 */
+	String threadIdText() {
+		var id = threadId();
+		return id < 0 ? "?" : String.valueOf(id);
+	}
+
+	/**
+	 * Get the arguments with any lazy arguments evaluated.
+	 *
+	 * @return arguments
+	 */
+	Object[] resolvedArguments() {
+		if (resolved == null) {
+			resolved = MessageFormatter.resolveAll(arguments);
+		}
+		return resolved;
+	}
+
+	/**
+	 * Get the formatted message. This is re-used if it has already been formatted with
+	 * the same parameter style, and without a smaller limit.
+	 *
+	 * @param parameterStyle parameter style
+	 * @param limit maximum number of characters needed
+	 * @return message
+	 */
+	String message(String parameterStyle, int limit) {
+		if (message == null || messageLimit < limit || !Objects.equals(parameterStyle, messageStyle)) {
+			message = MessageFormatter.basicArrayFormat(parameterStyle, pattern,
+					shared || resolved != null ? resolvedArguments() : arguments, limit);
+			messageStyle = parameterStyle;
+			messageLimit = limit;
+		}
+		return message;
+	}
+
+	/**
+	 * Set a single marker, replacing any already set, without allocating a list.
+	 *
+	 * @param marker marker
+	 * @return this for chaining
+	 */
+	Event marker(Marker marker) {
+		single.clear();
+		single.add(marker);
+		markers = single;
+		return this;
+	}
+
+	/**
+	 * Get the location that logged this event. This is only looked up the first time
+	 * it is needed, and must be called on the thread that logged the event.
+	 *
+	 * @return caller
+	 */
+	Caller caller() {
+		if (caller == null) {
+			caller = Caller.find(callerBoundary);
+		}
+		return caller;
+	}
+
+	/**
+	 * Set the key value pairs from a list, replacing any already set.
+	 *
+	 * @param keyValuePairs key value pairs, may be {@code null}
+	 * @return this for chaining
+	 */
+	Event keyValuePairs(List<KeyValuePair> keyValuePairs) {
+		clearKeyValues();
+		if (keyValuePairs != null) {
+			for (var kv : keyValuePairs) {
+				addKeyValue(kv.key, kv.value);
+			}
+		}
+		return this;
+	}
+
+	void addKeyValue(String key, Object value) {
+		if (keyValueCount == keys.length) {
+			keys = Arrays.copyOf(keys, keys.length * 2);
+			values = Arrays.copyOf(values, values.length * 2);
+		}
+		keys[keyValueCount] = key;
+		values[keyValueCount++] = value;
+	}
+
+	/**
+	 * Release all references, so nothing logged is retained by the thread.
+	 */
+	void clear() {
+		set(null, null, null, null, null);
+		callerBoundary = null;
+		single.clear();
+		clearKeyValues();
+	}
+
+	private void resetShared() {
+		time = 0;
+		date = null;
+		threadName = null;
+		threadId = 0;
+		resolved = null;
+		shared = false;
+		message = null;
+		messageStyle = null;
+	}
+
+	private void clearKeyValues() {
+		if (keyValueCount > 0) {
+			Arrays.fill(keys, 0, keyValueCount, null);
+			Arrays.fill(values, 0, keyValueCount, null);
+			keyValueCount = 0;
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package com.sshtools.slf4jtty;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+import org.slf4j.Marker;
+import org.slf4j.event.Level;
+import org.slf4j.spi.CallerBoundaryAware;
+import org.slf4j.spi.LoggingEventBuilder;
+
+/**
+ * A {@link LoggingEventBuilder} for the fluent API that writes straight into a re-used
+ * {@link Event}, which is then passed directly to the logger's render path.
+ * <p>
+ * Each platform thread has one of these in its {@link LoggingContext}, and virtual threads
+ * borrow one from a pool, so in the steady state building and logging an event allocates
+ * nothing. The arguments array passed
+ * on for formatting must be exactly the right length, so an array of each length up to
+ * {@link #MAX_CACHED_ARGUMENTS} is kept and re-used.
+ * <p>
+ * Argument and key value {@link Supplier}s are kept as they are, and only evaluated if
+ * and when the event is rendered.
+ * <p>
+ * A builder is only valid from the call to <code>atXXXX()</code> until the call to
+ * one of the <code>log()</code> methods, and must not be retained or shared.
+ */
+final class EventBuilder implements LoggingEventBuilder, CallerBoundaryAware {
+
+	private final static int MAX_CACHED_ARGUMENTS = 8;
+
+	private final Event event = new Event();
+	private final ArrayList<Marker> markers = new ArrayList<>(2);
+	private final Object[][] sized = new Object[MAX_CACHED_ARGUMENTS + 1][];
+	private Object[] args = new Object[MAX_CACHED_ARGUMENTS];
+	private int argCount;
+	private final boolean pooled;
+	private AbstractLogger logger;
+	private boolean inUse;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param pooled return to the pool of {@link LoggingContext} once logged
+	 */
+	EventBuilder(boolean pooled) {
+		this.pooled = pooled;
+	}
+
+	EventBuilder start(AbstractLogger logger, Level level) {
+		this.logger = logger;
+		this.inUse = true;
+		event.level = level;
+		return this;
+	}
+
+	boolean inUse() {
+		return inUse;
+	}
+
+	@Override
+	public void setCallerBoundary(String fqcn) {
+		event.callerBoundary = fqcn;
+	}
+
+	@Override
+	public LoggingEventBuilder setCause(Throwable cause) {
+		event.throwable = cause;
+		return this;
+	}
+
+	@Override
+	public LoggingEventBuilder addMarker(Marker marker) {
+		markers.add(marker);
+		return this;
+	}
+
+	@Override
+	public LoggingEventBuilder addArgument(Object p) {
+		if (argCount == args.length) {
+			args = Arrays.copyOf(args, args.length * 2);
+		}
+		args[argCount++] = p;
+		return this;
+	}
+
+	@Override
+	public LoggingEventBuilder addArgument(Supplier<?> objectSupplier) {
+		/* Evaluated by the formatter, only if the event is actually rendered */
+		return addArgument((Object) objectSupplier);
+	}
+
+	@Override
+	public LoggingEventBuilder addKeyValue(String key, Object value) {
+		event.addKeyValue(key, value);
+		return this;
+	}
+
+	@Override
+	public LoggingEventBuilder addKeyValue(String key, Supplier<Object> valueSupplier) {
+		return addKeyValue(key, (Object) valueSupplier);
+	}
+
+	@Override
+	public LoggingEventBuilder setMessage(String message) {
+		event.pattern = message;
+		return this;
+	}
+
+	@Override
+	public LoggingEventBuilder setMessage(Supplier<String> messageSupplier) {
+		return setMessage(messageSupplier.get());
+	}
+
+	@Override
+	public void log() {
+		try {
+			var count = argCount;
+			if (event.throwable == null && count > 0 && args[count - 1] instanceof Throwable t) {
+				/* Same as NormalizedParameters, a trailing throwable is the cause */
+				event.throwable = t;
+				count--;
+			}
+			event.arguments = arguments(count);
+			event.markers = markers.isEmpty() ? null : markers;
+			logger.dispatch(event);
+		} finally {
+			reset();
+		}
+	}
+
+	@Override
+	public void log(String message) {
+		setMessage(message);
+		log();
+	}
+
+	@Override
+	public void log(String message, Object arg) {
+		setMessage(message);
+		addArgument(arg);
+		log();
+	}
+
+	@Override
+	public void log(String message, Object arg0, Object arg1) {
+		setMessage(message);
+		addArgument(arg0);
+		addArgument(arg1);
+		log();
+	}
+
+	@Override
+	public void log(String message, Object... args) {
+		setMessage(message);
+		for (var arg : args) {
+			addArgument(arg);
+		}
+		log();
+	}
+
+	@Override
+	public void log(Supplier<String> messageSupplier) {
+		setMessage(messageSupplier);
+		log();
+	}
+
+	private Object[] arguments(int count) {
+		if (count == 0) {
+			return null;
+		} else if (count > MAX_CACHED_ARGUMENTS) {
+			return Arrays.copyOf(args, count);
+		}
+		var arr = sized[count];
+		if (arr == null) {
+			arr = sized[count] = new Object[count];
+		}
+		System.arraycopy(args, 0, arr, 0, count);
+		return arr;
+	}
+
+	private void reset() {
+		if (event.arguments != null && event.arguments.length <= MAX_CACHED_ARGUMENTS) {
+			Arrays.fill(event.arguments, null);
+		}
+		Arrays.fill(args, 0, argCount, null);
+		argCount = 0;
+		markers.clear();
+		event.clear();
+		logger = null;
+		inUse = false;
+		if (pooled) {
+			LoggingContext.releaseBuilder(this);
+		}
+	}
+}
@@ -0,0 +1,284 @@
+package com.sshtools.slf4jtty;
+
+import static com.sshtools.slf4jtty.EventEncoder.*;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Marker;
+import org.slf4j.event.Level;
+import org.slf4j.helpers.BasicMarkerFactory;
+
+/**
+ * Reads events written by an {@link EventEncoder}.
+ * <p>
+ * Arguments and values of types that were written as text are read back as strings,
+ * which format the same. Markers are read back as detached markers with no references.
+ * A throwable is read back as an instance of {@link Recorded}, with the original class
+ * name, message, stack trace and causes.
+ * <p>
+ * If the stream was cut off part way through an event (e.g. the process that was writing
+ * it was killed), the partial event is treated as the end of the stream.
+ */
+final class EventDecoder implements Closeable {
+
+	/**
+	 * A throwable read from a recording, that is output in the same way as the original.
+	 */
+	final static class Recorded extends Throwable {
+		private static final long serialVersionUID = 1L;
+
+		private final String className;
+
+		Recorded(String className, String message) {
+			super(message);
+			this.className = className;
+		}
+
+		/**
+		 * Get the class name of the original throwable.
+		 *
+		 * @return class name
+		 */
+		String className() {
+			return className;
+		}
+
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+
+		@Override
+		public String toString() {
+			var msg = getLocalizedMessage();
+			return msg == null ? className : className + ": " + msg;
+		}
+	}
+
+	private final InputStream in;
+	private final long startTime;
+	private final BasicMarkerFactory markers = new BasicMarkerFactory();
+	private String[] strings = new String[256];
+	private int stringCount;
+	private long nanos;
+	private byte[] buf = new byte[256];
+
+	/**
+	 * Constructor. The header is read immediately.
+	 *
+	 * @param in stream to read
+	 * @throws IOException on error, or if the stream is not a recording
+	 */
+	EventDecoder(InputStream in) throws IOException {
+		this.in = in instanceof BufferedInputStream ? in : new BufferedInputStream(in);
+		var magic = new byte[MAGIC.length];
+		if (this.in.readNBytes(magic, 0, magic.length) != magic.length || !Arrays.equals(magic, MAGIC)) {
+			throw new IOException("Not a recording of events.");
+		}
+		var version = read();
+		if (version != VERSION) {
+			throw new IOException("Unsupported recording version " + version + ".");
+		}
+		startTime = fixed(8);
+	}
+
+	/**
+	 * Get the time recording started.
+	 *
+	 * @return time in milliseconds since the epoch
+	 */
+	long startTime() {
+		return startTime;
+	}
+
+	/**
+	 * Read the next event.
+	 *
+	 * @return event, or {@code null} at the end of the stream
+	 * @throws IOException on error
+	 */
+	RecordedEvent next() throws IOException {
+		var first = in.read();
+		if (first == -1) {
+			return null;
+		}
+		try {
+			nanos += varlong(first);
+			var level = Level.values()[read()];
+			var logger = string();
+			var thread = string();
+			var threadId = unzigzag(varlong(read()));
+			var pattern = string();
+
+			var arguments = new Object[varint()];
+			for (int i = 0; i < arguments.length; i++) {
+				arguments[i] = value();
+			}
+
+			var markerCount = varint();
+			var markerList = markerCount == 0 ? List.<Marker>of() : new ArrayList<Marker>(markerCount);
+			for (int i = 0; i < markerCount; i++) {
+				markerList.add(markers.getDetachedMarker(string()));
+			}
+
+			var kvCount = varint();
+			var keys = new String[kvCount];
+			var values = new Object[kvCount];
+			for (int i = 0; i < kvCount; i++) {
+				keys[i] = string();
+				values[i] = value();
+			}
+
+			var mdcCount = varint();
+			var mdcKeys = new String[mdcCount];
+			var mdcValues = new String[mdcCount];
+			for (int i = 0; i < mdcCount; i++) {
+				mdcKeys[i] = string();
+				mdcValues[i] = string();
+			}
+
+			Throwable throwable = null;
+			Recorded last = null;
+			while (read() == 1) {
+				var next = new Recorded(string(), string());
+				var frames = new StackTraceElement[varint()];
+				for (int i = 0; i < frames.length; i++) {
+					var loader = string();
+					var module = string();
+					var version = string();
+					var cls = string();
+					var method = string();
+					var file = string();
+					frames[i] = new StackTraceElement(loader, module, version, cls, method, file, unzigzag(varint()));
+				}
+				next.setStackTrace(frames);
+				if (last == null) {
+					throwable = next;
+				} else {
+					last.initCause(next);
+				}
+				last = next;
+			}
+
+			return new RecordedEvent(nanos, startTime + TimeUnit.NANOSECONDS.toMillis(nanos), level, logger, thread, threadId,
+					markerList, pattern, arguments, keys, values,
+					mdcCount == 0 ? TtyMDCAdapter.Context.EMPTY : new TtyMDCAdapter.Context(mdcKeys, mdcValues),
+					throwable);
+		} catch (EOFException eof) {
+			return null;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private Object value() throws IOException {
+		var type = read();
+		switch (type) {
+		case TYPE_NULL:
+			return null;
+		case TYPE_STRING:
+		case TYPE_OTHER:
+			return string();
+		case TYPE_INT:
+			return unzigzag(varint());
+		case TYPE_LONG:
+			return unzigzag(varlong(read()));
+		case TYPE_DOUBLE:
+			return Double.longBitsToDouble(fixed(8));
+		case TYPE_FLOAT:
+			return Float.intBitsToFloat((int) fixed(4));
+		case TYPE_TRUE:
+			return Boolean.TRUE;
+		case TYPE_FALSE:
+			return Boolean.FALSE;
+		default:
+			throw new IOException("Unknown value type " + type + ".");
+		}
+	}
+
+	private String string() throws IOException {
+		var ref = varint();
+		switch (ref) {
+		case NULL:
+			return null;
+		case DEFINE:
+			var str = utf8();
+			if (stringCount == strings.length) {
+				strings = Arrays.copyOf(strings, strings.length * 2);
+			}
+			strings[stringCount++] = str;
+			return str;
+		case LITERAL:
+			return utf8();
+		default:
+			var id = ref - REFERENCE;
+			if (id >= stringCount) {
+				throw new IOException("Reference to undefined string " + id + ".");
+			}
+			return strings[id];
+		}
+	}
+
+	private String utf8() throws IOException {
+		var len = varint();
+		if (len > buf.length) {
+			buf = new byte[Math.max(len, buf.length * 2)];
+		}
+		if (in.readNBytes(buf, 0, len) != len) {
+			throw new EOFException();
+		}
+		return new String(buf, 0, len, StandardCharsets.UTF_8);
+	}
+
+	private static int unzigzag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private int varint() throws IOException {
+		return (int) varlong(read());
+	}
+
+	private long varlong(int first) throws IOException {
+		var value = (long) (first & 0x7f);
+		var shift = 7;
+		var b = first;
+		while ((b & 0x80) != 0) {
+			b = read();
+			value |= (long) (b & 0x7f) << shift;
+			shift += 7;
+		}
+		return value;
+	}
+
+	private long fixed(int size) throws IOException {
+		var value = 0L;
+		for (int i = 0; i < size; i++) {
+			value = (value << 8) | read();
+		}
+		return value;
+	}
+
+	private int read() throws IOException {
+		var b = in.read();
+		if (b == -1) {
+			throw new EOFException();
+		}
+		return b;
+	}
+}
@@ -0,0 +1,290 @@
+package com.sshtools.slf4jtty;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Marker;
+import org.slf4j.event.Level;
+
+/**
+ * Writes events in a compact binary form, before they are rendered, to be read back by
+ * {@link EventDecoder}.
+ * <p>
+ * The stream starts with a header of the magic bytes <code>SLTE</code>, a version byte
+ * and the time recording started (8 bytes, milliseconds since the epoch). Each event then
+ * follows, and consists of :-
+ * <ul>
+ * <li>Nanoseconds since the previous event (or the start), as a variable length integer.</li>
+ * <li>The level ordinal, as a byte.</li>
+ * <li>Logger name and thread name, as string references.</li>
+ * <li>Thread id, as a zig-zag encoded variable length integer.</li>
+ * <li>Message pattern, as a string reference.</li>
+ * <li>Arguments, as a count followed by each typed value.</li>
+ * <li>Marker names, as a count followed by each string reference.</li>
+ * <li>Key value pairs, as a count followed by each key reference and typed value.</li>
+ * <li>MDC, as a count followed by each key reference and value.</li>
+ * <li>The throwable, if any, as its class name, message and stack frames, followed by
+ * the same for each cause.</li>
+ * </ul>
+ * Strings that repeat (logger names, patterns, keys, stack frames) are interned. The first
+ * time one is written it is defined inline and given the next id, and afterwards only
+ * the id is written. Values that are unlikely to repeat, such as string arguments, are
+ * always written inline. Once {@link #MAX_STRINGS} are interned, any new strings are
+ * written inline, so a stream with an unbounded variety of patterns uses bounded memory
+ * to write and to read.
+ * <p>
+ * Integers are written as variable length, zig-zag encoded where they may be negative.
+ * Arguments of other types are written as the text they would be formatted as.
+ * <p>
+ * This is not thread safe, callers must ensure only one event is written at a time.
+ */
+final class EventEncoder {
+
+	final static byte[] MAGIC = { 'S', 'L', 'T', 'E' };
+	final static int VERSION = 2;
+	/** Bytes in the header, the magic bytes, version and start time */
+	final static int HEADER_LENGTH = MAGIC.length + 1 + 8;
+	final static int MAX_STRINGS = 65536;
+	/** The most throwables in a chain of causes that are written */
+	final static int MAX_CAUSES = 32;
+
+	/* String references. Any larger value is the id of an interned string plus REFERENCE */
+	final static int NULL = 0;
+	final static int DEFINE = 1;
+	final static int LITERAL = 2;
+	final static int REFERENCE = 3;
+
+	/* Value types */
+	final static int TYPE_NULL = 0;
+	final static int TYPE_STRING = 1;
+	final static int TYPE_INT = 2;
+	final static int TYPE_LONG = 3;
+	final static int TYPE_DOUBLE = 4;
+	final static int TYPE_FLOAT = 5;
+	final static int TYPE_TRUE = 6;
+	final static int TYPE_FALSE = 7;
+	final static int TYPE_OTHER = 8;
+
+	private final OutputStream out;
+	private final Map<String, Integer> strings = new HashMap<>();
+	private long last;
+	private byte[] buf = new byte[512];
+	private int len;
+
+	/**
+	 * Constructor. The header is written immediately.
+	 *
+	 * @param out stream to write to
+	 * @param startTime time recording started, in milliseconds since the epoch
+	 * @param startNanos {@link System#nanoTime()} at the same time
+	 * @throws IOException on error
+	 */
+	EventEncoder(OutputStream out, long startTime, long startNanos) throws IOException {
+		this.out = out;
+		this.last = startNanos;
+		bytes(MAGIC, MAGIC.length);
+		write(VERSION);
+		fixed(startTime, 8);
+		flushBuffer();
+	}
+
+	/**
+	 * Write an event.
+	 *
+	 * @param nanos {@link System#nanoTime()} of the event, no earlier than the previous
+	 * @param level level
+	 * @param logger logger name
+	 * @param thread thread name
+	 * @param threadId thread id
+	 * @param markers markers, may be {@code null}
+	 * @param pattern message pattern
+	 * @param arguments arguments with any lazy arguments resolved, may be {@code null}
+	 * @param keys keys of key value pairs
+	 * @param values values of key value pairs
+	 * @param keyValueCount number of key value pairs
+	 * @param mdc MDC
+	 * @param throwable throwable, may be {@code null}
+	 * @return number of bytes written
+	 * @throws IOException on error
+	 */
+	int write(long nanos, Level level, String logger, String thread, long threadId, List<Marker> markers,
+			String pattern, Object[] arguments, String[] keys, Object[] values, int keyValueCount,
+			TtyMDCAdapter.Context mdc, Throwable throwable) throws IOException {
+		varlong(Math.max(0, nanos - last));
+		last = nanos;
+		write(level.ordinal());
+		string(logger);
+		string(thread);
+		varlong(zigzag(threadId));
+		string(pattern);
+
+		if (arguments == null) {
+			varint(0);
+		} else {
+			varint(arguments.length);
+			for (var arg : arguments) {
+				value(arg);
+			}
+		}
+
+		if (markers == null) {
+			varint(0);
+		} else {
+			varint(markers.size());
+			for (var marker : markers) {
+				string(marker.getName());
+			}
+		}
+
+		varint(keyValueCount);
+		for (int i = 0; i < keyValueCount; i++) {
+			string(keys[i]);
+			value(MessageFormatter.resolve(values[i]));
+		}
+
+		varint(mdc.size());
+		for (int i = 0; i < mdc.size(); i++) {
+			string(mdc.key(i));
+			literal(mdc.value(i));
+		}
+
+		var causes = 0;
+		for (var t = throwable; t != null && causes < MAX_CAUSES; t = t.getCause(), causes++) {
+			write(1);
+			string(t.getClass().getName());
+			literal(t.getMessage());
+			var frames = t.getStackTrace();
+			varint(frames.length);
+			for (var frame : frames) {
+				string(frame.getClassLoaderName());
+				string(frame.getModuleName());
+				string(frame.getModuleVersion());
+				string(frame.getClassName());
+				string(frame.getMethodName());
+				string(frame.getFileName());
+				varint(zigzag(frame.getLineNumber()));
+			}
+		}
+		write(0);
+
+		return flushBuffer();
+	}
+
+	private void value(Object value) {
+		if (value == null) {
+			write(TYPE_NULL);
+		} else if (value instanceof String str) {
+			write(TYPE_STRING);
+			literal(str);
+		} else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			write(TYPE_INT);
+			varint(zigzag(((Number) value).intValue()));
+		} else if (value instanceof Long lval) {
+			write(TYPE_LONG);
+			varlong(zigzag(lval));
+		} else if (value instanceof Double dval) {
+			write(TYPE_DOUBLE);
+			fixed(Double.doubleToRawLongBits(dval), 8);
+		} else if (value instanceof Float fval) {
+			write(TYPE_FLOAT);
+			fixed(Float.floatToRawIntBits(fval), 4);
+		} else if (value instanceof Boolean bval) {
+			write(bval ? TYPE_TRUE : TYPE_FALSE);
+		} else {
+			write(TYPE_OTHER);
+			literal(MessageFormatter.basicArrayFormat(null, "{}", new Object[] { value }));
+		}
+	}
+
+	/**
+	 * Write a string that is likely to repeat, interning it if there is room.
+	 */
+	private void string(String str) {
+		if (str == null) {
+			varint(NULL);
+			return;
+		}
+		var id = strings.get(str);
+		if (id != null) {
+			varint(id + REFERENCE);
+		} else if (strings.size() < MAX_STRINGS) {
+			strings.put(str, strings.size());
+			varint(DEFINE);
+			utf8(str);
+		} else {
+			varint(LITERAL);
+			utf8(str);
+		}
+	}
+
+	/**
+	 * Write a string that is unlikely to repeat.
+	 */
+	private void literal(String str) {
+		if (str == null) {
+			varint(NULL);
+		} else {
+			varint(LITERAL);
+			utf8(str);
+		}
+	}
+
+	private void utf8(String str) {
+		var bytes = str.getBytes(StandardCharsets.UTF_8);
+		varint(bytes.length);
+		bytes(bytes, bytes.length);
+	}
+
+	private static int zigzag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private void varint(int value) {
+		varlong(value & 0xffffffffL);
+	}
+
+	private void varlong(long value) {
+		while ((value & ~0x7fL) != 0) {
+			write((int) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		write((int) value);
+	}
+
+	private void fixed(long value, int size) {
+		for (int i = (size - 1) * 8; i >= 0; i -= 8) {
+			write((int) (value >>> i));
+		}
+	}
+
+	private void write(int b) {
+		if (len == buf.length) {
+			buf = Arrays.copyOf(buf, buf.length * 2);
+		}
+		buf[len++] = (byte) b;
+	}
+
+	private void bytes(byte[] bytes, int count) {
+		if (len + count > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + count));
+		}
+		System.arraycopy(bytes, 0, buf, len, count);
+		len += count;
+	}
+
+	private int flushBuffer() throws IOException {
+		var written = len;
+		out.write(buf, 0, len);
+		len = 0;
+		return written;
+	}
+}
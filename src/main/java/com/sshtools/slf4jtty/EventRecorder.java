@@ -0,0 +1,130 @@
+package com.sshtools.slf4jtty;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.slf4j.helpers.Reporter;
+
+/**
+ * Records events, before they are rendered, to a file configured by <code>record-file</code>
+ * in the <code>[log]</code> section, so a real workload may be replayed later by
+ * {@link Replay}.
+ * <p>
+ * Events are recorded once they have passed the level, marker rules, throttles and repeat
+ * suppression, i.e. the events that are actually output. Any lazy arguments are evaluated
+ * when recorded, and the same values are then used to render the event.
+ * <p>
+ * Events are written by the logging thread to a buffer, which is flushed by the
+ * housekeeping task, when the recorder is closed, and when the runtime shuts down. If
+ * writing fails, the error is reported and recording stops.
+ */
+final class EventRecorder implements Closeable {
+
+	private final static int BUFFER_SIZE = 65536;
+
+	private final String file;
+	private final OutputStream out;
+	private final EventEncoder encoder;
+	private final Thread shutdownHook;
+	private boolean closed;
+
+	private EventRecorder(String file) throws IOException {
+		this.file = file;
+		var fileObj = new File(file);
+		var parent = fileObj.getAbsoluteFile().getParentFile();
+		if (!parent.exists() && !parent.mkdirs()) {
+			throw new IOException("Could not create directory " + parent);
+		}
+		out = new BufferedOutputStream(new FileOutputStream(fileObj), BUFFER_SIZE);
+		encoder = new EventEncoder(out, System.currentTimeMillis(), System.nanoTime());
+		shutdownHook = new Thread(this::close, "slf4j-tty-recorder");
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	/**
+	 * Start recording to a file, replacing it if it exists.
+	 *
+	 * @param file file
+	 * @return recorder, or {@code null} if the file could not be opened
+	 */
+	static EventRecorder open(String file) {
+		try {
+			return new EventRecorder(file);
+		} catch (IOException e) {
+			Reporter.error("Could not open [" + file + "] to record events, they will not be recorded.", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Get the file events are recorded to.
+	 *
+	 * @return file
+	 */
+	String file() {
+		return file;
+	}
+
+	/**
+	 * Record an event. Must be called on the thread that logged it.
+	 *
+	 * @param logger logger
+	 * @param event event
+	 */
+	void record(AbstractLogger logger, Event event) {
+		var arguments = event.resolvedArguments();
+		var thread = event.threadName();
+		var mdc = TtyMDCAdapter.context();
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			try {
+				encoder.write(System.nanoTime(), event.level, logger.getName(), thread, event.threadId(), event.markers,
+						event.pattern, arguments, event.keys, event.values, event.keyValueCount, mdc, event.throwable);
+			} catch (IOException | RuntimeException e) {
+				Reporter.error("Failed to record event to [" + file + "], recording has stopped.", e);
+				closeStream();
+			}
+		}
+	}
+
+	/**
+	 * Write any buffered events to the file.
+	 */
+	synchronized void flush() {
+		if (!closed) {
+			try {
+				out.flush();
+			} catch (IOException e) {
+				Reporter.error("Failed to record events to [" + file + "], recording has stopped.", e);
+				closeStream();
+			}
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		if (!closed) {
+			closeStream();
+			try {
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			} catch (IllegalStateException ise) {
+				/* Already shutting down */
+			}
+		}
+	}
+
+	private void closeStream() {
+		closed = true;
+		try {
+			out.close();
+		} catch (IOException e) {
+			Reporter.error("Failed to close [" + file + "].", e);
+		}
+	}
+}
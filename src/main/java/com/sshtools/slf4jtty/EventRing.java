@@ -0,0 +1,210 @@
+package com.sshtools.slf4jtty;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Marker;
+import org.slf4j.event.KeyValuePair;
+import org.slf4j.event.Level;
+
+/**
+ * A fixed size ring of the most recent events that were below the level that is output,
+ * kept when <code>ring-size</code> is set in the <code>[log]</code> section, so the
+ * context leading up to a failure may be output when an <code>ERROR</code> is logged, or
+ * on demand.
+ * <p>
+ * Capturing an event does no formatting at all. The slots are allocated up front, and
+ * the event's pattern, arguments, throwable, markers and MDC are kept by reference. Only
+ * arrays that the caller re-uses, such as those of the fluent API, are copied. Arguments
+ * are therefore formatted with whatever state they have when the ring is output, and the
+ * ring keeps them reachable until their slot is re-used.
+ * <p>
+ * Any number of threads may capture at once without locking. Each capture takes the
+ * next sequence number, then claims its slot by atomically marking it as being written,
+ * and publishes it by writing that number last. If the ring wraps while a slot is being
+ * written, so another capture lands on the same slot, only one of them claims it and the
+ * other is dropped, so a slot never holds parts of two events. An event whose slot is
+ * overwritten while the ring is being output is skipped.
+ */
+final class EventRing {
+
+	private final static long EMPTY = Long.MIN_VALUE;
+	private final static long WRITING = -1;
+	private final static VarHandle SEQUENCE;
+
+	static {
+		try {
+			SEQUENCE = MethodHandles.lookup().findVarHandle(Slot.class, "sequence", long.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private final static class Slot {
+		/** Sequence number of the event in this slot, {@link #WRITING} or {@link #EMPTY} */
+		private volatile long sequence = EMPTY;
+		private long time;
+		private Level level;
+		private AbstractLogger logger;
+		private String thread;
+		private long threadId;
+		private Marker marker;
+		private List<Marker> markers;
+		private String pattern;
+		private Object[] arguments;
+		private Throwable throwable;
+		private String[] keys;
+		private Object[] values;
+		private TtyMDCAdapter.Context mdc;
+	}
+
+	private final static String[] NO_KEYS = new String[0];
+	private final static Object[] NO_VALUES = new Object[0];
+
+	private final Slot[] slots;
+	private final AtomicLong next = new AtomicLong();
+
+	/* Guarded by this */
+	private long output;
+
+	EventRing(int size) {
+		slots = new Slot[size];
+		for (int i = 0; i < size; i++) {
+			slots[i] = new Slot();
+		}
+	}
+
+	/**
+	 * Get the number of events the ring holds.
+	 *
+	 * @return size
+	 */
+	int size() {
+		return slots.length;
+	}
+
+	/**
+	 * Capture an event from the classic API, whose arguments array is not re-used.
+	 */
+	void capture(AbstractLogger logger, Level level, Marker marker, List<Marker> markers, String pattern,
+			Object[] arguments, Throwable throwable, List<KeyValuePair> keyValuePairs) {
+		var keys = NO_KEYS;
+		var values = NO_VALUES;
+		if (keyValuePairs != null && !keyValuePairs.isEmpty()) {
+			keys = new String[keyValuePairs.size()];
+			values = new Object[keys.length];
+			for (int i = 0; i < keys.length; i++) {
+				var kv = keyValuePairs.get(i);
+				keys[i] = kv.key;
+				values[i] = kv.value;
+			}
+		}
+		put(logger, level, marker, markers == null || markers.isEmpty() ? null : List.copyOf(markers), pattern,
+				arguments, throwable, keys, values);
+	}
+
+	/**
+	 * Capture an event built by an {@link EventBuilder}, whose arrays are re-used so are
+	 * copied.
+	 */
+	void capture(AbstractLogger logger, Event event) {
+		var count = event.keyValueCount;
+		put(logger, event.level, null, event.markers == null || event.markers.isEmpty() ? null : List.copyOf(event.markers),
+				event.pattern, event.arguments == null ? null : event.arguments.clone(), event.throwable,
+				count == 0 ? NO_KEYS : Arrays.copyOf(event.keys, count),
+				count == 0 ? NO_VALUES : Arrays.copyOf(event.values, count));
+	}
+
+	private void put(AbstractLogger logger, Level level, Marker marker, List<Marker> markers, String pattern,
+			Object[] arguments, Throwable throwable, String[] keys, Object[] values) {
+		var sequence = next.getAndIncrement();
+		var slot = slots[(int) (sequence % slots.length)];
+		var previous = slot.sequence;
+		if (previous == WRITING || previous > sequence || !SEQUENCE.compareAndSet(slot, previous, WRITING)) {
+			/* Another capture is writing this slot, or has already written a later event to it */
+			return;
+		}
+		slot.time = System.currentTimeMillis();
+		slot.level = level;
+		slot.logger = logger;
+		var thread = Thread.currentThread();
+		slot.thread = thread.getName();
+		slot.threadId = thread.getId();
+		slot.marker = marker;
+		slot.markers = markers;
+		slot.pattern = pattern;
+		slot.arguments = arguments;
+		slot.throwable = throwable;
+		slot.keys = keys;
+		slot.values = values;
+		slot.mdc = TtyMDCAdapter.context();
+		slot.sequence = sequence;
+	}
+
+	/**
+	 * Output every event captured since the ring was last output, oldest first, through
+	 * the logger that captured it. Each is only output once.
+	 *
+	 * @param ctx logging context of the current thread
+	 * @param cfg configuration
+	 * @param internal logger to output a heading with
+	 */
+	synchronized void output(LoggingContext ctx, CompiledConfiguration cfg, AbstractLogger internal) {
+		var end = next.get();
+		var start = Math.max(output, end - slots.length);
+		output = end;
+		if (start == end) {
+			return;
+		}
+
+		internal.innerHandleNormalizedLoggingCall(ctx, cfg, ctx.event.set(Level.INFO, null,
+				"The last {} events below the output level follow", new Object[] { end - start }, null));
+		ctx.clear();
+
+		var mdc = TtyMDCAdapter.context();
+		try {
+			for (var sequence = start; sequence < end; sequence++) {
+				var slot = slots[(int) (sequence % slots.length)];
+				if (slot.sequence != sequence) {
+					continue;
+				}
+				var time = slot.time;
+				var level = slot.level;
+				var logger = slot.logger;
+				var thread = slot.thread;
+				var threadId = slot.threadId;
+				var marker = slot.marker;
+				var markers = slot.markers;
+				var pattern = slot.pattern;
+				var arguments = slot.arguments;
+				var throwable = slot.throwable;
+				var keys = slot.keys;
+				var values = slot.values;
+				var context = slot.mdc;
+				VarHandle.loadLoadFence();
+				if (slot.sequence != sequence) {
+					/* Overwritten while it was being read */
+					continue;
+				}
+
+				var event = ctx.event.set(level, markers, pattern, arguments, throwable)
+						.recorded(time, null, thread, threadId, Caller.UNKNOWN)
+						.keyValuePairs(null);
+				if (marker != null) {
+					event.marker(marker);
+				}
+				for (int i = 0; i < keys.length; i++) {
+					event.addKeyValue(keys[i], values[i]);
+				}
+				TtyMDCAdapter.set(context);
+				logger.innerHandleNormalizedLoggingCall(ctx, cfg, event);
+				ctx.clear();
+			}
+		} finally {
+			TtyMDCAdapter.set(mdc);
+		}
+	}
+}
@@ -0,0 +1,211 @@
+package com.sshtools.slf4jtty;
+
+import org.slf4j.event.Level;
+
+import com.sshtools.slf4jtty.TtyLoggerConfiguration.Format;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Java Flight Recorder events, emitted when <code>jfr</code> is set in the
+ * <code>[log]</code> section, so the cost of logging may be seen alongside GC, I/O and
+ * everything else in the same recording.
+ * <p>
+ * Before creating an event, callers check both the configuration and whether the event
+ * type is enabled in a running recording, so nothing is allocated or timed when
+ * JFR is not recording.
+ */
+final class JfrEvents {
+
+	private final static String CATEGORY = "SLF4J TTY";
+
+	@Name("com.sshtools.slf4jtty.Render")
+	@Label("Render Log Event")
+	@Description("Time taken to render a log event in one format")
+	@Category(CATEGORY)
+	@StackTrace(false)
+	final static class Render extends Event {
+		@Label("Logger")
+		String logger;
+		@Label("Level")
+		String level;
+		@Label("Format")
+		String format;
+		@Label("Characters")
+		int characters;
+	}
+
+	@Name("com.sshtools.slf4jtty.Write")
+	@Label("Write Log Output")
+	@Description("Time taken to write and flush a batch of rendered log events to an output")
+	@Category(CATEGORY)
+	@StackTrace(false)
+	final static class Write extends Event {
+		@Label("Output")
+		String output;
+		@Label("Events")
+		int events;
+		@Label("Characters")
+		int characters;
+		@Label("Bytes")
+		int bytes;
+	}
+
+	@Name("com.sshtools.slf4jtty.LockWait")
+	@Label("Log Output Wait")
+	@Description("Time a thread waited to write to an output, either for its lock or for another thread to write on its behalf")
+	@Category(CATEGORY)
+	@Threshold("1 ms")
+	final static class LockWait extends Event {
+		@Label("Output")
+		String output;
+	}
+
+	@Name("com.sshtools.slf4jtty.Dropped")
+	@Label("Log Events Dropped")
+	@Description("Events of a level were dropped because the output could not keep up")
+	@Category(CATEGORY)
+	@StackTrace(false)
+	final static class Dropped extends Event {
+		@Label("Output")
+		String output;
+		@Label("Level")
+		String level;
+		@Label("Count")
+		long count;
+		@Label("Seconds")
+		long seconds;
+	}
+
+	@Name("com.sshtools.slf4jtty.Log")
+	@Label("Log Event")
+	@Description("A log event that was output, without its message being formatted")
+	@Category(CATEGORY)
+	@StackTrace(false)
+	final static class Log extends Event {
+		@Label("Logger")
+		String logger;
+		@Label("Level")
+		String level;
+		@Label("Pattern")
+		String pattern;
+		@Label("Throwable")
+		Class<?> throwable;
+	}
+
+	final static EventType RENDER = EventType.getEventType(Render.class);
+	final static EventType WRITE = EventType.getEventType(Write.class);
+	final static EventType LOCK_WAIT = EventType.getEventType(LockWait.class);
+	final static EventType DROPPED = EventType.getEventType(Dropped.class);
+	final static EventType LOG = EventType.getEventType(Log.class);
+
+	private JfrEvents() {
+	}
+
+	/**
+	 * Start timing the rendering of an event.
+	 *
+	 * @return event, or {@code null} if not recording
+	 */
+	static Render beginRender() {
+		if (!RENDER.isEnabled()) {
+			return null;
+		}
+		var jfr = new Render();
+		jfr.begin();
+		return jfr;
+	}
+
+	static void endRender(Render jfr, String logger, Level level, Format format, int characters) {
+		jfr.end();
+		if (jfr.shouldCommit()) {
+			jfr.logger = logger;
+			jfr.level = level.name();
+			jfr.format = format.name();
+			jfr.characters = characters;
+			jfr.commit();
+		}
+	}
+
+	/**
+	 * Start timing a write to an output.
+	 *
+	 * @return event, or {@code null} if not recording
+	 */
+	static Write beginWrite() {
+		if (!WRITE.isEnabled()) {
+			return null;
+		}
+		var jfr = new Write();
+		jfr.begin();
+		return jfr;
+	}
+
+	static void endWrite(Write jfr, String output, int events, int characters, int bytes) {
+		jfr.end();
+		if (jfr.shouldCommit()) {
+			jfr.output = output;
+			jfr.events = events;
+			jfr.characters = characters;
+			jfr.bytes = bytes;
+			jfr.commit();
+		}
+	}
+
+	/**
+	 * Start timing a wait to write to an output.
+	 *
+	 * @return event, or {@code null} if not recording
+	 */
+	static LockWait beginLockWait() {
+		if (!LOCK_WAIT.isEnabled()) {
+			return null;
+		}
+		var jfr = new LockWait();
+		jfr.begin();
+		return jfr;
+	}
+
+	static void endLockWait(LockWait jfr, String output) {
+		jfr.end();
+		if (jfr.shouldCommit()) {
+			jfr.output = output;
+			jfr.commit();
+		}
+	}
+
+	static void dropped(String output, Level level, long count, long seconds) {
+		if (DROPPED.isEnabled()) {
+			var jfr = new Dropped();
+			jfr.output = output;
+			jfr.level = level.name();
+			jfr.count = count;
+			jfr.seconds = seconds;
+			jfr.commit();
+		}
+	}
+
+	/**
+	 * Emit an event that is being output as a JFR event, without formatting it.
+	 *
+	 * @param logger logger name
+	 * @param event event
+	 */
+	static void log(String logger, com.sshtools.slf4jtty.Event event) {
+		if (LOG.isEnabled()) {
+			var jfr = new Log();
+			jfr.logger = logger;
+			jfr.level = event.level.name();
+			jfr.pattern = event.pattern;
+			jfr.throwable = event.throwable == null ? null : event.throwable.getClass();
+			jfr.commit();
+		}
+	}
+}
@@ -1,12 +1,9 @@
 package com.sshtools.slf4jtty;
 
-import java.io.PrintStream;
-import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.atomic.AtomicInteger;
 
-import org.slf4j.Marker;
-import org.slf4j.event.Level;
+import com.sshtools.slf4jtty.TtyLoggerConfiguration.Format;
+
 
 public class JsonLogger extends AbstractLogger {
 
@@ -17,7 +14,12 @@ public class JsonLogger extends AbstractLogger {
     	super(name, loggerConfiguration);
     }
 
-    protected void writeThrowable(Throwable t, PrintStream targetStream) {
+    @Override
+    Format format(CompiledConfiguration cfg) {
+    	return Format.JSON;
+    }
+
+    static void appendThrowable(AbstractLogger logger, Throwable t, StringBuilder buf) {
 //        if (t != null) {
 //        	/* TODO configurable exception printing colors */
 //        	Throwable nex = t;
@@ -61,98 +63,199 @@ public class JsonLogger extends AbstractLogger {
 //				nex = nex.getCause();
 //			}
 //
-//            targetStream.print(report.toAttributedString().toAnsi(loggerConfiguration.forceANSI ? null : loggerConfiguration.terminal()));
+//            buf.append(report.toAttributedString().toAnsi(loggerConfiguration.forceANSI ? null : loggerConfiguration.terminal()));
 //        }
     }
 
-    @Override
-    protected void innerHandleNormalizedLoggingCall(Level level, List<Marker> markers, String messagePattern, Object[] arguments, Throwable t) {
+    /**
+     * Render an event as a single JSON object.
+     * 
+     * @param logger logger
+     * @param cfg configuration
+     * @param event event
+     * @param buf buffer to render to
+     */
+    static void render(AbstractLogger logger, CompiledConfiguration cfg, Event event, StringBuilder buf) {
 
-        StringBuilder buf = new StringBuilder(32);
         buf.append('{');
 
-    	AtomicInteger fieldIdx = new AtomicInteger();
-		for (String field : loggerConfiguration.layout) {
+        /* Lazy arguments appear in both the message and the argN members, evaluate them once */
+        var arguments = event.resolvedArguments();
 
-			if (field.equals("date-time")) {
-				if (loggerConfiguration.dateFormatter != null) {
-					appendField(buf, field, getFormattedDate(), fieldIdx);
-				} else {
-					appendField(buf, field, String.valueOf(System.currentTimeMillis() - START_TIME), fieldIdx);
-				}
-			}
-			else if (field.equals("thread-name")) {
-				appendField(buf, field, Thread.currentThread().getName(), fieldIdx);
-			}
-			else if (field.equals("thread-id")) {
-				appendField(buf, field, String.valueOf(Thread.currentThread().getId()), fieldIdx);
-			}
-			else if (field.equals("level")) {
-				appendField(buf, field, level.name(), fieldIdx);
-			}
-			else if (field.equals("short-name")) {
-	            if (shortLogName == null) {
-					shortLogName = computeShortName();
-				}
-				appendField(buf, field, shortLogName, fieldIdx);
-			}
-			else if (field.equals("name")) {
-				appendField(buf, field, name, fieldIdx);
+		for (var field : cfg.layout) {
+			switch(field.type()) {
+			case DATE_TIME:
+				appendField(buf, field.name(), event.date(cfg));
+				break;
+			case THREAD_NAME:
+				appendField(buf, field.name(), event.threadName());
+				break;
+			case THREAD_ID:
+				appendField(buf, field.name(), event.threadIdText());
+				break;
+			case LEVEL:
+				appendField(buf, field.name(), event.level.name());
+				break;
+			case SHORT_NAME:
+				appendField(buf, field.name(), logger.shortName());
+				break;
+			case NAME:
+				appendField(buf, field.name(), logger.getName());
+				break;
+			case MESSAGE:
+				String str = event.message(null, Integer.MAX_VALUE);
+				appendField(buf, field.name(), str);
+				break;
+			case MARKERS:
+				appendField(buf, field.name(), MarkerRules.names(event.markers));
+				break;
+			case MDC:
+				appendMdc(cfg, buf, field.name(), TtyMDCAdapter.context());
+				break;
+			case KV:
+				appendKeyValues(buf, field.name(), event);
+				break;
+			case CALLER_CLASS:
+				appendField(buf, field.name(), event.caller().className());
+				break;
+			case CALLER_METHOD:
+				appendField(buf, field.name(), event.caller().methodName());
+				break;
+			case CALLER_LINE:
+				var lineNumber = event.caller().lineNumber();
+				appendField(buf, field.name(), lineNumber < 0 ? null : lineNumber);
+				break;
+			case CALLER_FILE:
+				appendField(buf, field.name(), event.caller().fileName());
+				break;
 			}
-			else if (field.equals("message")) {
-				String str = MessageFormatter.basicArrayFormat(null, messagePattern, arguments);
-				appendField(buf, field, str, fieldIdx);
-			}
-			else if (field.equals("markers")) {
-				if(markers == null) {
-					appendField(buf, field, "", fieldIdx);
-				} else {
-					appendField(buf, field, String.join(",", markers.stream().map(Marker::getName).toList()) , fieldIdx);
-				}
-			}
-
 		}
 
-		appendField(buf, "pattern", messagePattern, fieldIdx);
+		appendField(buf, "pattern", event.pattern);
 		if(arguments != null) {
 			for(int i = 0 ; i < arguments.length ; i++) {
-				appendField(buf, "arg" + i,  arguments[i], fieldIdx);
+				appendField(buf, "arg" + i,  arguments[i]);
 			}
 		}
 
         buf.append('}');
-
-        write(buf, t);
     }
 
-	private void appendField(StringBuilder buf, String field, Object value, AtomicInteger fieldIdx) {
+	private static void appendMdc(CompiledConfiguration cfg, StringBuilder buf, String field, TtyMDCAdapter.Context mdc) {
 		if(buf.length() > 1)
 			buf.append(",");
 		buf.append("\"");
-		buf.append(escape(field));
+		appendEscaped(buf, field);
+		buf.append("\":{");
+		var first = true;
+		if(cfg.mdcKeys.length == 0) {
+			for(int i = 0 ; i < mdc.size(); i++) {
+				first = appendMember(buf, first, mdc.key(i), mdc.value(i));
+			}
+		}
+		else {
+			for(var key : cfg.mdcKeys) {
+				var value = mdc.get(key);
+				if(value != null) {
+					first = appendMember(buf, first, key, value);
+				}
+			}
+		}
+		buf.append('}');
+	}
+	
+	private static void appendKeyValues(StringBuilder buf, String field, Event event) {
+		if(buf.length() > 1)
+			buf.append(",");
+		buf.append("\"");
+		appendEscaped(buf, field);
+		buf.append("\":{");
+		for(int i = 0 ; i < event.keyValueCount; i++) {
+			appendMember(buf, i == 0, event.keys[i], event.values[i]);
+		}
+		buf.append('}');
+	}
+	
+	private static boolean appendMember(StringBuilder buf, boolean first, String key, Object value) {
+		if(!first)
+			buf.append(",");
+		buf.append("\"");
+		appendEscaped(buf, key);
+		buf.append("\":");
+		appendValue(buf, value);
+		return false;
+	}
+
+	/**
+	 * Append a member to the object being rendered.
+	 * 
+	 * @param buf buffer
+	 * @param field member name
+	 * @param value value
+	 */
+	static void appendField(StringBuilder buf, String field, Object value) {
+		if(buf.length() > 1)
+			buf.append(",");
+		buf.append("\"");
+		appendEscaped(buf, field);
 		buf.append("\":");
+		appendValue(buf, value);
+	}
+	
+	private static void appendValue(StringBuilder buf, Object value) {
+		value = MessageFormatter.resolve(value);
 		if(value == null)
 			buf.append("null");
 		else if(value instanceof Boolean b)
 			buf.append(b);
-		else if(value instanceof Number n)
+		else if(value instanceof Number n && finite(n))
 			buf.append(n);
 		else {
 			buf.append("\"");
-			buf.append(escape(value.toString()));
+			appendEscaped(buf, value.toString());
 			buf.append("\"");
 		}
-		fieldIdx.incrementAndGet();
 	}
 	
-	private String escape(String text) {
-		return text.replace("\\", "\\\\").
-				replace("\"", "\\\"").
-				replace("\n", "\\n").
-				replace("\r", "\\r").
-				replace("\f", "\\f").
-				replace("\t", "\\t").
-				replace("\b", "\\b");
+	private static boolean finite(Number n) {
+		if(n instanceof Double d)
+			return Double.isFinite(d);
+		else if(n instanceof Float f)
+			return Float.isFinite(f);
+		else
+			return true;
+	}
+	
+	private static void appendEscaped(StringBuilder buf, String text) {
+		for(int i = 0 ; i < text.length(); i++) {
+			var ch = text.charAt(i);
+			switch(ch) {
+			case '\\':
+				buf.append("\\\\");
+				break;
+			case '"':
+				buf.append("\\\"");
+				break;
+			case '\n':
+				buf.append("\\n");
+				break;
+			case '\r':
+				buf.append("\\r");
+				break;
+			case '\f':
+				buf.append("\\f");
+				break;
+			case '\t':
+				buf.append("\\t");
+				break;
+			case '\b':
+				buf.append("\\b");
+				break;
+			default:
+				buf.append(ch);
+				break;
+			}
+		}
 	}
 
 }
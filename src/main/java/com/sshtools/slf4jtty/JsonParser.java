@@ -0,0 +1,237 @@
+package com.sshtools.slf4jtty;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal parser for the JSON written by {@link JsonLogger}, one object per line.
+ * <p>
+ * Objects are parsed as a {@link Map} in the order of their members, and arrays as a
+ * {@link List}. Whole numbers are parsed as {@link Long} (or {@link Double} if too large),
+ * other numbers as {@link Double}, and <code>true</code>, <code>false</code> and
+ * <code>null</code> as {@link Boolean} and {@code null}.
+ */
+final class JsonParser {
+
+	private final String text;
+	private int pos;
+
+	private JsonParser(String text) {
+		this.text = text;
+	}
+
+	/**
+	 * Parse a line containing a single JSON object.
+	 *
+	 * @param line line
+	 * @return object
+	 * @throws IllegalArgumentException if the line is not a JSON object
+	 */
+	static Map<String, Object> object(String line) {
+		var parser = new JsonParser(line);
+		parser.whitespace();
+		if (parser.peek() != '{') {
+			throw parser.error("Expected object");
+		}
+		var object = parser.object();
+		parser.whitespace();
+		if (parser.pos != line.length()) {
+			throw parser.error("Unexpected trailing content");
+		}
+		return object;
+	}
+
+	private Object value() {
+		whitespace();
+		var ch = peek();
+		switch (ch) {
+		case '{':
+			return object();
+		case '[':
+			return array();
+		case '"':
+			return string();
+		case 't':
+			return literal("true", Boolean.TRUE);
+		case 'f':
+			return literal("false", Boolean.FALSE);
+		case 'n':
+			return literal("null", null);
+		default:
+			if (ch == '-' || (ch >= '0' && ch <= '9')) {
+				return number();
+			}
+			throw error("Unexpected character");
+		}
+	}
+
+	private Map<String, Object> object() {
+		pos++;
+		var map = new LinkedHashMap<String, Object>();
+		whitespace();
+		if (peek() == '}') {
+			pos++;
+			return map;
+		}
+		while (true) {
+			whitespace();
+			if (peek() != '"') {
+				throw error("Expected member name");
+			}
+			var key = string();
+			whitespace();
+			expect(':');
+			map.put(key, value());
+			whitespace();
+			var ch = next();
+			if (ch == '}') {
+				return map;
+			} else if (ch != ',') {
+				throw error("Expected , or }");
+			}
+		}
+	}
+
+	private List<Object> array() {
+		pos++;
+		var list = new ArrayList<Object>();
+		whitespace();
+		if (peek() == ']') {
+			pos++;
+			return list;
+		}
+		while (true) {
+			list.add(value());
+			whitespace();
+			var ch = next();
+			if (ch == ']') {
+				return list;
+			} else if (ch != ',') {
+				throw error("Expected , or ]");
+			}
+		}
+	}
+
+	private String string() {
+		pos++;
+		var start = pos;
+		/* Most strings have no escapes, so can be taken as they are */
+		while (pos < text.length()) {
+			var ch = text.charAt(pos);
+			if (ch == '"') {
+				return text.substring(start, pos++);
+			} else if (ch == '\\') {
+				break;
+			}
+			pos++;
+		}
+		var buf = new StringBuilder(text.length() - start).append(text, start, pos);
+		while (true) {
+			var ch = next();
+			if (ch == '"') {
+				return buf.toString();
+			} else if (ch == '\\') {
+				var esc = next();
+				switch (esc) {
+				case 'n':
+					buf.append('\n');
+					break;
+				case 'r':
+					buf.append('\r');
+					break;
+				case 't':
+					buf.append('\t');
+					break;
+				case 'b':
+					buf.append('\b');
+					break;
+				case 'f':
+					buf.append('\f');
+					break;
+				case 'u':
+					if (pos + 4 > text.length()) {
+						throw error("Truncated escape");
+					}
+					try {
+						buf.append((char) Integer.parseInt(text, pos, pos + 4, 16));
+					} catch (NumberFormatException nfe) {
+						throw error("Invalid escape");
+					}
+					pos += 4;
+					break;
+				default:
+					buf.append(esc);
+					break;
+				}
+			} else {
+				buf.append(ch);
+			}
+		}
+	}
+
+	private Object number() {
+		var start = pos;
+		var decimal = false;
+		while (pos < text.length()) {
+			var ch = text.charAt(pos);
+			if (ch == '.' || ch == 'e' || ch == 'E') {
+				decimal = true;
+			} else if (!(ch == '-' || ch == '+' || (ch >= '0' && ch <= '9'))) {
+				break;
+			}
+			pos++;
+		}
+		var str = text.substring(start, pos);
+		try {
+			if (!decimal) {
+				try {
+					return Long.parseLong(str);
+				} catch (NumberFormatException nfe) {
+					/* Too large, fall through to a double */
+				}
+			}
+			return Double.parseDouble(str);
+		} catch (NumberFormatException nfe) {
+			throw error("Invalid number");
+		}
+	}
+
+	private Object literal(String literal, Object value) {
+		if (!text.startsWith(literal, pos)) {
+			throw error("Unexpected character");
+		}
+		pos += literal.length();
+		return value;
+	}
+
+	private void expect(char ch) {
+		if (next() != ch) {
+			throw error("Expected " + ch);
+		}
+	}
+
+	private void whitespace() {
+		while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+			pos++;
+		}
+	}
+
+	private char peek() {
+		if (pos >= text.length()) {
+			throw error("Unexpected end");
+		}
+		return text.charAt(pos);
+	}
+
+	private char next() {
+		var ch = peek();
+		pos++;
+		return ch;
+	}
+
+	private IllegalArgumentException error(String message) {
+		return new IllegalArgumentException(message + " at " + pos + ".");
+	}
+}
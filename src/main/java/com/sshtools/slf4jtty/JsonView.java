@@ -0,0 +1,446 @@
+package com.sshtools.slf4jtty;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+import org.slf4j.Marker;
+import org.slf4j.event.Level;
+import org.slf4j.helpers.BasicMarkerFactory;
+
+import com.sshtools.slf4jtty.CompiledConfiguration.FieldType;
+import com.sshtools.slf4jtty.TtyLoggerConfiguration.Format;
+
+/**
+ * Renders NDJSON written by an output in the {@link Format#JSON} format through the
+ * current configuration, with the same layout, widths and styles as {@link TtyLogger}
+ * gives on the console.
+ * <p>
+ * Members are matched to fields by name, so the file does not need to have been written
+ * with the same layout. The message is rebuilt from the <code>pattern</code> and
+ * <code>argN</code> members, so parameters are styled as they would have been. The date
+ * is shown as it was written, rather than formatted again. Lines that are not JSON
+ * objects are written as they are, unless filtering.
+ * <p>
+ * Files are streamed, so may be of any size, and are decompressed if they are gzipped.
+ * Lines are read in chunks, which are parsed, filtered and rendered in parallel, and
+ * written in their original order.
+ * <p>
+ * Any arguments without <code>=</code> are files, which are rendered one after another,
+ * otherwise standard input is rendered. Other arguments are options given as
+ * <code>name=value</code>.
+ * <ul>
+ * <li><code>format</code>, one of <code>AUTO</code>, <code>ANSI</code> or
+ * <code>PLAIN</code>. Defaults to the configured format, or <code>AUTO</code> if that is
+ * <code>JSON</code> or <code>BINARY</code>.</li>
+ * <li><code>width</code>, the width to render, defaults to the configured width.</li>
+ * <li><code>level</code>, the lowest level to show.</li>
+ * <li><code>logger</code>, a comma separated list of logger names, only events from these
+ * loggers (or loggers under them) are shown.</li>
+ * <li><code>from</code> and <code>to</code>, only events at or after and at or before these
+ * times are shown. These are given in the configured date format, or as milliseconds
+ * since start up if there is none, the same as the <code>date-time</code> field.</li>
+ * <li><code>threads</code>, the number of threads to render with, defaults to the number
+ * of processors.</li>
+ * </ul>
+ */
+public final class JsonView {
+
+	private final static int BUFFER_SIZE = 65536;
+	/** Approximate number of characters of input in each chunk */
+	private final static int CHUNK_SIZE = 1024 * 1024;
+	private final static long UNKNOWN_TIME = Long.MIN_VALUE;
+
+	private final TtyLoggerConfiguration cfg;
+	private final CompiledConfiguration compiled;
+	private final Format format;
+	private final int width;
+	private final int level;
+	private final String[] loggers;
+	private final long from;
+	private final long to;
+	private final int threads;
+	private final ThreadLocal<DateFormat> dateFormat;
+	private final Map<String, TtyLogger> loggerCache = new ConcurrentHashMap<>();
+	private final BasicMarkerFactory markers = new BasicMarkerFactory();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param cfg configuration to render with
+	 * @param format format, one of {@link Format#AUTO}, {@link Format#ANSI} or {@link Format#PLAIN}
+	 * @param width width
+	 * @param level lowest level to show, or {@code null} for all
+	 * @param loggers logger names to show, or an empty array for all
+	 * @param from time of the earliest event to show, in the configured date format, or {@code null}
+	 * @param to time of the latest event to show, in the configured date format, or {@code null}
+	 * @param threads number of threads to render with
+	 */
+	JsonView(TtyLoggerConfiguration cfg, Format format, int width, Level level, String[] loggers, String from,
+			String to, int threads) {
+		if (format == Format.JSON || format == Format.BINARY) {
+			throw new IllegalArgumentException("Cannot view in the " + format + " format.");
+		}
+		this.cfg = cfg;
+		this.compiled = cfg.compiled;
+		this.format = format;
+		this.width = width;
+		this.level = level == null ? Level.TRACE.toInt() : level.toInt();
+		this.loggers = loggers;
+		this.threads = Math.max(1, threads);
+		var formatter = compiled.dateFormatter;
+		dateFormat = formatter == null ? null : ThreadLocal.withInitial(() -> (DateFormat) formatter.clone());
+		this.from = from == null ? UNKNOWN_TIME : bound(from);
+		this.to = to == null ? UNKNOWN_TIME : bound(to);
+	}
+
+	public static void main(String[] args) throws Exception {
+		var files = new ArrayList<String>();
+		var options = new LinkedHashMap<String, String>();
+		for (var arg : args) {
+			var idx = arg.indexOf('=');
+			if (idx == -1) {
+				files.add(arg);
+			} else {
+				options.put(arg.substring(0, idx), arg.substring(idx + 1));
+			}
+		}
+
+		var cfg = TtyLoggerConfiguration.get();
+		var compiled = cfg.compiled;
+		var configured = compiled.format == Format.JSON || compiled.format == Format.BINARY ? Format.AUTO : compiled.format;
+		var format = Format.valueOf(options.getOrDefault("format", configured.name()));
+		var width = Integer.parseInt(options.getOrDefault("width", String.valueOf(compiled.width)));
+		var level = options.containsKey("level") ? Level.valueOf(options.get("level").toUpperCase()) : null;
+		var loggers = options.containsKey("logger") ? options.get("logger").split(",") : new String[0];
+		var threads = Integer.parseInt(options.getOrDefault("threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+		var view = new JsonView(cfg, format, width, level, loggers, options.get("from"), options.get("to"), threads);
+
+		var out = new BufferedWriter(new OutputStreamWriter(System.out), BUFFER_SIZE);
+		if (files.isEmpty()) {
+			view.render(System.in, out);
+		} else {
+			for (var file : files) {
+				try (var in = new FileInputStream(file)) {
+					view.render(in, out);
+				}
+			}
+		}
+		out.flush();
+	}
+
+	/**
+	 * Render all records in a stream, which is decompressed if it is gzipped.
+	 *
+	 * @param in stream to read
+	 * @param out writer to write rendered events to
+	 * @throws IOException on error
+	 */
+	void render(InputStream in, Writer out) throws IOException {
+		if (format == Format.AUTO) {
+			/* Create the terminal now, rather than racing to from each thread */
+			cfg.terminal();
+		}
+		var reader = new BufferedReader(new InputStreamReader(decompress(in), StandardCharsets.UTF_8), BUFFER_SIZE);
+		var executor = Executors.newFixedThreadPool(threads, r -> {
+			var thread = new Thread(r, "slf4j-tty-view");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			/* Chunks are written in the order they were read, keeping just enough in flight to keep every thread busy */
+			var pending = new ArrayDeque<Future<String>>();
+			var chunk = new ArrayList<String>();
+			var size = 0;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				chunk.add(line);
+				size += line.length();
+				if (size >= CHUNK_SIZE) {
+					if (pending.size() == threads * 2) {
+						out.write(take(pending.poll()));
+					}
+					var lines = chunk;
+					pending.add(executor.submit(() -> render(lines)));
+					chunk = new ArrayList<>();
+					size = 0;
+				}
+			}
+			if (!chunk.isEmpty()) {
+				var lines = chunk;
+				pending.add(executor.submit(() -> render(lines)));
+			}
+			while (!pending.isEmpty()) {
+				out.write(take(pending.poll()));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Render a chunk of lines.
+	 *
+	 * @param lines lines
+	 * @return rendered text
+	 */
+	String render(List<String> lines) {
+		var buf = new StringBuilder();
+		var filtering = level > Level.TRACE.toInt() || loggers.length > 0 || from != UNKNOWN_TIME || to != UNKNOWN_TIME;
+		for (var line : lines) {
+			if (line.isBlank()) {
+				continue;
+			}
+			Map<String, Object> record;
+			try {
+				record = JsonParser.object(line);
+			} catch (IllegalArgumentException iae) {
+				if (!filtering) {
+					buf.append(line).append(System.lineSeparator());
+				}
+				continue;
+			}
+			render(record, buf);
+		}
+		return buf.toString();
+	}
+
+	private void render(Map<String, Object> record, StringBuilder buf) {
+		var eventLevel = Level.INFO;
+		String date = null;
+		var thread = "?";
+		var threadId = -1L;
+		String name = null;
+		String shortName = null;
+		String message = null;
+		List<Marker> markerList = List.of();
+		Map<?, ?> mdc = Map.of();
+		Map<?, ?> kv = Map.of();
+		String callerClass = null;
+		String callerMethod = null;
+		String callerFile = null;
+		var callerLine = -1;
+		var hasCaller = false;
+
+		for (var en : record.entrySet()) {
+			var type = FieldType.of(en.getKey());
+			if (type == null) {
+				continue;
+			}
+			var value = en.getValue();
+			switch (type) {
+			case DATE_TIME:
+				date = text(value);
+				break;
+			case THREAD_NAME:
+				thread = text(value);
+				break;
+			case THREAD_ID:
+				if (value instanceof Number n) {
+					threadId = n.longValue();
+				} else {
+					try {
+						threadId = Long.parseLong(text(value));
+					} catch (NumberFormatException nfe) {
+						/* Not a thread id, leave as not known */
+					}
+				}
+				break;
+			case LEVEL:
+				try {
+					eventLevel = Level.valueOf(text(value));
+				} catch (IllegalArgumentException iae) {
+					/* Not a level, leave as INFO */
+				}
+				break;
+			case SHORT_NAME:
+				shortName = text(value);
+				break;
+			case NAME:
+				name = text(value);
+				break;
+			case MESSAGE:
+				message = text(value);
+				break;
+			case MARKERS:
+				var names = text(value);
+				if (!names.isEmpty()) {
+					markerList = new ArrayList<>();
+					for (var marker : names.split(",")) {
+						markerList.add(markers.getDetachedMarker(marker));
+					}
+				}
+				break;
+			case MDC:
+				if (value instanceof Map<?, ?> map) {
+					mdc = map;
+				}
+				break;
+			case KV:
+				if (value instanceof Map<?, ?> map) {
+					kv = map;
+				}
+				break;
+			case CALLER_CLASS:
+				callerClass = text(value);
+				hasCaller = true;
+				break;
+			case CALLER_METHOD:
+				callerMethod = text(value);
+				hasCaller = true;
+				break;
+			case CALLER_FILE:
+				callerFile = text(value);
+				hasCaller = true;
+				break;
+			case CALLER_LINE:
+				if (value instanceof Number n) {
+					callerLine = n.intValue();
+				}
+				hasCaller = true;
+				break;
+			default:
+				break;
+			}
+		}
+
+		var logger = name == null ? (shortName == null ? "?" : shortName) : name;
+		if (!show(eventLevel, logger, date)) {
+			return;
+		}
+
+		String pattern;
+		Object[] arguments;
+		if (record.get("pattern") instanceof String str) {
+			pattern = str;
+			var count = 0;
+			while (record.containsKey("arg" + count)) {
+				count++;
+			}
+			arguments = new Object[count];
+			for (int i = 0; i < count; i++) {
+				arguments[i] = record.get("arg" + i);
+			}
+		} else {
+			pattern = message == null ? "" : message;
+			arguments = null;
+		}
+
+		var mdcKeys = new String[mdc.size()];
+		var mdcValues = new String[mdc.size()];
+		var idx = 0;
+		for (var en : mdc.entrySet()) {
+			mdcKeys[idx] = String.valueOf(en.getKey());
+			mdcValues[idx++] = text(en.getValue());
+		}
+		var keys = new String[kv.size()];
+		var values = new Object[kv.size()];
+		idx = 0;
+		for (var en : kv.entrySet()) {
+			keys[idx] = String.valueOf(en.getKey());
+			values[idx++] = en.getValue();
+		}
+
+		var caller = hasCaller
+				? new Caller(callerClass == null ? "?" : callerClass, callerMethod == null ? "?" : callerMethod,
+						callerFile == null ? "?" : callerFile, callerLine, callerLine < 0 ? "?" : String.valueOf(callerLine))
+				: Caller.UNKNOWN;
+		var event = new RecordedEvent(0, 0, eventLevel, logger, thread, threadId, markerList, pattern, arguments, keys, values,
+				mdcKeys.length == 0 ? TtyMDCAdapter.Context.EMPTY : new TtyMDCAdapter.Context(mdcKeys, mdcValues), null);
+		buf.append(loggerCache.computeIfAbsent(logger, n -> new TtyLogger(n, cfg)).render(compiled, event,
+				date == null ? "?" : date, caller, format, width));
+	}
+
+	private boolean show(Level eventLevel, String logger, String date) {
+		if (eventLevel.toInt() < level) {
+			return false;
+		}
+		if (loggers.length > 0) {
+			var matched = false;
+			for (var prefix : loggers) {
+				if (logger.equals(prefix) || (logger.startsWith(prefix) && logger.charAt(prefix.length()) == '.')) {
+					matched = true;
+					break;
+				}
+			}
+			if (!matched) {
+				return false;
+			}
+		}
+		if (from != UNKNOWN_TIME || to != UNKNOWN_TIME) {
+			var time = date == null ? UNKNOWN_TIME : time(date);
+			if (time == UNKNOWN_TIME || (from != UNKNOWN_TIME && time < from) || (to != UNKNOWN_TIME && time > to)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private long time(String date) {
+		try {
+			if (dateFormat == null) {
+				return Long.parseLong(date.trim());
+			}
+			return dateFormat.get().parse(date.trim()).getTime();
+		} catch (ParseException | NumberFormatException e) {
+			return UNKNOWN_TIME;
+		}
+	}
+
+	private long bound(String date) {
+		var time = time(date);
+		if (time == UNKNOWN_TIME) {
+			throw new IllegalArgumentException("'" + date + "' is not in the same format as the date-time field.");
+		}
+		return time;
+	}
+
+	private static String text(Object value) {
+		return value == null ? "" : value.toString();
+	}
+
+	private static InputStream decompress(InputStream in) throws IOException {
+		var buffered = new BufferedInputStream(in, BUFFER_SIZE);
+		buffered.mark(2);
+		var magic = buffered.read() | (buffered.read() << 8);
+		buffered.reset();
+		return magic == GZIPInputStream.GZIP_MAGIC ? new GZIPInputStream(buffered, BUFFER_SIZE) : buffered;
+	}
+
+	private static String take(Future<String> chunk) throws IOException {
+		try {
+			return chunk.get();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException ee) {
+			var cause = ee.getCause();
+			if (cause instanceof RuntimeException re) {
+				throw re;
+			} else if (cause instanceof Error err) {
+				throw err;
+			}
+			throw new IOException(cause);
+		}
+	}
+}
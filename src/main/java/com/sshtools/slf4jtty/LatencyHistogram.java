@@ -0,0 +1,95 @@
+package com.sshtools.slf4jtty;
+
+/**
+ * A histogram of latencies in nanoseconds, with buckets that grow exponentially and
+ * are each split into 32 linear sub-buckets, so any value is recorded to within about
+ * 3%. Recording is an array increment, and not thread safe, so each thread keeps its
+ * own and they are merged afterwards.
+ */
+final class LatencyHistogram {
+
+	private final static int SUB_BITS = 5;
+	private final static int SUB = 1 << SUB_BITS;
+
+	private final long[] counts = new long[(Long.SIZE - SUB_BITS + 1) * SUB];
+	private long total;
+	private long max;
+
+	void record(long nanos) {
+		counts[index(Math.max(0, nanos), SUB_BITS)]++;
+		total++;
+		if (nanos > max) {
+			max = nanos;
+		}
+	}
+
+	void add(LatencyHistogram other) {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] += other.counts[i];
+		}
+		total += other.total;
+		max = Math.max(max, other.max);
+	}
+
+	long count() {
+		return total;
+	}
+
+	long max() {
+		return max;
+	}
+
+	/**
+	 * Get the value at a percentile, as the lower bound of the bucket it falls in.
+	 *
+	 * @param percentile percentile, from 0 to 100
+	 * @return value in nanoseconds
+	 */
+	long percentile(double percentile) {
+		if (total == 0) {
+			return 0;
+		}
+		var target = Math.max(1, (long) Math.ceil(total * percentile / 100d));
+		var seen = 0L;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= target) {
+				return value(i, SUB_BITS);
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Get the index of the bucket a value falls in, when each power of two is split into
+	 * the given number of sub-buckets.
+	 *
+	 * @param value value, zero or more
+	 * @param subBits log2 of the number of sub-buckets
+	 * @return index
+	 */
+	static int index(long value, int subBits) {
+		var sub = 1 << subBits;
+		if (value < sub) {
+			return (int) value;
+		}
+		var shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - subBits;
+		return (shift + 1) * sub + (int) ((value >>> shift) - sub);
+	}
+
+	/**
+	 * Get the lower bound of the values in a bucket.
+	 *
+	 * @param index index
+	 * @param subBits log2 of the number of sub-buckets
+	 * @return value
+	 */
+	static long value(int index, int subBits) {
+		var sub = 1 << subBits;
+		if (index < sub) {
+			return index;
+		}
+		var shift = index / sub - 1;
+		return (long) (index % sub + sub) << shift;
+	}
+}
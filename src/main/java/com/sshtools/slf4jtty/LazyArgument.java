@@ -0,0 +1,27 @@
+package com.sshtools.slf4jtty;
+
+/**
+ * An argument to a log message that is only formatted if and when it is actually
+ * output, and that appends its text directly to the message being built.
+ * <p>
+ * This may be used for arguments that are expensive to turn into text, such as a
+ * diagnostic dump. If the event is not enabled, is dropped, or the message has already
+ * filled its column before this argument is reached, it costs nothing.
+ *
+ * <pre>
+ * log.debug("State {}", (LazyArgument) buf -&gt; session.dumpTo(buf));
+ * </pre>
+ *
+ * A {@link java.util.function.Supplier} may also be used as an argument, and will
+ * likewise only be evaluated when output.
+ */
+@FunctionalInterface
+public interface LazyArgument {
+
+	/**
+	 * Append the text of this argument.
+	 *
+	 * @param buf buffer to append to
+	 */
+	void formatTo(StringBuilder buf);
+}
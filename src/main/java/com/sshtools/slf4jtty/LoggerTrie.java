@@ -0,0 +1,318 @@
+package com.sshtools.slf4jtty;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * A tree of logger names, split at each '.', holding the settings assigned to each
+ * prefix in configuration, and the live loggers created for each name.
+ * <p>
+ * A logger's effective settings are those of the nearest node on the path from the
+ * root to its own name that has them set. The root node holds the default level.
+ * <p>
+ * When a level is changed for a prefix, only the subtree below that prefix is visited,
+ * and the walk stops at any descendant that has its own level set. Each affected
+ * logger has its level field updated, so checking whether a level is enabled remains
+ * a single field read. Throttles, sink routes and the level kept in the
+ * {@link EventRing} are propagated to loggers in the same way.
+ * <p>
+ * All access is synchronized, but this is only used when loggers are created or
+ * configuration changes, never when an event is logged.
+ */
+final class LoggerTrie {
+
+	final static int UNSET = -1;
+
+	private final static class Node {
+		private final Map<String, Node> children = new HashMap<>();
+		private final List<AbstractLogger> loggers = new ArrayList<>(1);
+		private int level = UNSET;
+		private Throttle[] throttles;
+		private String[] sinks;
+	}
+
+	private final Node root = new Node();
+	private int captureLevel = AbstractLogger.LOG_LEVEL_OFF;
+
+	/**
+	 * Set the default level, i.e. the level of the root.
+	 *
+	 * @param level level
+	 */
+	synchronized void defaultLevel(int level) {
+		root.level = level;
+		propagate(root, level);
+	}
+
+	/**
+	 * Register a new logger, and set its effective level, throttles and route. These are
+	 * set while still holding the lock, so a change made concurrently cannot be
+	 * overwritten with a stale value.
+	 *
+	 * @param logger logger
+	 */
+	synchronized void register(AbstractLogger logger) {
+		var level = root.level;
+		var throttles = root.throttles;
+		var sinks = root.sinks;
+		var node = root;
+		for (var segment : segments(logger.getName())) {
+			node = node.children.computeIfAbsent(segment, k -> new Node());
+			if (node.level != UNSET) {
+				level = node.level;
+			}
+			if (node.throttles != null) {
+				throttles = node.throttles;
+			}
+			if (node.sinks != null) {
+				sinks = node.sinks;
+			}
+		}
+		node.loggers.add(logger);
+		logger.throttles(throttles);
+		logger.route(sinks);
+		logger.level(level, captureLevel);
+	}
+
+	/**
+	 * Set the level of events kept in the {@link EventRing}, which all loggers enable as
+	 * well as their own level.
+	 *
+	 * @param captureLevel level, or {@link AbstractLogger#LOG_LEVEL_OFF} if there is no ring
+	 */
+	synchronized void captureLevel(int captureLevel) {
+		if (captureLevel != this.captureLevel) {
+			this.captureLevel = captureLevel;
+			recapture(root, root.level);
+		}
+	}
+
+	/**
+	 * Set the level for a prefix, or {@link #UNSET} to remove it so the level is
+	 * inherited from the parent.
+	 *
+	 * @param prefix prefix
+	 * @param level level or {@link #UNSET}
+	 */
+	synchronized void level(String prefix, int level) {
+		if (prefix.isEmpty()) {
+			if (level == UNSET)
+				throw new IllegalArgumentException("Cannot unset the default level.");
+			defaultLevel(level);
+			return;
+		}
+
+		var inherited = root.level;
+		var node = root;
+		for (var segment : segments(prefix)) {
+			if (node.level != UNSET) {
+				inherited = node.level;
+			}
+			node = node.children.computeIfAbsent(segment, k -> new Node());
+		}
+		node.level = level;
+		propagate(node, level == UNSET ? inherited : level);
+	}
+
+	/**
+	 * Get the level set for a prefix itself (not inherited), or {@link #UNSET}.
+	 *
+	 * @param prefix prefix
+	 * @return level
+	 */
+	synchronized int level(String prefix) {
+		var node = find(prefix);
+		return node == null ? UNSET : node.level;
+	}
+
+	/**
+	 * Get the effective level for a logger name.
+	 *
+	 * @param name name
+	 * @return level
+	 */
+	synchronized int effectiveLevel(String name) {
+		var level = root.level;
+		var node = root;
+		for (var segment : segments(name)) {
+			node = node.children.get(segment);
+			if (node == null)
+				break;
+			if (node.level != UNSET)
+				level = node.level;
+		}
+		return level;
+	}
+
+	/**
+	 * Visit every prefix that has a level set (other than the root).
+	 *
+	 * @param visitor receives prefix and level
+	 */
+	synchronized void levels(LevelVisitor visitor) {
+		visit(root, "", visitor);
+	}
+
+	interface LevelVisitor {
+		void visit(String prefix, int level);
+	}
+
+	/**
+	 * Replace all throttles, updating every affected logger.
+	 *
+	 * @param throttles throttles for each prefix
+	 */
+	synchronized void throttles(Map<String, List<Throttle>> throttles) {
+		clearThrottles(root);
+		for (var en : throttles.entrySet()) {
+			var node = root;
+			for (var segment : segments(en.getKey())) {
+				node = node.children.computeIfAbsent(segment, k -> new Node());
+			}
+			node.throttles = en.getValue().toArray(new Throttle[0]);
+		}
+		propagateThrottles(root, root.throttles);
+	}
+
+	/**
+	 * Visit all throttles.
+	 *
+	 * @param visitor visitor
+	 */
+	synchronized void throttles(Consumer<Throttle> visitor) {
+		visitThrottles(root, visitor);
+	}
+
+	/**
+	 * Replace all sink routes, updating every affected logger.
+	 *
+	 * @param routes names of the sinks for each prefix
+	 */
+	synchronized void routes(Map<String, String[]> routes) {
+		clearRoutes(root);
+		for (var en : routes.entrySet()) {
+			var node = root;
+			for (var segment : segments(en.getKey())) {
+				node = node.children.computeIfAbsent(segment, k -> new Node());
+			}
+			node.sinks = en.getValue();
+		}
+		propagateRoutes(root, root.sinks);
+	}
+
+	/**
+	 * Resolve the routes of every logger again, after the sinks they name may have
+	 * changed.
+	 */
+	synchronized void reroute() {
+		propagateRoutes(root, root.sinks);
+	}
+
+	private void propagate(Node node, int level) {
+		for (var logger : node.loggers) {
+			logger.level(level, captureLevel);
+		}
+		for (var child : node.children.values()) {
+			if (child.level == UNSET) {
+				propagate(child, level);
+			}
+		}
+	}
+
+	private void recapture(Node node, int level) {
+		if (node.level != UNSET) {
+			level = node.level;
+		}
+		for (var logger : node.loggers) {
+			logger.level(level, captureLevel);
+		}
+		for (var child : node.children.values()) {
+			recapture(child, level);
+		}
+	}
+
+	private void clearThrottles(Node node) {
+		node.throttles = null;
+		for (var child : node.children.values()) {
+			clearThrottles(child);
+		}
+	}
+
+	private void propagateThrottles(Node node, Throttle[] throttles) {
+		if (node.throttles != null) {
+			throttles = node.throttles;
+		}
+		for (var logger : node.loggers) {
+			logger.throttles(throttles);
+		}
+		for (var child : node.children.values()) {
+			propagateThrottles(child, throttles);
+		}
+	}
+
+	private void clearRoutes(Node node) {
+		node.sinks = null;
+		for (var child : node.children.values()) {
+			clearRoutes(child);
+		}
+	}
+
+	private void propagateRoutes(Node node, String[] sinks) {
+		if (node.sinks != null) {
+			sinks = node.sinks;
+		}
+		for (var logger : node.loggers) {
+			logger.route(sinks);
+		}
+		for (var child : node.children.values()) {
+			propagateRoutes(child, sinks);
+		}
+	}
+
+	private Node find(String prefix) {
+		var node = root;
+		for (var segment : segments(prefix)) {
+			node = node.children.get(segment);
+			if (node == null)
+				return null;
+		}
+		return node;
+	}
+
+	private void visit(Node node, String prefix, LevelVisitor visitor) {
+		for (var en : node.children.entrySet()) {
+			var path = prefix.isEmpty() ? en.getKey() : prefix + "." + en.getKey();
+			if (en.getValue().level != UNSET)
+				visitor.visit(path, en.getValue().level);
+			visit(en.getValue(), path, visitor);
+		}
+	}
+
+	private void visitThrottles(Node node, Consumer<Throttle> visitor) {
+		if (node.throttles != null) {
+			for (var throttle : node.throttles) {
+				visitor.accept(throttle);
+			}
+		}
+		for (var child : node.children.values()) {
+			visitThrottles(child, visitor);
+		}
+	}
+
+	private static List<String> segments(String name) {
+		var segments = new ArrayList<String>();
+		if (name.isEmpty())
+			return segments;
+		var start = 0;
+		int idx;
+		while ((idx = name.indexOf('.', start)) != -1) {
+			segments.add(name.substring(start, idx));
+			start = idx + 1;
+		}
+		segments.add(name.substring(start));
+		return segments;
+	}
+}
@@ -0,0 +1,277 @@
+package com.sshtools.slf4jtty;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.jline.utils.AttributedStringBuilder;
+import org.jline.utils.AttributedStyle;
+
+/**
+ * State used by a thread while it is handling a single log event. This holds the
+ * re-entrancy flag (JLine uses SLF4J for logging, which we may trigger by using it to
+ * style our text), along with scratch buffers that are re-used from one event to the
+ * next rather than allocated for every event.
+ * <p>
+ * Platform threads keep their context in a {@link ThreadLocal} for as long as they live,
+ * so the common case is a single {@link ThreadLocal#get()} and a plain field test.
+ * <p>
+ * Virtual threads may number in the millions, so caching a context on each of them
+ * would mean the same number of buffers. Instead, a virtual thread borrows a context
+ * from a small bounded pool for the duration of the event only, and returns it
+ * afterwards. If the pool is exhausted a temporary context is created, and discarded
+ * when done. Fluent API builders are pooled in the same way.
+ * <p>
+ * Buffers that grow beyond {@link #MAX_BUFFER} characters (e.g. a huge message) are
+ * discarded when the context is released, so a single large event does not pin a large
+ * buffer for the lifetime of the thread.
+ */
+final class LoggingContext {
+
+	final static int INITIAL_BUFFER = 256;
+	final static int MAX_BUFFER = 8192;
+
+	private final static int POOL_SIZE = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+	private final static AtomicReferenceArray<LoggingContext> POOL = new AtomicReferenceArray<>(POOL_SIZE);
+	private final static AtomicReferenceArray<EventBuilder> BUILDERS = new AtomicReferenceArray<>(POOL_SIZE);
+	private final static ThreadLocal<LoggingContext> CURRENT = new ThreadLocal<>();
+	private final static MethodHandle IS_VIRTUAL;
+
+	static {
+		MethodHandle isVirtual;
+		try {
+			isVirtual = MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual",
+					MethodType.methodType(boolean.class));
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			/* Pre Java 21, there are no virtual threads */
+			isVirtual = null;
+		}
+		IS_VIRTUAL = isVirtual;
+	}
+
+	/** Line buffer the formatted event is built in */
+	StringBuilder buf = new StringBuilder(INITIAL_BUFFER);
+	/** Styled text of a single field */
+	private ScratchBuilder attrs = new ScratchBuilder();
+	/** Used to apply alignment padding in front of {@link #attrs} */
+	private ScratchBuilder aligned = new ScratchBuilder();
+	/** Decorated text of a single field */
+	private ScratchBuilder decorated = new ScratchBuilder();
+	/** The event being rendered */
+	final Event event = new Event();
+	/** Fluent API builder */
+	private EventBuilder builder = new EventBuilder(false);
+	/** Style expression evaluator */
+	final RecursiveStyleExpression styler = new RecursiveStyleExpression();
+	/** Each distinct rendering of the event, for sinks */
+	private String[] rendered = new String[0];
+
+	private boolean active;
+	private final boolean pooled;
+
+	/**
+	 * An {@link AttributedStringBuilder} that can report its capacity, so one that has
+	 * grown too large may be discarded.
+	 */
+	private final static class ScratchBuilder extends AttributedStringBuilder {
+		ScratchBuilder() {
+			super(INITIAL_BUFFER);
+		}
+
+		int capacity() {
+			return buffer().length;
+		}
+	}
+
+	private LoggingContext(boolean pooled) {
+		this.pooled = pooled;
+	}
+
+	/**
+	 * Enter the logging context for the current thread. If the thread is already
+	 * handling an event (i.e. this is a re-entrant call), {@code null} is returned
+	 * and the event should be ignored. Otherwise, the returned context must be passed
+	 * to {@link #exit()} when done.
+	 *
+	 * @return context or {@code null} if re-entered
+	 */
+	static LoggingContext enter() {
+		var ctx = CURRENT.get();
+		if (ctx == null) {
+			if (isVirtual(Thread.currentThread())) {
+				ctx = borrow(POOL);
+				if (ctx == null) {
+					ctx = new LoggingContext(true);
+				}
+			} else {
+				ctx = new LoggingContext(false);
+			}
+			CURRENT.set(ctx);
+		} else if (ctx.active) {
+			return null;
+		}
+		ctx.active = true;
+		return ctx;
+	}
+
+	/**
+	 * Get an {@link EventBuilder} for the current thread to use. Platform threads re-use
+	 * the builder of their context. Virtual threads borrow a builder from a pool, as the
+	 * builder is needed for longer than the context is borrowed for, and it is returned
+	 * when its event is logged.
+	 * <p>
+	 * If the context's builder is still in use, either an argument to one fluent API call
+	 * is being computed using another, or the builder was abandoned without being logged.
+	 * These cannot be told apart, so the context is given a new builder. The old one is
+	 * left to finish, or to be collected if abandoned, and from then on the new one is
+	 * re-used.
+	 *
+	 * @return builder
+	 */
+	static EventBuilder builder() {
+		if (isVirtual(Thread.currentThread())) {
+			return borrowBuilder();
+		}
+		var ctx = CURRENT.get();
+		if (ctx == null) {
+			ctx = new LoggingContext(false);
+			CURRENT.set(ctx);
+		}
+		if (ctx.builder.inUse()) {
+			ctx.builder = new EventBuilder(false);
+		}
+		return ctx.builder;
+	}
+
+	/**
+	 * Borrow a builder from the pool, or create one if the pool is empty. It is returned
+	 * by {@link #releaseBuilder(EventBuilder)} once its event is logged. A builder that is
+	 * abandoned is simply not returned.
+	 *
+	 * @return builder
+	 */
+	static EventBuilder borrowBuilder() {
+		var builder = borrow(BUILDERS);
+		return builder == null ? new EventBuilder(true) : builder;
+	}
+
+	/**
+	 * Return a builder borrowed by {@link #borrowBuilder()}.
+	 *
+	 * @param builder builder
+	 */
+	static void releaseBuilder(EventBuilder builder) {
+		release(BUILDERS, builder);
+	}
+
+	/**
+	 * Leave the logging context, resetting all buffers ready for the next event.
+	 */
+	void exit() {
+		active = false;
+		clear();
+		if (pooled) {
+			CURRENT.remove();
+			release(POOL, this);
+		}
+	}
+
+	/**
+	 * Reset all buffers ready for the next event.
+	 */
+	void clear() {
+		event.clear();
+		if (buf.capacity() > MAX_BUFFER) {
+			buf = new StringBuilder(INITIAL_BUFFER);
+		} else {
+			buf.setLength(0);
+		}
+		attrs = reset(attrs);
+		aligned = reset(aligned);
+		decorated = reset(decorated);
+	}
+
+	/**
+	 * Get the buffer for the styled text of a single field, cleared ready for use.
+	 *
+	 * @return buffer
+	 */
+	AttributedStringBuilder attrs() {
+		return attrs = reset(attrs);
+	}
+
+	/**
+	 * Get the buffer used to apply alignment padding, cleared ready for use.
+	 *
+	 * @return buffer
+	 */
+	AttributedStringBuilder aligned() {
+		return aligned = reset(aligned);
+	}
+
+	/**
+	 * Get the buffer for the decorated text of a single field, cleared ready for use.
+	 *
+	 * @return buffer
+	 */
+	AttributedStringBuilder decorated() {
+		return decorated = reset(decorated);
+	}
+
+	/**
+	 * Get an array to hold each distinct rendering of the event, of at least the given
+	 * size. The caller must clear it when done.
+	 *
+	 * @param size size
+	 * @return renderings
+	 */
+	String[] rendered(int size) {
+		if (rendered.length < size) {
+			rendered = new String[size];
+		}
+		return rendered;
+	}
+
+	private static ScratchBuilder reset(ScratchBuilder builder) {
+		if (builder.capacity() > MAX_BUFFER) {
+			return new ScratchBuilder();
+		} else {
+			builder.setLength(0);
+			builder.style(AttributedStyle.DEFAULT);
+			return builder;
+		}
+	}
+
+	private static <T> T borrow(AtomicReferenceArray<T> pool) {
+		var start = (int) (Thread.currentThread().getId() % POOL_SIZE);
+		for (int i = 0; i < POOL_SIZE; i++) {
+			var idx = (start + i) % POOL_SIZE;
+			var item = pool.get(idx);
+			if (item != null && pool.compareAndSet(idx, item, null)) {
+				return item;
+			}
+		}
+		return null;
+	}
+
+	private static <T> void release(AtomicReferenceArray<T> pool, T item) {
+		var start = (int) (Thread.currentThread().getId() % POOL_SIZE);
+		for (int i = 0; i < POOL_SIZE; i++) {
+			if (pool.compareAndSet((start + i) % POOL_SIZE, null, item)) {
+				return;
+			}
+		}
+		/* Pool is full, just let this one go */
+	}
+
+	private static boolean isVirtual(Thread thread) {
+		if (IS_VIRTUAL == null)
+			return false;
+		try {
+			return (boolean) IS_VIRTUAL.invokeExact(thread);
+		} catch (Throwable e) {
+			return false;
+		}
+	}
+}
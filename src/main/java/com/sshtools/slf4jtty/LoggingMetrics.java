@@ -0,0 +1,211 @@
+package com.sshtools.slf4jtty;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.event.Level;
+import org.slf4j.helpers.Reporter;
+
+/**
+ * Collects the metrics of a {@link TtyLoggerConfiguration}, and registers them as an
+ * MBean when configured to.
+ * <p>
+ * Every count is a {@link LongAdder}, and latencies are recorded to a
+ * {@link StripedHistogram}, so threads logging at the same time do not contend on them.
+ * Counts are kept for the lifetime of the configuration, so are not lost when it is
+ * reloaded.
+ */
+final class LoggingMetrics implements TtyLoggerMetricsMXBean {
+
+	private final static AtomicInteger IDS = new AtomicInteger();
+
+	/**
+	 * The metrics of a single output, which its {@link CombiningWriter} records to.
+	 */
+	final static class Output {
+		final String name;
+		private final LongAdder characters = new LongAdder();
+		private final LongAdder bytes = new LongAdder();
+		private final LongAdder flushes = new LongAdder();
+		private final LongAdder lockWait = new LongAdder();
+		private final StripedHistogram writeLatency = new StripedHistogram();
+
+		private Output(String name) {
+			this.name = name;
+		}
+
+		void waited(long nanos) {
+			lockWait.add(nanos);
+		}
+
+		void written(int characters, long nanos) {
+			this.characters.add(characters);
+			flushes.increment();
+			writeLatency.record(nanos);
+		}
+
+		void encoded(int bytes, long nanos) {
+			this.bytes.add(bytes);
+			flushes.increment();
+			writeLatency.record(nanos);
+		}
+
+		private void reset() {
+			characters.reset();
+			bytes.reset();
+			flushes.reset();
+			lockWait.reset();
+			writeLatency.reset();
+		}
+	}
+
+	private final LongAdder[] events = new LongAdder[Level.values().length];
+	private final LongAdder filtered = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final StripedHistogram renderLatency = new StripedHistogram();
+	private final Map<String, Output> outputs = new ConcurrentHashMap<>();
+	private final String name = String.valueOf(IDS.incrementAndGet());
+	private ObjectName registered;
+
+	LoggingMetrics() {
+		for (int i = 0; i < events.length; i++) {
+			events[i] = new LongAdder();
+		}
+	}
+
+	void event(Level level) {
+		events[level.ordinal()].increment();
+	}
+
+	void filtered() {
+		filtered.increment();
+	}
+
+	void dropped() {
+		dropped.increment();
+	}
+
+	void rendered(long nanos) {
+		renderLatency.record(nanos);
+	}
+
+	/**
+	 * Get the metrics of an output, creating them the first time. Outputs with the same
+	 * name share metrics, so they continue when an output is replaced. Each has its own
+	 * write latency, as outputs may differ greatly in how long they take to write to.
+	 *
+	 * @param name output name
+	 * @return output metrics
+	 */
+	Output output(String name) {
+		return outputs.computeIfAbsent(name, k -> new Output(k));
+	}
+
+	/**
+	 * Register or unregister the MBean.
+	 *
+	 * @param register register
+	 */
+	synchronized void register(boolean register) {
+		try {
+			var server = ManagementFactory.getPlatformMBeanServer();
+			if (register && registered == null) {
+				var objectName = new ObjectName("com.sshtools.slf4jtty:type=Metrics,name=" + name);
+				server.registerMBean(this, objectName);
+				registered = objectName;
+			} else if (!register && registered != null) {
+				server.unregisterMBean(registered);
+				registered = null;
+			}
+		} catch (JMException | RuntimeException e) {
+			Reporter.warn("Could not " + (register ? "register" : "unregister") + " logging metrics. " + e.getMessage());
+		}
+	}
+
+	@Override
+	public Map<String, Long> getEvents() {
+		var map = new LinkedHashMap<String, Long>();
+		for (var level : Level.values()) {
+			map.put(level.name(), events[level.ordinal()].sum());
+		}
+		return map;
+	}
+
+	@Override
+	public long getFilteredEvents() {
+		return filtered.sum();
+	}
+
+	@Override
+	public long getDroppedEvents() {
+		return dropped.sum();
+	}
+
+	@Override
+	public Map<String, Long> getCharactersWritten() {
+		return byOutput(o -> o.characters.sum());
+	}
+
+	@Override
+	public Map<String, Long> getBytesWritten() {
+		return byOutput(o -> o.bytes.sum());
+	}
+
+	@Override
+	public Map<String, Long> getFlushes() {
+		return byOutput(o -> o.flushes.sum());
+	}
+
+	@Override
+	public Map<String, Long> getLockWaitNanos() {
+		return byOutput(o -> o.lockWait.sum());
+	}
+
+	@Override
+	public Map<String, Long> getRenderLatency() {
+		return latency(renderLatency);
+	}
+
+	@Override
+	public Map<String, Map<String, Long>> getWriteLatency() {
+		var map = new TreeMap<String, Map<String, Long>>();
+		outputs.forEach((k, v) -> map.put(k, latency(v.writeLatency)));
+		return map;
+	}
+
+	@Override
+	public void reset() {
+		for (var count : events) {
+			count.reset();
+		}
+		filtered.reset();
+		dropped.reset();
+		renderLatency.reset();
+		outputs.values().forEach(Output::reset);
+	}
+
+	private Map<String, Long> byOutput(ToLongFunction<Output> value) {
+		var map = new TreeMap<String, Long>();
+		outputs.forEach((k, v) -> map.put(k, value.applyAsLong(v)));
+		return map;
+	}
+
+	private static Map<String, Long> latency(StripedHistogram histogram) {
+		var map = new LinkedHashMap<String, Long>();
+		map.put("count", histogram.count());
+		map.put("p50", histogram.percentile(50));
+		map.put("p99", histogram.percentile(99));
+		map.put("p99.9", histogram.percentile(99.9));
+		map.put("max", histogram.max());
+		return map;
+	}
+}
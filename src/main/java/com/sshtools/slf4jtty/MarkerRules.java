@@ -0,0 +1,152 @@
+package com.sshtools.slf4jtty;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Marker;
+import org.slf4j.helpers.Reporter;
+
+/**
+ * Compiled marker rules, each of which either accepts, denies or sets the level of
+ * events with a particular marker, or any marker that contains it.
+ * <p>
+ * The markers named by rules are given small integer IDs in the order the rules are
+ * configured, and each {@link Marker} seen is resolved once to a bitmask of the rules it
+ * matches. Checking an event is then a map lookup, and the first matching rule is the
+ * lowest bit set. Marker references added after a marker was first seen are not noticed
+ * until the configuration is next reloaded.
+ */
+final class MarkerRules {
+
+	/** Returned when no rule matches, so the logger's own level applies */
+	final static int NO_RULE = Integer.MIN_VALUE;
+
+	private final static int MAX_RULES = Long.SIZE;
+	private final static int MAX_CACHED = 1024;
+
+	private final static Map<List<Marker>, String> NAMES = new ConcurrentHashMap<>();
+
+	private final String[] names;
+	private final int[] thresholds;
+	private final Map<Marker, Long> masks = new ConcurrentHashMap<>();
+
+	private MarkerRules(String[] names, int[] thresholds) {
+		this.names = names;
+		this.thresholds = thresholds;
+	}
+
+	/**
+	 * Compile rules, each in the form <code>marker:action</code>, where the action is
+	 * <code>ACCEPT</code>, <code>DENY</code> or the minimum level to output.
+	 *
+	 * @param rules rules
+	 * @return compiled rules, or <code>null</code> if there are none
+	 */
+	static MarkerRules of(List<String> rules) {
+		var names = new ArrayList<String>();
+		var thresholds = new ArrayList<Integer>();
+		for (var rule : rules) {
+			var idx = rule.lastIndexOf(':');
+			var threshold = idx == -1 ? NO_RULE : threshold(rule.substring(idx + 1).trim());
+			if (threshold == NO_RULE) {
+				Reporter.warn("Marker rule '" + rule + "' should be in the form marker:action, where action is ACCEPT, DENY or a level, it will be ignored.");
+			} else if (names.size() == MAX_RULES) {
+				Reporter.warn("Only " + MAX_RULES + " marker rules may be configured, '" + rule + "' will be ignored.");
+			} else {
+				names.add(rule.substring(0, idx).trim());
+				thresholds.add(threshold);
+			}
+		}
+		return names.isEmpty() ? null
+				: new MarkerRules(names.toArray(new String[0]), thresholds.stream().mapToInt(Integer::intValue).toArray());
+	}
+
+	/**
+	 * Get the minimum level for an event with a marker.
+	 *
+	 * @param marker marker
+	 * @return level, or {@link #NO_RULE}
+	 */
+	int threshold(Marker marker) {
+		return threshold(mask(marker));
+	}
+
+	/**
+	 * Get the minimum level for an event with any number of markers.
+	 *
+	 * @param markers markers
+	 * @return level, or {@link #NO_RULE}
+	 */
+	int threshold(List<Marker> markers) {
+		var mask = 0L;
+		for (int i = 0; i < markers.size(); i++) {
+			mask |= mask(markers.get(i));
+		}
+		return threshold(mask);
+	}
+
+	/**
+	 * Get the names of a list of markers, as output in the <code>markers</code> field.
+	 * These are cached for each distinct list.
+	 *
+	 * @param markers markers, may be <code>null</code>
+	 * @return names
+	 */
+	static String names(List<Marker> markers) {
+		if (markers == null || markers.isEmpty()) {
+			return "";
+		} else if (markers.size() == 1) {
+			return markers.get(0).getName();
+		}
+		var names = NAMES.get(markers);
+		if (names == null) {
+			names = String.join(",", markers.stream().map(Marker::getName).toList());
+			if (NAMES.size() < MAX_CACHED) {
+				/* The list may be re-used by its builder, so keep a copy */
+				NAMES.put(List.copyOf(markers), names);
+			}
+		}
+		return names;
+	}
+
+	private int threshold(long mask) {
+		return mask == 0 ? NO_RULE : thresholds[Long.numberOfTrailingZeros(mask)];
+	}
+
+	private long mask(Marker marker) {
+		var mask = masks.get(marker);
+		if (mask == null) {
+			var m = 0L;
+			for (int i = 0; i < names.length; i++) {
+				if (marker.contains(names[i])) {
+					m |= 1L << i;
+				}
+			}
+			if (masks.size() < MAX_CACHED) {
+				masks.put(marker, m);
+			}
+			return m;
+		}
+		return mask;
+	}
+
+	private static int threshold(String action) {
+		switch (action.toUpperCase()) {
+		case "ACCEPT":
+			return AbstractLogger.LOG_LEVEL_TRACE;
+		case "DENY":
+		case "OFF":
+			return AbstractLogger.LOG_LEVEL_OFF;
+		case "TRACE":
+		case "DEBUG":
+		case "INFO":
+		case "WARN":
+		case "ERROR":
+			return TtyLoggerConfiguration.stringToLevel(action);
+		default:
+			return NO_RULE;
+		}
+	}
+}
@@ -3,6 +3,7 @@ package com.sshtools.slf4jtty;
 import java.text.MessageFormat;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.Supplier;
 
 import org.slf4j.helpers.FormattingTuple;
 import org.slf4j.helpers.NormalizedParameters;
@@ -158,8 +159,31 @@ final public class MessageFormatter {
      * @param argArray
      */
     final public static String basicArrayFormat(final String parameterStyle, final String messagePattern, final Object[] argArray) {
-        FormattingTuple ft = arrayFormat(parameterStyle, messagePattern, argArray, null);
-        return ft.getMessage();
+        return basicArrayFormat(parameterStyle, messagePattern, argArray, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Assumes that argArray only contains arguments with no throwable as last element.
+     * <p>
+     * Formatting stops once more than <code>limit</code> characters of text have been
+     * produced (not counting the parameter style), as anything beyond that would be
+     * trimmed from its column anyway. Arguments after that point are never evaluated.
+     * If the pattern or an argument contains style expressions, its length is not its
+     * visible length, so the whole message is formatted.
+     * 
+     * @param parameterStyle style
+     * @param messagePattern
+     * @param argArray
+     * @param limit maximum number of characters needed
+     */
+    final public static String basicArrayFormat(final String parameterStyle, final String messagePattern, final Object[] argArray, int limit) {
+        if (messagePattern == null) {
+            return null;
+        }
+        if (argArray == null) {
+            return messagePattern;
+        }
+        return format(parameterStyle, messagePattern, argArray, limit);
     }
 
     public static String basicArrayFormat(final String parameterStyle, NormalizedParameters np) {
@@ -176,10 +200,60 @@ final public class MessageFormatter {
             return new FormattingTuple(messagePattern);
         }
 
+        return new FormattingTuple(format(parameterStyle, messagePattern, argArray, Integer.MAX_VALUE), argArray, throwable);
+    }
+
+    /**
+     * Get the value of an argument, evaluating it if it is a {@link Supplier} or
+     * {@link LazyArgument}.
+     * 
+     * @param arg argument
+     * @return value
+     */
+    static Object resolve(Object arg) {
+        if (arg instanceof LazyArgument lazy) {
+            var buf = new StringBuilder();
+            lazy.formatTo(buf);
+            return buf.toString();
+        } else if (arg instanceof Supplier<?> supplier) {
+            return supplier.get();
+        } else {
+            return arg;
+        }
+    }
+
+    /**
+     * Get the values of all arguments, evaluating any that are {@link Supplier}s or
+     * {@link LazyArgument}s. If there are none, the same array is returned.
+     * 
+     * @param args arguments, may be <code>null</code>
+     * @return values
+     */
+    static Object[] resolveAll(Object[] args) {
+        if (args != null) {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i] instanceof Supplier || args[i] instanceof LazyArgument) {
+                    var resolved = args.clone();
+                    for (; i < resolved.length; i++) {
+                        resolved[i] = resolve(resolved[i]);
+                    }
+                    return resolved;
+                }
+            }
+        }
+        return args;
+    }
+
+    private static String format(final String parameterStyle, final String messagePattern, final Object[] argArray, int limit) {
+        if (limit != Integer.MAX_VALUE && messagePattern.indexOf("@{") != -1) {
+            limit = Integer.MAX_VALUE;
+        }
+
         int i = 0;
         int j;
         // use string builder for better multicore performance
         StringBuilder sbuf = new StringBuilder(messagePattern.length() + 50);
+        Output out = new Output(sbuf, parameterStyle, limit);
 
         int L;
         for (L = 0; L < argArray.length; L++) {
@@ -189,11 +263,11 @@ final public class MessageFormatter {
             if (j == -1) {
                 // no more variables
                 if (i == 0) { // this is a simple string
-                    return new FormattingTuple(messagePattern, argArray, throwable);
+                    return messagePattern;
                 } else { // add the tail string which contains no variables and return
                     // the result.
                     sbuf.append(messagePattern, i, messagePattern.length());
-                    return new FormattingTuple(sbuf.toString(), argArray, throwable);
+                    return sbuf.toString();
                 }
             } else {
                 if (isEscapedDelimeter(messagePattern, j)) {
@@ -207,20 +281,125 @@ final public class MessageFormatter {
                         // itself escaped: "abc x:\\{}"
                         // we have to consume one backward slash
                         sbuf.append(messagePattern, i, j - 1);
-                        deeplyAppendParameter(parameterStyle, sbuf, argArray[L], new HashMap<>());
+                        if (out.full()) {
+                            return sbuf.toString();
+                        }
+                        deeplyAppendParameter(out, argArray[L]);
                         i = j + 2;
                     }
                 } else {
                     // normal case
                     sbuf.append(messagePattern, i, j);
-                    deeplyAppendParameter(parameterStyle, sbuf, argArray[L], new HashMap<>());
+                    if (out.full()) {
+                        return sbuf.toString();
+                    }
+                    deeplyAppendParameter(out, argArray[L]);
                     i = j + 2;
                 }
             }
         }
         // append the characters following the last {} pair.
         sbuf.append(messagePattern, i, messagePattern.length());
-        return new FormattingTuple(sbuf.toString(), argArray, throwable);
+        return sbuf.toString();
+    }
+
+    /**
+     * Appends styled parameters to the message, keeping count of how many characters
+     * of text (rather than style) have been appended.
+     */
+    private static final class Output {
+        private final static String PARAMETER = "${parameter}";
+
+        private final StringBuilder sbuf;
+        private final String style;
+        private final String prefix;
+        private final String suffix;
+        private int limit;
+        private int styleChars;
+        private Map<Object[], Object> seenMap;
+
+        private Output(StringBuilder sbuf, String style, int limit) {
+            this.sbuf = sbuf;
+            this.style = style;
+            this.limit = limit;
+            var idx = style == null ? -1 : style.indexOf(PARAMETER);
+            if (idx != -1 && idx == style.lastIndexOf(PARAMETER)) {
+                prefix = style.substring(0, idx);
+                suffix = style.substring(idx + PARAMETER.length());
+            } else {
+                prefix = suffix = null;
+            }
+        }
+
+        private boolean full() {
+            return sbuf.length() - styleChars > limit;
+        }
+
+        private Map<Object[], Object> seenMap() {
+            if (seenMap == null) {
+                seenMap = new HashMap<>();
+            }
+            return seenMap;
+        }
+
+        private void parameter(String text) {
+            if (style == null) {
+                sbuf.append(text);
+            } else if (prefix == null) {
+                var styled = style.replace(PARAMETER, text);
+                sbuf.append(styled);
+                styleChars += styled.length() - text.length();
+            } else {
+                open();
+                sbuf.append(text);
+                close();
+            }
+            checkStyles(text, 0);
+        }
+
+        private void parameter(long value) {
+            if (style != null && prefix == null) {
+                parameter(String.valueOf(value));
+            } else {
+                open();
+                sbuf.append(value);
+                close();
+            }
+        }
+
+        private void parameter(LazyArgument lazy) {
+            if (style != null && prefix == null) {
+                var tmp = new StringBuilder();
+                lazy.formatTo(tmp);
+                parameter(tmp.toString());
+            } else {
+                open();
+                var start = sbuf.length();
+                lazy.formatTo(sbuf);
+                checkStyles(sbuf, start);
+                close();
+            }
+        }
+
+        private void open() {
+            if (prefix != null) {
+                sbuf.append(prefix);
+                styleChars += prefix.length();
+            }
+        }
+
+        private void close() {
+            if (suffix != null) {
+                sbuf.append(suffix);
+                styleChars += suffix.length();
+            }
+        }
+
+        private void checkStyles(CharSequence text, int from) {
+            if (limit != Integer.MAX_VALUE && text.toString().indexOf("@{", from) != -1) {
+                limit = Integer.MAX_VALUE;
+            }
+        }
     }
 
     final static boolean isEscapedDelimeter(String messagePattern, int delimeterStartIndex) {
@@ -245,13 +424,32 @@ final public class MessageFormatter {
     }
 
     // special treatment of array values was suggested by 'lizongbo'
-    private static void deeplyAppendParameter(String parameterStyle, StringBuilder sbuf, Object o, Map<Object[], Object> seenMap) {
+    private static void deeplyAppendParameter(Output out, Object o) {
+        StringBuilder sbuf = out.sbuf;
+        if (o instanceof LazyArgument lazy) {
+            try {
+                out.parameter(lazy);
+            } catch (Throwable t) {
+                Reporter.error("Failed formatTo() invocation on an object of type [" + o.getClass().getName() + "]", t);
+                sbuf.append("[FAILED formatTo()]");
+            }
+            return;
+        }
+        if (o instanceof Supplier<?> supplier) {
+            try {
+                o = supplier.get();
+            } catch (Throwable t) {
+                Reporter.error("Failed get() invocation on an object of type [" + o.getClass().getName() + "]", t);
+                sbuf.append("[FAILED get()]");
+                return;
+            }
+        }
         if (o == null) {
             sbuf.append("null");
             return;
         }
         if (!o.getClass().isArray()) {
-            safeObjectAppend(parameterStyle, sbuf, o);
+            safeObjectAppend(out, o);
         } else {
             // check for primitive array types because they
             // unfortunately cannot be cast to Object[]
@@ -272,32 +470,36 @@ final public class MessageFormatter {
             } else if (o instanceof double[]) {
                 doubleArrayAppend(sbuf, (double[]) o);
             } else {
-                objectArrayAppend(parameterStyle, sbuf, (Object[]) o, seenMap);
+                objectArrayAppend(out, (Object[]) o);
             }
         }
     }
 
-    private static void safeObjectAppend(String parameterStyle, StringBuilder sbuf, Object o) {
-        try {
-            String oAsString = o.toString();
-            if(parameterStyle == null)
-                sbuf.append(oAsString);
-            else
-            	sbuf.append(parameterStyle.replace("${parameter}", oAsString));
-        } catch (Throwable t) {
-            Reporter.error("Failed toString() invocation on an object of type [" + o.getClass().getName() + "]", t);
-            sbuf.append("[FAILED toString()]");
+    private static void safeObjectAppend(Output out, Object o) {
+        /* Cheap paths for the most common argument types */
+        if (o instanceof String str) {
+            out.parameter(str);
+        } else if (o instanceof Integer || o instanceof Long || o instanceof Short || o instanceof Byte) {
+            out.parameter(((Number) o).longValue());
+        } else {
+            try {
+                out.parameter(o.toString());
+            } catch (Throwable t) {
+                Reporter.error("Failed toString() invocation on an object of type [" + o.getClass().getName() + "]", t);
+                out.sbuf.append("[FAILED toString()]");
+            }
         }
-
     }
 
-    private static void objectArrayAppend(String parameterStyle, StringBuilder sbuf, Object[] a, Map<Object[], Object> seenMap) {
+    private static void objectArrayAppend(Output out, Object[] a) {
+        StringBuilder sbuf = out.sbuf;
+        Map<Object[], Object> seenMap = out.seenMap();
         sbuf.append('[');
         if (!seenMap.containsKey(a)) {
             seenMap.put(a, null);
             final int len = a.length;
             for (int i = 0; i < len; i++) {
-                deeplyAppendParameter(parameterStyle, sbuf, a[i], seenMap);
+                deeplyAppendParameter(out, a[i]);
                 if (i != len - 1)
                     sbuf.append(", ");
             }
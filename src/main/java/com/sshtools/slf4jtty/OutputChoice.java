@@ -20,6 +20,10 @@ public class OutputChoice {
 
     final OutputChoiceType outputChoiceType;
     final PrintStream targetPrintStream;
+    /** Time index of a file, or {@code null} if not indexed */
+    final TimeIndex index;
+    /** The output that replaced this one, or {@code null}. Guarded by the lock of its writer. */
+    OutputChoice replacement;
 
     OutputChoice(OutputChoiceType outputChoiceType) {
         if (outputChoiceType == OutputChoiceType.FILE) {
@@ -33,16 +37,23 @@ public class OutputChoice {
         } else {
             this.targetPrintStream = null;
         }
+        this.index = null;
     }
 
     OutputChoice(Terminal terminal) {
         this.outputChoiceType = OutputChoiceType.TERMINAL;
         this.targetPrintStream = new PrintStream(terminal.output());
+        this.index = null;
     }
 
     OutputChoice(PrintStream printStream) {
+        this(printStream, null);
+    }
+
+    OutputChoice(PrintStream printStream, TimeIndex index) {
         this.outputChoiceType = OutputChoiceType.FILE;
         this.targetPrintStream = printStream;
+        this.index = index;
     }
 
     PrintStream getTargetPrintStream() {
@@ -0,0 +1,140 @@
+package com.sshtools.slf4jtty;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.slf4j.event.Level;
+
+import com.sshtools.slf4jtty.TtyLoggerConfiguration.Notice;
+import com.sshtools.slf4jtty.TtyLoggerConfiguration.Overload;
+
+/**
+ * Decides when events should be dropped because a sink cannot keep up.
+ * <p>
+ * Each {@link CombiningWriter} has its own policy, so a slow sink only sheds events for
+ * itself. The writer reports how long each write to its sink took. A moving
+ * average of this is compared against two thresholds. Above the first, TRACE and DEBUG
+ * events are dropped, above the second INFO events are dropped too. WARN and ERROR
+ * events are never dropped. Each stage is only left once the average falls to half of
+ * its threshold, so the policy does not flap around a threshold.
+ * <p>
+ * Checking an event is a single volatile read while there is no pressure. When
+ * pressure eases, a notice summarising how many events of each level were dropped is
+ * emitted.
+ * <p>
+ * If nothing at all has been written for a while (because everything is being dropped),
+ * the next event is let through regardless to probe the sink again.
+ */
+final class OverloadPolicy {
+
+	private final static int NONE = -1;
+	private final static long PROBE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	private final static Level[] SHEDDABLE = { Level.TRACE, Level.DEBUG, Level.INFO };
+
+	private final String output;
+	private final Consumer<Notice> notices;
+	private final LongAdder[] dropped = new LongAdder[SHEDDABLE.length];
+
+	private Overload mode = Overload.BLOCK;
+	private long debugThreshold;
+	private long infoThreshold;
+	private boolean jfr;
+
+	private volatile int shedLevel = NONE;
+	private volatile long lastSample;
+
+	/* Guarded by the lock of the writer this belongs to */
+	private long average;
+	private long shedStarted;
+
+	OverloadPolicy(String output, Consumer<Notice> notices) {
+		this.output = output;
+		this.notices = notices;
+		for (int i = 0; i < dropped.length; i++) {
+			dropped[i] = new LongAdder();
+		}
+	}
+
+	void configure(Overload mode, long debugThresholdMs, long infoThresholdMs, boolean jfr) {
+		this.mode = mode;
+		this.jfr = jfr;
+		this.debugThreshold = TimeUnit.MILLISECONDS.toNanos(debugThresholdMs);
+		this.infoThreshold = TimeUnit.MILLISECONDS.toNanos(infoThresholdMs);
+	}
+
+	/**
+	 * Get whether an event of the given level should be dropped.
+	 *
+	 * @param level level integer
+	 * @return drop event
+	 */
+	boolean shed(int level) {
+		if (level > shedLevel) {
+			return false;
+		}
+		var now = System.nanoTime();
+		if (now - lastSample > PROBE_NANOS) {
+			lastSample = now;
+			return false;
+		}
+		dropped[index(level)].increment();
+		return true;
+	}
+
+	/**
+	 * Record how long a write to the sink took. Must only be called by the thread
+	 * holding the lock of the writer this belongs to.
+	 *
+	 * @param nanos time taken
+	 */
+	void written(long nanos) {
+		if (mode != Overload.SHED) {
+			return;
+		}
+
+		var now = System.nanoTime();
+		lastSample = now;
+		average += (nanos - average) / 8;
+
+		var current = shedLevel;
+		int next;
+		if (average > infoThreshold || (current == AbstractLogger.LOG_LEVEL_INFO && average > infoThreshold / 2)) {
+			next = AbstractLogger.LOG_LEVEL_INFO;
+		} else if (average > debugThreshold || (current != NONE && average > debugThreshold / 2)) {
+			next = AbstractLogger.LOG_LEVEL_DEBUG;
+		} else {
+			next = NONE;
+		}
+
+		if (next != current) {
+			if (current == NONE) {
+				shedStarted = now;
+			} else if (next == NONE) {
+				var secs = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(now - shedStarted));
+				for (int i = 0; i < SHEDDABLE.length; i++) {
+					var count = dropped[i].sumThenReset();
+					if (count > 0) {
+						notices.accept(new Notice(Level.WARN, "Dropped {} {} events for output {} in {}s",
+								String.format("%,d", count), SHEDDABLE[i], output, secs));
+						if (jfr) {
+							JfrEvents.dropped(output, SHEDDABLE[i], count, secs);
+						}
+					}
+				}
+			}
+			shedLevel = next;
+		}
+	}
+
+	private static int index(int level) {
+		switch (level) {
+		case AbstractLogger.LOG_LEVEL_TRACE:
+			return 0;
+		case AbstractLogger.LOG_LEVEL_DEBUG:
+			return 1;
+		default:
+			return 2;
+		}
+	}
+}
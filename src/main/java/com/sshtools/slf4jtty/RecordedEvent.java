@@ -0,0 +1,28 @@
+package com.sshtools.slf4jtty;
+
+import java.util.List;
+
+import org.slf4j.Marker;
+import org.slf4j.event.Level;
+
+/**
+ * An event read by an {@link EventDecoder}, with everything needed to log it again.
+ *
+ * @param nanos nanoseconds since recording started
+ * @param time time of the event, in milliseconds since the epoch
+ * @param level level
+ * @param logger logger name
+ * @param thread thread name
+ * @param threadId thread id, or -1 if not known
+ * @param markers markers, empty if there are none
+ * @param pattern message pattern
+ * @param arguments arguments
+ * @param keys keys of key value pairs
+ * @param values values of key value pairs
+ * @param mdc MDC
+ * @param throwable throwable, or {@code null}
+ */
+record RecordedEvent(long nanos, long time, Level level, String logger, String thread, long threadId,
+		List<Marker> markers, String pattern, Object[] arguments, String[] keys, Object[] values, TtyMDCAdapter.Context mdc,
+		Throwable throwable) {
+}
@@ -2,10 +2,8 @@ package com.sshtools.slf4jtty;
 
 import static java.util.Objects.requireNonNull;
 
-import java.util.Stack;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.Consumer;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.jline.style.NopStyleSource;
 import org.jline.style.StyleExpression;
@@ -30,8 +28,15 @@ import org.jline.utils.AttributedStyle;
 public class RecursiveStyleExpression {
 	private final StyleResolver resolver;
 	
+	private final List<String> stack = new ArrayList<>();
+	private final StringBuilder tail = new StringBuilder();
+	private final StringBuilder styleName = new StringBuilder();
+	
 	private int maxLength = 0;
 	private String ellipsis = "..";
+	private boolean go;
+	private int cidx;
+	private int maybeEllipsis;
 
     public RecursiveStyleExpression() {
         this(new StyleResolver(new NopStyleSource(), ""));
@@ -62,6 +67,9 @@ public class RecursiveStyleExpression {
 
 	/**
      * Evaluate expression and append to buffer.
+     * <p>
+     * Scratch state is held by this instance and re-used for each evaluation, so
+     * an instance must not be used by more than one thread at a time.
      *
      * @param buff the buffer to append to
      * @param expression the expression to evaluate
@@ -70,60 +78,35 @@ public class RecursiveStyleExpression {
         requireNonNull(buff);
         requireNonNull(expression);
         
-     // 
-        var chars = expression.toCharArray();
+        stack.clear();
+        tail.setLength(0);
+        go = true;
+        cidx = 0;
+        maybeEllipsis = maxLength == 0 || ellipsis == null || ellipsis.length() == 0 ? 0 : maxLength - ellipsis.length();
         
-        @Deprecated /* Maybe */
-        var stack = new Stack<String>();
-
-        var go = new AtomicBoolean(true);
-        var cidx = new AtomicInteger();
         var introducer = 0;
         var escape = false;
-        var maybeEllipsis = maxLength == 0 || ellipsis == null || ellipsis.length() == 0 ? 0 : maxLength - ellipsis.length();
-        var tail = new StringBuffer();
-        StringBuilder styleName = null;
-        
-        Consumer<Character> appender = (ch) -> {
-    		var cix= cidx.getAndIncrement();
-        	if(maxLength == 0) {
-        		buff.append(ch);
-        	}
-        	else {
-	        	if(maybeEllipsis != 0 && cix >= maybeEllipsis) {
-	        		tail.append(ch);
-	        	}
-	        	else {
-	        		buff.append(ch);
-	        	}
-	        	if(cix == maxLength) {
-	        		buff.append(ellipsis);
-	        		tail.setLength(0);
-	        		go.set(false);
-	        		buff.style(AttributedStyle.DEFAULT);
-	        	}
-        	}
-        };
+        var inStyleName = false;
         
-        for(int i = 0 ; i < chars.length && go.get(); i++) {
-        	var ch = chars[i];
-        	if(styleName != null) {
+        for(int i = 0 ; i < expression.length() && go; i++) {
+        	var ch = expression.charAt(i);
+        	if(inStyleName) {
         		if(ch == ' ' && styleName.length() > 0) {
                     var styleStr = styleName.toString();
 					var style = resolver.resolve(styleStr);
-                    stack.push(styleStr);
+                    stack.add(styleStr);
                     buff.style(style);
-        			styleName = null;
+                    inStyleName = false;
         		}
         		else if(ch == '}') {
         			/* Null content, just ignore */
-        			styleName = null;
+        			inStyleName = false;
         		} else if(ch != ' ') {
         			styleName.append(ch);
         		}
         	}
         	else if(escape) {
-        		appender.accept(ch);
+        		append(buff, ch);
         		escape = false;
         	}
         	else {
@@ -134,7 +117,8 @@ public class RecursiveStyleExpression {
 	        		introducer++;
 	        	}
 	        	else if(ch == '{' && introducer == 1) {
-	        		styleName = new StringBuilder();
+	        		inStyleName = true;
+	        		styleName.setLength(0);
 	        		if(!stack.isEmpty()) {
 	        			styleName.append(String.join(",", stack));
 	        			styleName.append(",");
@@ -142,7 +126,7 @@ public class RecursiveStyleExpression {
 	        		introducer = 0;
 	        	}
 	        	else if(ch == '}' && !stack.isEmpty()) {
-	        		stack.pop();
+	        		stack.remove(stack.size() - 1);
 	        		if(stack.isEmpty()) {
 	        			buff.style(AttributedStyle.DEFAULT);
 	        		}
@@ -154,16 +138,37 @@ public class RecursiveStyleExpression {
 	        	}
 	        	else {
 	        		introducer = 0;
-	        		appender.accept(ch);
+	        		append(buff, ch);
 	        	}
         	}
         }
         
         if(tail.length() > 0) {
-        	buff.append(tail.toString());
+        	buff.append(tail);
         }
     }
 
+    private void append(AttributedStringBuilder buff, char ch) {
+		var cix= cidx++;
+    	if(maxLength == 0) {
+    		buff.append(ch);
+    	}
+    	else {
+        	if(maybeEllipsis != 0 && cix >= maybeEllipsis) {
+        		tail.append(ch);
+        	}
+        	else {
+        		buff.append(ch);
+        	}
+        	if(cix == maxLength) {
+        		buff.append(ellipsis);
+        		tail.setLength(0);
+        		go = false;
+        		buff.style(AttributedStyle.DEFAULT);
+        	}
+    	}
+    }
+
     /**
      * Evaluate expression.
      *
@@ -0,0 +1,173 @@
+package com.sshtools.slf4jtty;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Recognises a logger repeatedly logging the same event, so the repeats can be
+ * suppressed and replaced with a single summary when the run of repeats ends.
+ * <p>
+ * An event is a repeat of the previous one if it has the same level, message pattern,
+ * arguments and exception type and message, and arrives within the configured window
+ * of the first event of the run. A cheap fingerprint is compared first. Arguments are
+ * compared using {@link Object#equals(Object)} for strings, numbers and other simple
+ * values, and by identity for everything else, so no argument is ever formatted or
+ * deeply hashed to decide if it is a repeat.
+ * <p>
+ * Each logger has its own filter, and the state for the current run is swapped
+ * atomically, so whichever thread (or the housekeeping task when a window expires)
+ * ends a run is the only one to report it.
+ */
+final class RepeatFilter {
+
+	/**
+	 * A run of identical events.
+	 */
+	final static class Run {
+		final int level;
+		final String pattern;
+		final Object[] args;
+		final Class<?> throwableType;
+		final String throwableMessage;
+		final int fingerprint;
+		final long started;
+		final AtomicLong count = new AtomicLong();
+
+		private Run(int level, String pattern, Object[] args, Throwable throwable, int fingerprint, long started) {
+			this.level = level;
+			this.pattern = pattern;
+			/* Arguments arrays may be re-used by the caller */
+			this.args = args == null ? null : args.clone();
+			this.throwableType = throwable == null ? null : throwable.getClass();
+			this.throwableMessage = throwable == null ? null : throwable.getMessage();
+			this.fingerprint = fingerprint;
+			this.started = started;
+		}
+
+		boolean expired(long now, long window) {
+			return now - started >= window;
+		}
+
+		private boolean matches(int level, String pattern, Object[] args, Throwable throwable, int fingerprint) {
+			if (this.fingerprint != fingerprint || this.level != level || !Objects.equals(this.pattern, pattern)) {
+				return false;
+			}
+			if (throwable == null) {
+				if (throwableType != null)
+					return false;
+			} else if (throwable.getClass() != throwableType || !Objects.equals(throwable.getMessage(), throwableMessage)) {
+				return false;
+			}
+			if (args == this.args) {
+				return true;
+			}
+			if (args == null || this.args == null || args.length != this.args.length) {
+				return false;
+			}
+			for (int i = 0; i < args.length; i++) {
+				if (!same(args[i], this.args[i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Returned by {@link #filter(int, String, Object[], Throwable, long)} when the
+	 * event is a repeat and should be suppressed.
+	 */
+	final static Run SUPPRESSED = new Run(0, null, null, null, 0, 0);
+
+	private final AtomicReference<Run> last = new AtomicReference<>();
+	private final Consumer<Run> onFirstRepeat;
+
+	RepeatFilter(Consumer<Run> onFirstRepeat) {
+		this.onFirstRepeat = onFirstRepeat;
+	}
+
+	/**
+	 * Filter an event. If it is a repeat of the current run, {@link #SUPPRESSED} is
+	 * returned. Otherwise a new run is started, and if the previous run had any repeats
+	 * it is returned so they may be reported. If there is nothing to report,
+	 * {@code null} is returned.
+	 *
+	 * @param level level
+	 * @param pattern message pattern
+	 * @param args arguments
+	 * @param throwable throwable
+	 * @param window window in milliseconds
+	 * @return {@link #SUPPRESSED}, the ended run or {@code null}
+	 */
+	Run filter(int level, String pattern, Object[] args, Throwable throwable, long window) {
+		var fingerprint = fingerprint(level, pattern, args);
+		var now = System.currentTimeMillis();
+		var run = last.get();
+		if (run != null && !run.expired(now, window) && run.matches(level, pattern, args, throwable, fingerprint)) {
+			if (run.count.getAndIncrement() == 0) {
+				onFirstRepeat.accept(run);
+			}
+			return SUPPRESSED;
+		}
+		var ended = last.getAndSet(new Run(level, pattern, args, throwable, fingerprint, now));
+		return ended == null || ended.count.get() == 0 ? null : ended;
+	}
+
+	/**
+	 * End the given run if it is still the current one, returning whether this
+	 * caller is now responsible for reporting it.
+	 *
+	 * @param run run
+	 * @return ended
+	 */
+	boolean end(Run run) {
+		return last.compareAndSet(run, null);
+	}
+
+	/**
+	 * Get whether the given run is still the current one.
+	 *
+	 * @param run run
+	 * @return current
+	 */
+	boolean current(Run run) {
+		return last.get() == run;
+	}
+
+	private static int fingerprint(int level, String pattern, Object[] args) {
+		var hash = 31 * level + (pattern == null ? 0 : pattern.hashCode());
+		if (args != null) {
+			for (var arg : args) {
+				hash = 31 * hash + hash(arg);
+			}
+		}
+		return hash;
+	}
+
+	private static boolean simple(Object o) {
+		return o instanceof String || o instanceof Number || o instanceof Boolean || o instanceof Character
+				|| o instanceof Enum;
+	}
+
+	private static int hash(Object o) {
+		if (o == null)
+			return 0;
+		else if (simple(o))
+			return o.hashCode();
+		else
+			return System.identityHashCode(o);
+	}
+
+	private static boolean same(Object a, Object b) {
+		if (a == b)
+			return true;
+		else if (a == null || b == null)
+			return false;
+		else if (simple(a))
+			return a.equals(b);
+		else
+			return false;
+	}
+}
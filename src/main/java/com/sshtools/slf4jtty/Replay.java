@@ -0,0 +1,162 @@
+package com.sshtools.slf4jtty;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+
+/**
+ * Replays a recording of events, made by setting <code>record-file</code> in the
+ * <code>[log]</code> section, through the current configuration. This allows changes to
+ * the configuration (the layout, styles, sinks and so on) to be measured against a real
+ * workload, with its actual mix of loggers, patterns, arguments, levels and exceptions.
+ * <p>
+ * The recording is read into memory first, then each event is logged again using the
+ * fluent API, on a single thread that takes the name of the thread that originally
+ * logged it (but keeps its own id), with the same MDC. The events per second and the p50, p99 and p99.9 latency
+ * of each call are then reported.
+ * <p>
+ * The configuration is loaded in the usual way, except that any <code>record-file</code>
+ * is ignored. The first argument is the recording, and any others are options given as
+ * <code>name=value</code>.
+ * <ul>
+ * <li><code>speed</code>, either <code>max</code> (the default) to log each event as
+ * soon as the last has been, <code>original</code> to keep the original time between
+ * events, or a number to multiply the original rate by.</li>
+ * <li><code>repeat</code>, the number of times to replay the recording, defaults to 1.</li>
+ * <li><code>warmup</code>, the number of times to replay the recording at maximum
+ * speed before measuring, defaults to 0.</li>
+ * </ul>
+ */
+public final class Replay {
+
+	private Replay() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			System.err.println("Usage: Replay <recording> [speed=max|original|<factor>] [repeat=<n>] [warmup=<n>]");
+			System.exit(2);
+		}
+
+		var options = new LinkedHashMap<String, String>();
+		for (int i = 1; i < args.length; i++) {
+			var idx = args[i].indexOf('=');
+			if (idx == -1) {
+				throw new IllegalArgumentException("Options must be in the form name=value, not '" + args[i] + "'.");
+			}
+			options.put(args[i].substring(0, idx), args[i].substring(idx + 1));
+		}
+		var speedOption = options.getOrDefault("speed", "max");
+		var speed = speedOption.equals("max") ? 0 : speedOption.equals("original") ? 1 : Double.parseDouble(speedOption);
+		var repeat = Integer.parseInt(options.getOrDefault("repeat", "1"));
+		var warmup = Integer.parseInt(options.getOrDefault("warmup", "0"));
+
+		var events = read(args[0]);
+		if (events.isEmpty()) {
+			System.out.println("The recording contains no events.");
+			return;
+		}
+
+		var cfg = TtyLoggerConfiguration.get();
+		if (!cfg.compiled.recordFile.equals("")) {
+			/* Don't record the replay */
+			cfg.update(bldr -> bldr.recordFile = "");
+		}
+		var factory = new TtyLoggerFactory(cfg);
+
+		for (int i = 0; i < warmup; i++) {
+			replay(factory, events, 0, new LatencyHistogram());
+		}
+
+		var latency = new LatencyHistogram();
+		var started = System.nanoTime();
+		for (int i = 0; i < repeat; i++) {
+			replay(factory, events, speed, latency);
+		}
+		var elapsed = System.nanoTime() - started;
+
+		var recorded = events.get(events.size() - 1).nanos();
+		System.out.printf("Replayed %,d events (recorded over %.3fs) in %.3fs%n", latency.count(),
+				recorded / 1e9, elapsed / 1e9);
+		System.out.printf("%14s %10s %10s %10s %10s%n", "Events/s", "p50 ns", "p99 ns", "p99.9 ns", "max ns");
+		System.out.printf("%,14.0f %10d %10d %10d %10d%n", latency.count() / (elapsed / 1e9), latency.percentile(50),
+				latency.percentile(99), latency.percentile(99.9), latency.max());
+	}
+
+	/**
+	 * Read all events in a recording.
+	 *
+	 * @param file recording
+	 * @return events
+	 * @throws IOException on error
+	 */
+	static List<RecordedEvent> read(String file) throws IOException {
+		var events = new ArrayList<RecordedEvent>();
+		try (var decoder = new EventDecoder(new FileInputStream(file))) {
+			RecordedEvent event;
+			while ((event = decoder.next()) != null) {
+				events.add(event);
+			}
+		}
+		return events;
+	}
+
+	/**
+	 * Log each of the events again, using loggers from a factory.
+	 *
+	 * @param factory factory
+	 * @param events events
+	 * @param speed multiplier of the original rate, or zero for as fast as possible
+	 * @param latency histogram to record the latency of each event in
+	 */
+	static void replay(TtyLoggerFactory factory, List<RecordedEvent> events, double speed, LatencyHistogram latency) {
+		var thread = Thread.currentThread();
+		var name = thread.getName();
+		var mdc = TtyMDCAdapter.context();
+		var start = System.nanoTime();
+		try {
+			for (var event : events) {
+				if (speed > 0) {
+					var wait = start + (long) (event.nanos() / speed) - System.nanoTime();
+					if (wait > 0) {
+						LockSupport.parkNanos(wait);
+					}
+				}
+				thread.setName(event.thread());
+				TtyMDCAdapter.set(event.mdc());
+				var logger = factory.getLogger(event.logger());
+
+				var t0 = System.nanoTime();
+				log(logger, event);
+				latency.record(System.nanoTime() - t0);
+			}
+		} finally {
+			thread.setName(name);
+			TtyMDCAdapter.set(mdc);
+		}
+	}
+
+	private static void log(Logger logger, RecordedEvent event) {
+		var bldr = logger.atLevel(event.level()).setMessage(event.pattern());
+		for (var arg : event.arguments()) {
+			bldr = bldr.addArgument(arg);
+		}
+		for (var marker : event.markers()) {
+			bldr = bldr.addMarker(marker);
+		}
+		var keys = event.keys();
+		var values = event.values();
+		for (int i = 0; i < keys.length; i++) {
+			bldr = bldr.addKeyValue(keys[i], values[i]);
+		}
+		if (event.throwable() != null) {
+			bldr = bldr.setCause(event.throwable());
+		}
+		bldr.log();
+	}
+}
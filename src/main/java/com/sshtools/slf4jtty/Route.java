@@ -0,0 +1,75 @@
+package com.sshtools.slf4jtty;
+
+import java.util.ArrayList;
+
+import com.sshtools.slf4jtty.CompiledConfiguration.Sink;
+
+/**
+ * The outputs that events from a logger are written to, resolved against a particular
+ * {@link CompiledConfiguration}.
+ * <p>
+ * By default, a logger writes to the primary output and every sink that is not
+ * <code>routed</code>. A prefix in the loggers INI file may instead name the sinks its
+ * loggers write to with one or more <code>sink</code> keys, where
+ * <code>default</code> is the primary output. These names are resolved when a logger
+ * is created, and again when either configuration is reloaded, so choosing the outputs
+ * for an event is not a lookup.
+ */
+final class Route {
+
+	/** The name of the primary output when routing */
+	final static String DEFAULT = "default";
+
+	/** The names this was resolved from, or {@code null} if not routed */
+	final String[] names;
+	final CompiledConfiguration cfg;
+	/** Whether the primary output is written to */
+	final boolean primary;
+	final Sink[] sinks;
+
+	private Route(String[] names, CompiledConfiguration cfg, boolean primary, Sink[] sinks) {
+		this.names = names;
+		this.cfg = cfg;
+		this.primary = primary;
+		this.sinks = sinks;
+	}
+
+	/**
+	 * Get the route for loggers that are not routed to particular sinks.
+	 *
+	 * @param cfg configuration
+	 * @return route
+	 */
+	static Route unrouted(CompiledConfiguration cfg) {
+		var sinks = new ArrayList<Sink>(cfg.sinks.length);
+		for (var sink : cfg.sinks) {
+			if (!sink.routed()) {
+				sinks.add(sink);
+			}
+		}
+		return new Route(null, cfg, true, sinks.toArray(new Sink[0]));
+	}
+
+	/**
+	 * Resolve sink names. Names of sinks that are not configured are ignored.
+	 *
+	 * @param names sink names
+	 * @param cfg configuration
+	 * @return route
+	 */
+	static Route of(String[] names, CompiledConfiguration cfg) {
+		var primary = false;
+		var sinks = new ArrayList<Sink>(names.length);
+		for (var name : names) {
+			if (name.equals(DEFAULT)) {
+				primary = true;
+			} else {
+				var sink = cfg.sink(name);
+				if (sink != null && !sinks.contains(sink)) {
+					sinks.add(sink);
+				}
+			}
+		}
+		return new Route(names, cfg, primary, sinks.toArray(new Sink[0]));
+	}
+}
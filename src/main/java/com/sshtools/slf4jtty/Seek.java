@@ -0,0 +1,81 @@
+package com.sshtools.slf4jtty;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashMap;
+
+/**
+ * Writes the part of a log file that covers a range of time to standard output, using
+ * the index kept alongside it when <code>index-events</code> or <code>index-kb</code> is set
+ * in the <code>[log]</code> section. Only the part of the log that is needed is read, so
+ * this takes about the same time however large the log is.
+ * <p>
+ * The index is sparse, so the output may start a little before and end a little after
+ * the range. Logs in the <code>JSON</code> format may be piped to {@link JsonView} to
+ * render them, and to filter by time exactly.
+ * <p>
+ * The first argument is the log file, and any others are options given as
+ * <code>name=value</code>.
+ * <ul>
+ * <li><code>from</code>, the earliest time, defaults to the start of the log.</li>
+ * <li><code>to</code>, the latest time, defaults to the end of the log.</li>
+ * </ul>
+ * Times may be an ISO 8601 local date and time (e.g. <code>2026-10-19T03:12</code>), a
+ * time today (e.g. <code>03:12</code>), or milliseconds since the epoch.
+ */
+public final class Seek {
+
+	private Seek() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			System.err.println("Usage: Seek <log-file> [from=<time>] [to=<time>]");
+			System.exit(2);
+		}
+
+		var options = new LinkedHashMap<String, String>();
+		for (int i = 1; i < args.length; i++) {
+			var idx = args[i].indexOf('=');
+			if (idx == -1) {
+				throw new IllegalArgumentException("Options must be in the form name=value, not '" + args[i] + "'.");
+			}
+			options.put(args[i].substring(0, idx), args[i].substring(idx + 1));
+		}
+		var from = options.containsKey("from") ? time(options.get("from")) : Long.MIN_VALUE;
+		var to = options.containsKey("to") ? time(options.get("to")) : Long.MAX_VALUE;
+
+		try (var in = TimeIndex.open(args[0], from, to)) {
+			in.transferTo(System.out);
+		}
+		System.out.flush();
+	}
+
+	/**
+	 * Parse a time given as an option.
+	 *
+	 * @param time time
+	 * @return milliseconds since the epoch
+	 */
+	static long time(String time) {
+		var zone = ZoneId.systemDefault();
+		try {
+			return LocalDateTime.parse(time).atZone(zone).toInstant().toEpochMilli();
+		} catch (DateTimeParseException dtpe) {
+			/* Not a date and time */
+		}
+		try {
+			return LocalTime.parse(time).atDate(LocalDate.now()).atZone(zone).toInstant().toEpochMilli();
+		} catch (DateTimeParseException dtpe) {
+			/* Not a time */
+		}
+		try {
+			return Long.parseLong(time);
+		} catch (NumberFormatException nfe) {
+			throw new IllegalArgumentException("'" + time + "' is not a date and time, a time or milliseconds since the epoch.");
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package com.sshtools.slf4jtty;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies in nanoseconds like {@link LatencyHistogram}, but that any
+ * number of threads may record to at once without contending, as each bucket is a
+ * {@link LongAdder}. To keep the number of adders down, each power of two is split into
+ * 8 sub-buckets, so a value is recorded to within about 12%, and values above about
+ * 18 minutes are recorded as that.
+ * <p>
+ * Reading is not atomic with respect to recording, so a percentile read while
+ * recording may be slightly out.
+ */
+final class StripedHistogram {
+
+	private final static int SUB_BITS = 3;
+	private final static long MAX = 1L << 40;
+
+	private final LongAdder[] counts = new LongAdder[LatencyHistogram.index(MAX, SUB_BITS) + 1];
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	StripedHistogram() {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = new LongAdder();
+		}
+	}
+
+	void record(long nanos) {
+		counts[LatencyHistogram.index(Math.min(MAX, Math.max(0, nanos)), SUB_BITS)].increment();
+		max.accumulate(nanos);
+	}
+
+	long count() {
+		var total = 0L;
+		for (var count : counts) {
+			total += count.sum();
+		}
+		return total;
+	}
+
+	long max() {
+		return max.get();
+	}
+
+	/**
+	 * Get the value at a percentile, as the lower bound of the bucket it falls in.
+	 *
+	 * @param percentile percentile, from 0 to 100
+	 * @return value in nanoseconds
+	 */
+	long percentile(double percentile) {
+		var snapshot = new long[counts.length];
+		var total = 0L;
+		for (int i = 0; i < counts.length; i++) {
+			snapshot[i] = counts[i].sum();
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		var target = Math.max(1, (long) Math.ceil(total * percentile / 100d));
+		var seen = 0L;
+		for (int i = 0; i < snapshot.length; i++) {
+			seen += snapshot[i];
+			if (seen >= target) {
+				return LatencyHistogram.value(i, SUB_BITS);
+			}
+		}
+		return max();
+	}
+
+	void reset() {
+		for (var count : counts) {
+			count.reset();
+		}
+		max.reset();
+	}
+}
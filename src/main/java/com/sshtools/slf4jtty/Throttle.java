@@ -0,0 +1,138 @@
+package com.sshtools.slf4jtty;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sshtools.jini.INI.Section;
+
+/**
+ * Limits the rate of events from all loggers under a prefix, as configured in the
+ * loggers INI file. Either or both of the following may be used.
+ * <ul>
+ * <li><code>sample = N</code> lets only 1 in every N events through.</li>
+ * <li><code>rate-limit = N</code> lets at most N events per second through, with
+ * bursts of up to <code>rate-burst</code> events (which defaults to the rate).</li>
+ * </ul>
+ * Either may be restricted to particular message patterns using one or more
+ * <code>pattern</code> keys, otherwise they apply to all events. The same logger
+ * section may be repeated to declare different limits for different patterns.
+ * <p>
+ * Throttles are checked after the level check and before any formatting. A sampled
+ * out event costs one atomic increment plus one striped counter increment to record
+ * it was skipped. The rate limit is a lock-free "generic cell rate algorithm" token
+ * bucket, costing a clock read and a compare-and-set. Skipped events are reported
+ * periodically by the housekeeping task.
+ */
+final class Throttle {
+
+	private final String prefix;
+	private final String[] patterns;
+	private final long sample;
+	private final long interval;
+	private final long tolerance;
+	private final AtomicLong counter = new AtomicLong();
+	private final AtomicLong arrival = new AtomicLong(System.nanoTime());
+	private final LongAdder skipped = new LongAdder();
+
+	Throttle(String prefix, String[] patterns, long sample, double rate, double burst) {
+		this.prefix = prefix;
+		this.patterns = patterns == null || patterns.length == 0 ? null : patterns;
+		this.sample = sample;
+		if (rate > 0) {
+			interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+			tolerance = (long) (interval * Math.max(0, burst - 1));
+		} else {
+			interval = 0;
+			tolerance = 0;
+		}
+	}
+
+	/**
+	 * Create a throttle from a loggers INI section, or {@code null} if the section
+	 * has no limits.
+	 *
+	 * @param prefix logger prefix
+	 * @param section section
+	 * @return throttle or {@code null}
+	 */
+	static Throttle of(String prefix, Section section) {
+		var sample = section.getLong("sample", 0);
+		var rate = section.getDouble("rate-limit", 0);
+		if (sample < 2 && rate <= 0) {
+			return null;
+		}
+		return new Throttle(prefix, section.getAllOr("pattern", new String[0]), sample, rate,
+				section.getDouble("rate-burst", rate));
+	}
+
+	/**
+	 * Get whether an event should be let through.
+	 *
+	 * @param pattern message pattern
+	 * @return allow event
+	 */
+	boolean allow(String pattern) {
+		if (patterns != null && !matches(pattern)) {
+			return true;
+		}
+		if (sample > 1 && counter.getAndIncrement() % sample != 0) {
+			skipped.increment();
+			return false;
+		}
+		if (interval > 0) {
+			var now = System.nanoTime();
+			long tat;
+			do {
+				tat = arrival.get();
+				if (now - (tat - tolerance) < 0) {
+					skipped.increment();
+					return false;
+				}
+			} while (!arrival.compareAndSet(tat, Math.max(now, tat) + interval));
+		}
+		return true;
+	}
+
+	/**
+	 * Get the number of events skipped since this was last called.
+	 *
+	 * @return skipped
+	 */
+	long skipped() {
+		return skipped.sumThenReset();
+	}
+
+	String prefix() {
+		return prefix;
+	}
+
+	private boolean matches(String pattern) {
+		for (var p : patterns) {
+			if (p == pattern || p.equals(pattern)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		var b = new StringBuilder();
+		if (sample > 1) {
+			b.append("1 in ");
+			b.append(sample);
+		}
+		if (interval > 0) {
+			if (b.length() > 0)
+				b.append(", ");
+			b.append(String.format("%.1f/s", (double) TimeUnit.SECONDS.toNanos(1) / interval));
+		}
+		if (patterns != null) {
+			b.append(" of ");
+			b.append(Arrays.toString(patterns));
+		}
+		return b.toString();
+	}
+}
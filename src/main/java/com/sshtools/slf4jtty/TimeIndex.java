@@ -0,0 +1,292 @@
+package com.sshtools.slf4jtty;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.slf4j.helpers.Reporter;
+
+/**
+ * A sparse index of the time of events in a log file, written alongside it with the
+ * extension <code>.idx</code> when <code>index-events</code> or <code>index-kb</code> is
+ * set in the <code>[log]</code> section, so a range of time may be found in a large log
+ * without reading it from the start.
+ * <p>
+ * The index starts with a header of the magic bytes <code>SLTI</code> and a version byte,
+ * padded to the size of an entry. Each entry is the time of an event (8 bytes,
+ * milliseconds since the epoch) and the offset of its record in the log (8 bytes). Entries
+ * are only made at the start of a batch written by a {@link CombiningWriter}, which is
+ * always between whole records, so this works for any text format. Times never decrease,
+ * so the index may be searched by bisection.
+ * <p>
+ * Each entry is appended with a single write, after the records it refers to have been
+ * flushed to the log, so the index never refers past the end of the log. If the process
+ * dies part way through writing an entry, the partial entry is ignored when reading.
+ */
+final class TimeIndex implements Closeable {
+
+	final static String EXTENSION = ".idx";
+	final static int ENTRY_SIZE = 16;
+
+	private final static byte[] MAGIC = { 'S', 'L', 'T', 'I' };
+	private final static int VERSION = 1;
+
+	/**
+	 * A range of bytes in a log.
+	 *
+	 * @param start offset of the first byte
+	 * @param end offset after the last byte
+	 */
+	record Range(long start, long end) {
+	}
+
+	private final String file;
+	private final OutputStream out;
+	private final int everyEvents;
+	private final long everyBytes;
+	private final byte[] entry = new byte[ENTRY_SIZE];
+
+	/* Guarded by the lock of the writer of the log */
+	private long position;
+	private long lastTime = Long.MIN_VALUE;
+	private long lastOffset = -1;
+	private int events;
+	private boolean closed;
+
+	private TimeIndex(String file, int everyEvents, int everyKb) throws IOException {
+		this.file = file;
+		this.everyEvents = everyEvents;
+		this.everyBytes = everyKb * 1024L;
+		out = new FileOutputStream(file);
+		var header = Arrays.copyOf(MAGIC, ENTRY_SIZE);
+		header[MAGIC.length] = VERSION;
+		out.write(header);
+	}
+
+	/**
+	 * Start a new index for a log file, replacing any that exists.
+	 *
+	 * @param logFile log file
+	 * @param everyEvents number of events between entries, or zero
+	 * @param everyKb number of kilobytes between entries, or zero
+	 * @return index, or {@code null} if not indexing or the index could not be opened
+	 */
+	static TimeIndex open(String logFile, int everyEvents, int everyKb) {
+		if (everyEvents <= 0 && everyKb <= 0) {
+			return null;
+		}
+		var file = logFile + EXTENSION;
+		try {
+			return new TimeIndex(file, everyEvents, everyKb);
+		} catch (IOException e) {
+			Reporter.error("Could not open [" + file + "], the log will not be indexed.", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Wrap the stream a log is written to, so the offset of each record is known.
+	 *
+	 * @param log stream
+	 * @return counting stream
+	 */
+	OutputStream counting(OutputStream log) {
+		return new FilterOutputStream(log) {
+			@Override
+			public void write(int b) throws IOException {
+				out.write(b);
+				position++;
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				position += len;
+			}
+		};
+	}
+
+	/**
+	 * Get the number of bytes written to the log so far. Must be called while holding the
+	 * lock of the writer of the log.
+	 *
+	 * @return position
+	 */
+	long position() {
+		return position;
+	}
+
+	/**
+	 * A batch of records has been written and flushed to the log, so add an entry for it if
+	 * enough events or bytes have been written since the last. Must be called while
+	 * holding the lock of the writer of the log.
+	 *
+	 * @param offset offset in the log of the first record in the batch
+	 * @param time time of the first event in the batch
+	 * @param count number of events in the batch
+	 */
+	void written(long offset, long time, int count) {
+		if (closed) {
+			return;
+		}
+		/* Events may be published slightly out of order, but entries must never go back in time */
+		lastTime = Math.max(lastTime, time);
+		if (lastOffset == -1 || (everyEvents > 0 && events >= everyEvents)
+				|| (everyBytes > 0 && offset - lastOffset >= everyBytes)) {
+			put(lastTime, 0);
+			put(offset, 8);
+			try {
+				out.write(entry);
+			} catch (IOException e) {
+				Reporter.error("Failed to write to [" + file + "], the log will no longer be indexed.", e);
+				close();
+				return;
+			}
+			lastOffset = offset;
+			events = 0;
+		}
+		events += count;
+	}
+
+	@Override
+	public void close() {
+		if (!closed) {
+			closed = true;
+			try {
+				out.close();
+			} catch (IOException e) {
+				Reporter.error("Failed to close [" + file + "].", e);
+			}
+		}
+	}
+
+	/**
+	 * Find the range of a log that contains all events between two times, using its index.
+	 * The range starts at the last entry before <code>from</code> and ends at the first
+	 * entry after <code>to</code>, so it may include some events either side. Only a
+	 * number of entries logarithmic to the size of the index are read.
+	 *
+	 * @param logFile log file
+	 * @param from earliest time, in milliseconds since the epoch
+	 * @param to latest time, in milliseconds since the epoch
+	 * @return range
+	 * @throws IOException on error, or if the log has no index
+	 */
+	static Range range(String logFile, long from, long to) throws IOException {
+		var length = new File(logFile).length();
+		try (var idx = new RandomAccessFile(logFile + EXTENSION, "r")) {
+			var magic = new byte[MAGIC.length];
+			if (idx.length() < ENTRY_SIZE || idx.read(magic) != magic.length || !Arrays.equals(magic, MAGIC)) {
+				throw new IOException("[" + logFile + EXTENSION + "] is not an index.");
+			}
+			var version = idx.read();
+			if (version != VERSION) {
+				throw new IOException("Unsupported index version " + version + ".");
+			}
+			var entries = idx.length() / ENTRY_SIZE - 1;
+
+			/* The last entry before from, or the start of the log */
+			var start = 0L;
+			var lo = 0L;
+			var hi = entries - 1;
+			while (lo <= hi) {
+				var mid = (lo + hi) >>> 1;
+				idx.seek((mid + 1) * ENTRY_SIZE);
+				if (idx.readLong() < from) {
+					start = idx.readLong();
+					lo = mid + 1;
+				} else {
+					hi = mid - 1;
+				}
+			}
+
+			/* The first entry after to, or the end of the log */
+			var end = length;
+			lo = 0;
+			hi = entries - 1;
+			while (lo <= hi) {
+				var mid = (lo + hi) >>> 1;
+				idx.seek((mid + 1) * ENTRY_SIZE);
+				if (idx.readLong() > to) {
+					end = idx.readLong();
+					hi = mid - 1;
+				} else {
+					lo = mid + 1;
+				}
+			}
+			return new Range(Math.min(start, length), Math.max(Math.min(start, length), Math.min(end, length)));
+		}
+	}
+
+	/**
+	 * Open a log at the range that contains all events between two times.
+	 *
+	 * @param logFile log file
+	 * @param from earliest time, in milliseconds since the epoch
+	 * @param to latest time, in milliseconds since the epoch
+	 * @return stream of the range
+	 * @throws IOException on error, or if the log has no index
+	 * @see #range(String, long, long)
+	 */
+	static InputStream open(String logFile, long from, long to) throws IOException {
+		var range = range(logFile, from, to);
+		var channel = FileChannel.open(Path.of(logFile));
+		channel.position(range.start());
+		return new FilterInputStream(Channels.newInputStream(channel)) {
+			private long remaining = range.end() - range.start();
+
+			@Override
+			public int read() throws IOException {
+				if (remaining <= 0) {
+					return -1;
+				}
+				var b = in.read();
+				if (b != -1) {
+					remaining--;
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (remaining <= 0) {
+					return -1;
+				}
+				var read = in.read(b, off, (int) Math.min(len, remaining));
+				if (read > 0) {
+					remaining -= read;
+				}
+				return read;
+			}
+
+			@Override
+			public long skip(long n) throws IOException {
+				var skipped = in.skip(Math.min(n, remaining));
+				remaining -= skipped;
+				return skipped;
+			}
+
+			@Override
+			public int available() throws IOException {
+				return (int) Math.min(in.available(), remaining);
+			}
+		};
+	}
+
+	private void put(long value, int offset) {
+		for (int i = 7; i >= 0; i--) {
+			entry[offset + i] = (byte) value;
+			value >>>= 8;
+		}
+	}
+}
@@ -1,21 +1,15 @@
 package com.sshtools.slf4jtty;
 
-import java.io.PrintStream;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jline.style.StyleExpression;
 import org.jline.utils.AttributedString;
 import org.jline.utils.AttributedStringBuilder;
 import org.jline.utils.AttributedStyle;
 import org.slf4j.Logger;
-import org.slf4j.Marker;
-import org.slf4j.event.Level;
 
+import com.sshtools.slf4jtty.CompiledConfiguration.Field;
 import com.sshtools.slf4jtty.TtyLoggerConfiguration.Alignment;
+import com.sshtools.slf4jtty.TtyLoggerConfiguration.Format;
 
 /**
  * <p>
@@ -34,9 +28,6 @@ import com.sshtools.slf4jtty.TtyLoggerConfiguration.Alignment;
 @SuppressWarnings("serial")
 public class TtyLogger extends AbstractLogger {
 
-    private int lastWidth;
-    private final Map<String, Integer> fieldWidths = new HashMap<>();
-    
     /**
      * Package access allows only {@link TtyLoggerFactory} to instantiate
      * SimpleLogger instances.
@@ -46,7 +37,11 @@ public class TtyLogger extends AbstractLogger {
     }
 
     @Override
-    protected void writeThrowable(Throwable t, PrintStream targetStream) {
+    Format format(CompiledConfiguration cfg) {
+    	return cfg.format;
+    }
+
+    static void appendThrowable(AbstractLogger logger, Format format, Throwable t, StringBuilder buf) {
         if (t != null) {
         	/* TODO configurable exception printing colors */
         	Throwable nex = t;
@@ -90,15 +85,15 @@ public class TtyLogger extends AbstractLogger {
 				nex = nex.getCause();
 			}
 
-			switch(loggerConfiguration.format) {
+			switch(format) {
 			case AUTO:
-	            targetStream.print(report.toAttributedString().toAnsi(loggerConfiguration.terminal()));
+	            buf.append(report.toAttributedString().toAnsi(logger.loggerConfiguration.terminal()));
 	            break;
 			case ANSI:
-	            targetStream.print(report.toAttributedString().toAnsi(null));
+	            buf.append(report.toAttributedString().toAnsi(null));
 	            break;
 			case PLAIN:
-	            targetStream.print(report.toAttributedString().toString());
+	            buf.append(report.toAttributedString().toString());
 	            break;
 	        default:
 	        	throw new UnsupportedOperationException();
@@ -106,202 +101,237 @@ public class TtyLogger extends AbstractLogger {
         }
     }
 
-    protected void innerHandleNormalizedLoggingCall(Level level, List<Marker> markers, String messagePattern, Object[] arguments, Throwable t) {
+    /**
+     * Render an event as a single line of text in one of the terminal formats.
+     * 
+     * @param logger logger
+     * @param ctx context
+     * @param cfg configuration
+     * @param event event
+     * @param format format
+     * @param width width, or zero for the width of the terminal
+     * @param buf buffer to render to
+     */
+    static void render(AbstractLogger logger, LoggingContext ctx, CompiledConfiguration cfg, Event event, Format format, int width, StringBuilder buf) {
 
-        StringBuilder buf = new StringBuilder(32);
-    	synchronized(fieldWidths) {
-	        int width = getWidth();
-	        if(this.lastWidth != width) {
-	        	this.lastWidth = width;
-	        	fieldWidths.clear();
-	        	
-	        	int total = width - (Math.max(0, loggerConfiguration.layout.size() - 1) * loggerConfiguration.gap);;
-	        	int available = total;
-	        	int autoFields = 0;
-	        	
-	        	/* First pass that sets initial size of fixed size fields, and calculates
-	        	 * remaining space for any auto fields
-	        	 */
-	        	for(String field : loggerConfiguration.layout) {
-	        		if(!loggerConfiguration.fieldWidth.containsKey(field)) {
-	        			System.err.println("XXXXX " + field + " is not in config");
-	        			continue;
-	        		}
-	        		int fieldWidth = loggerConfiguration.fieldWidth.get(field);
-        			fieldWidths.put(field, fieldWidth);
-	        		if(fieldWidth > 0) {
-	        			available -= fieldWidth;
-	        			if(available < 0)
-	        				available = 0;
-	        		}
-	        		else
-	        			autoFields++;
-	        	}
-	        	
-	        	/* Give each auto field a portion of the available space (if any). 
-	        	 */
-	        	int autoFieldSize = autoFields == 0 ? 0 : (int)((float)Math.max(autoFields, available) / (float)autoFields);
-	        	for(Map.Entry<String, Integer> en : fieldWidths.entrySet()) {
-	        		if(en.getValue() == 0) {
-	        			en.setValue(autoFieldSize);
-	        		}
-	        	}
-	        	
-	        	/* If the total width of the row exceeds the available width, remove one character
-	        	 * from each field until all fields will fit  
-	        	 */
-	        	int totalWidth = fieldWidths.values().stream().reduce(0, Integer::sum);
-	        	int overflow = totalWidth - width;
-	        	Iterator<Map.Entry<String, Integer>> fieldIt = null;
-	        	for(int i = 0 ; i < overflow; i++) {
-	        		if(fieldIt == null || !fieldIt.hasNext()) {
-	        			fieldIt = fieldWidths.entrySet().iterator();
-	        		}
-	        		Map.Entry<String, Integer> field = fieldIt.next();
-	        		field.setValue(Math.max(1, field.getValue() - 1));
-	        	}
-	        	
-//	        	System.out.println("Col widths: " + String.join(", ", fieldWidths.values().stream().map(i -> String.valueOf(i)).toList()) + " in " + total + " (" + width + ")");
-//	        	System.out.println("0123456789012345678901234567890123456789012345678901234567890123456789012345678901234567890123456789012345678901234567890123456789012");
-//	        	System.out.println("          1         2         3         4         5         6         7         8         9         0         1         2         3  ");
-	       	}
-	    }
+        int[] fieldWidths = cfg.widths(getWidth(logger, cfg, width));
     	
     	String defaultStyle = null;
-    	if(loggerConfiguration.styleAsLevel) {
-    		defaultStyle = loggerConfiguration.levelStyles.get(level);
+    	if(cfg.styleAsLevel) {
+    		defaultStyle = cfg.levelStyle(event.level);
     	}
     	
-    	AtomicInteger fieldIdx = new AtomicInteger();
-		for (String field : loggerConfiguration.layout) {
-
-			if (field.equals("date-time")) {
-				if (loggerConfiguration.dateFormatter != null) {
-					appendField(defaultStyle, buf, field, getFormattedDate(), fieldIdx, fieldWidths.get(field));
-				} else {
-					appendField(defaultStyle, buf, field, String.valueOf(System.currentTimeMillis() - START_TIME), fieldIdx, fieldWidths.get(field));
-				}
-			}
-			else if (field.equals("thread-name")) {
-				appendField(defaultStyle, buf, field, Thread.currentThread().getName(), fieldIdx, fieldWidths.get(field));				
-			}
-			else if (field.equals("thread-id")) {
-				appendField(defaultStyle, buf, field, String.valueOf(Thread.currentThread().getId()), fieldIdx, fieldWidths.get(field));				
-			}
-			else if (field.equals("level")) {
-				String levelStyle = loggerConfiguration.levelStyles.get(level);
-				String levelText = loggerConfiguration.levelText.get(level);
-				appendField(levelStyle, buf, field, levelText, fieldIdx, fieldWidths.get(field));
-				
-			}
-			else if (field.equals("short-name")) {
-	            if (shortLogName == null)
-	            	shortLogName = computeShortName();
-				appendField(defaultStyle, buf, field, shortLogName, fieldIdx, fieldWidths.get(field));
+    	for (int fieldIdx = 0; fieldIdx < cfg.layout.length; fieldIdx++) {
+    		var field = cfg.layout[fieldIdx];
+    		var fieldWidth = fieldWidths[fieldIdx];
+    		
+			switch(field.type()) {
+			case DATE_TIME:
+				appendField(logger, ctx, cfg, format, defaultStyle, buf, field, event.date(cfg), fieldIdx, fieldWidth);
+				break;
+			case THREAD_NAME:
+				appendField(logger, ctx, cfg, format, defaultStyle, buf, field, event.threadName(), fieldIdx, fieldWidth);				
+				break;
+			case THREAD_ID:
+				appendField(logger, ctx, cfg, format, defaultStyle, buf, field, event.threadIdText(), fieldIdx, fieldWidth);				
+				break;
+			case LEVEL:
+				appendField(logger, ctx, cfg, format, cfg.levelStyle(event.level), buf, field, cfg.levelText(event.level), fieldIdx, fieldWidth);
+				break;
+			case SHORT_NAME:
+				appendField(logger, ctx, cfg, format, defaultStyle, buf, field, logger.shortName(), fieldIdx, fieldWidth);
+				break;
+			case NAME:
+				appendField(logger, ctx, cfg, format, defaultStyle, buf, field, logger.getName(), fieldIdx, fieldWidth);
+				break;
+			case MESSAGE:
+				/* Anything past the width of the column would be trimmed, so don't format it */
+				String str = event.message(cfg.parameterStyle, Math.max(1, fieldWidth - field.decorationWidth()));
+				appendField(logger, ctx, cfg, format, defaultStyle, buf, field, str, fieldIdx, fieldWidth);
+				break;
+			case MARKERS:
+				appendField(logger, ctx, cfg, format, defaultStyle, buf, field, MarkerRules.names(event.markers), fieldIdx, fieldWidth);
+				break;
+			case MDC:
+				appendField(logger, ctx, cfg, format, defaultStyle, buf, field, formatMdc(cfg, TtyMDCAdapter.context()), fieldIdx, fieldWidth);
+				break;
+			case KV:
+				appendField(logger, ctx, cfg, format, defaultStyle, buf, field, formatKeyValues(cfg, event), fieldIdx, fieldWidth);
+				break;
+			case CALLER_CLASS:
+				appendField(logger, ctx, cfg, format, defaultStyle, buf, field, event.caller().className(), fieldIdx, fieldWidth);
+				break;
+			case CALLER_METHOD:
+				appendField(logger, ctx, cfg, format, defaultStyle, buf, field, event.caller().methodName(), fieldIdx, fieldWidth);
+				break;
+			case CALLER_LINE:
+				appendField(logger, ctx, cfg, format, defaultStyle, buf, field, event.caller().line(), fieldIdx, fieldWidth);
+				break;
+			case CALLER_FILE:
+				appendField(logger, ctx, cfg, format, defaultStyle, buf, field, event.caller().fileName(), fieldIdx, fieldWidth);
+				break;
 			}
-			else if (field.equals("name")) {
-				appendField(defaultStyle, buf, field, name, fieldIdx, fieldWidths.get(field));
-			}
-			else if (field.equals("message")) {
-				String str = MessageFormatter.basicArrayFormat(loggerConfiguration.parameterStyle, messagePattern, arguments);
-				appendField(defaultStyle, buf, field, str, fieldIdx, fieldWidths.get(field));
-			}
-			else if (field.equals("markers")) {
-				if(markers == null)
-					appendField(defaultStyle, buf, field, "", fieldIdx, fieldWidths.get(field));
-				else {
-					appendField(defaultStyle, buf, field , String.join(",", markers.stream().map(Marker::getName).toList()), fieldIdx, fieldWidths.get(field));
-				}
-			}
-			
 		}
-
-        write(buf, t);
     }
 
-	private void appendField(String defaultStyle, StringBuilder buf, String field, String value, AtomicInteger fieldIdx, int fieldWidth) {
-		if(fieldIdx.get() > 0 && loggerConfiguration.gap > 0) {
-			buf.append(String.format("%" + loggerConfiguration.gap + "s", ""));
+	private static void appendField(AbstractLogger logger, LoggingContext ctx, CompiledConfiguration cfg, Format format, String defaultStyle, StringBuilder buf, Field field, String value, int fieldIdx, int fieldWidth) {
+		if(fieldIdx > 0) {
+			for(int i = 0 ; i < cfg.gap; i++) {
+				buf.append(' ');
+			}
 		}
 		
-		var valueStyle = loggerConfiguration.fieldStyles.get(field);
-		var decoration = loggerConfiguration.fieldDecoration.get(field);
-		var decorationChars = WCWidth.mk_wcswidth(decoration.replace("${" + field + "}", ""));
-		var availableWidthWidth = Math.max(1, fieldWidth - decorationChars);
-		
+		var availableWidth = Math.max(1, fieldWidth - field.decorationWidth());
+		var attrs = style(ctx, cfg, defaultStyle, field, value, availableWidth);
+		attrs = fit(ctx, field, attrs, availableWidth);
+		encode(logger, ctx, format, field, attrs, buf);
+	}
+
+	/**
+	 * Apply a field's style to its value, trimming it to the available width.
+	 * 
+	 * @param ctx context
+	 * @param cfg configuration
+	 * @param defaultStyle style of the level, or {@code null}
+	 * @param field field
+	 * @param value value
+	 * @param availableWidth width available for the value
+	 * @return styled text, in one of the buffers of the context
+	 */
+	static AttributedStringBuilder style(LoggingContext ctx, CompiledConfiguration cfg, String defaultStyle, Field field, String value, int availableWidth) {
+		var valueStyle = field.style();
 		if(defaultStyle != null) {
 			valueStyle = defaultStyle.replace("${text}", valueStyle);
 		}
 
-		var ftext = valueStyle.replace("${" + field + "}", value);
-		
-//		int extras =  countOuterCharacters(field, valueStyle);
-//		String valueText = padOrTrim(Math.max(1, fieldWidth - extras), value, field.equals("message"));
+		var ftext = valueStyle.replace(field.placeholder(), value);
 		
-		var attrs = new AttributedStringBuilder();
-		var sex = new RecursiveStyleExpression();
-		sex.setMaxLength(availableWidthWidth);
-		sex.setEllipsis(loggerConfiguration.ellipsis);
+		var attrs = ctx.attrs();
+		var sex = ctx.styler;
+		sex.setMaxLength(availableWidth);
+		sex.setEllipsis(cfg.ellipsis);
 		sex.evaluate(attrs, ftext);
+		return attrs;
+	}
+
+	/**
+	 * Pad styled text to the available width according to the field's alignment.
+	 * 
+	 * @param ctx context
+	 * @param field field
+	 * @param attrs styled text
+	 * @param availableWidth width available for the value
+	 * @return padded text, which may be in another of the buffers of the context
+	 */
+	static AttributedStringBuilder fit(LoggingContext ctx, Field field, AttributedStringBuilder attrs, int availableWidth) {
 		var styledTextLength = WCWidth.mk_wcswidth(attrs.toString());
-		if(styledTextLength < availableWidthWidth) {
-			var amount = availableWidthWidth - styledTextLength;
-			var align = loggerConfiguration.fieldAlignment.get(field);
+		if(styledTextLength < availableWidth) {
+			var amount = availableWidth - styledTextLength;
+			var align = field.alignment();
 			if(align == Alignment.LEFT) {
-				for(int i = 0 ; i < amount; i++) {
-					attrs.append(' ');
-				}
+				attrs.append(' ', amount);
 			}
 			else {
 				if(align == Alignment.CENTER) {
 					amount /= 2;
 				}
-				var indented = new AttributedStringBuilder();
-				for(int i = 0 ; i < amount; i++) {
-					indented.append(' ');
-				}
+				var indented = ctx.aligned();
+				indented.append(' ', amount);
 				indented.append(attrs);
 				attrs = indented;
 			}
 		}
-		
-		var decorated = new AttributedStringBuilder();
-		
+		return attrs;
+	}
 
+	/**
+	 * Decorate padded text and append it to the line in a terminal format.
+	 * 
+	 * @param logger logger
+	 * @param ctx context
+	 * @param format format
+	 * @param field field
+	 * @param attrs padded text
+	 * @param buf line buffer
+	 */
+	static void encode(AbstractLogger logger, LoggingContext ctx, Format format, Field field, AttributedStringBuilder attrs, StringBuilder buf) {
+		var decoration = field.decoration();
+		var placeholder = field.placeholder();
+		var decorated = ctx.decorated();
 
-		switch(loggerConfiguration.format) {
+		switch(format) {
 		case AUTO:
-			decorated.appendAnsi(decoration.replace("${" + field + "}", attrs.toAnsi(loggerConfiguration.terminal())));
-			buf.append(decorated.toAnsi(loggerConfiguration.terminal()));
+			decorated.appendAnsi(decoration.replace(placeholder, attrs.toAnsi(logger.loggerConfiguration.terminal())));
+			buf.append(decorated.toAnsi(logger.loggerConfiguration.terminal()));
             break;
 		case ANSI:
-			decorated.appendAnsi(decoration.replace("${" + field + "}", attrs.toAnsi(null)));
+			decorated.appendAnsi(decoration.replace(placeholder, attrs.toAnsi(null)));
 			buf.append(decorated.toAnsi(null));
             break;
 		case PLAIN:
-			decorated.appendAnsi(decoration.replace("${" + field + "}", attrs.toString()));
+			decorated.appendAnsi(decoration.replace(placeholder, attrs.toString()));
 			buf.append(decorated.toString());
             break;
         default:
         	throw new UnsupportedOperationException();
 		}
-		
-		fieldIdx.incrementAndGet();
 	}
 	
-	private int getWidth() {
-		int width = loggerConfiguration.width;
+	private static String formatKeyValues(CompiledConfiguration cfg, Event event) {
+		if(event.keyValueCount == 0)
+			return "";
+		var b = new StringBuilder();
+		for(int i = 0 ; i < event.keyValueCount; i++) {
+			var key = event.keys[i];
+			if(b.length() > 0)
+				b.append(' ');
+			b.append(cfg.kvKeyStyle.replace("${key}", key));
+			b.append('=');
+			b.append(cfg.kvStyles.getOrDefault(key, cfg.kvValueStyle).replace("${value}", String.valueOf(MessageFormatter.resolve(event.values[i]))));
+		}
+		return b.toString();
+	}
+	
+	private static String formatMdc(CompiledConfiguration cfg, TtyMDCAdapter.Context mdc) {
+		if(mdc.size() == 0)
+			return "";
+		var b = new StringBuilder();
+		if(cfg.mdcKeys.length == 0) {
+			for(int i = 0 ; i < mdc.size(); i++) {
+				appendMdc(b, mdc.key(i), mdc.value(i));
+			}
+		}
+		else {
+			for(var key : cfg.mdcKeys) {
+				var value = mdc.get(key);
+				if(value != null) {
+					appendMdc(b, key, value);
+				}
+			}
+		}
+		return b.toString();
+	}
+	
+	private static void appendMdc(StringBuilder b, String key, String value) {
+		if(b.length() > 0)
+			b.append(' ');
+		b.append(key);
+		b.append('=');
+		b.append(value);
+	}
+	
+	private static int getWidth(AbstractLogger logger, CompiledConfiguration cfg, int width) {
 		if(width == 0) {
 			try {
-				var terminal = loggerConfiguration.terminal();
+				var terminal = logger.loggerConfiguration.terminal();
 				if(terminal == null) 
 					width = 0;
 				else
 					width = terminal.getWidth();
-				return width < 1 ? loggerConfiguration.fallbackWidth : width;
+				return width < 1 ? cfg.fallbackWidth : width;
 			}
 			catch(Exception e) {
-				return loggerConfiguration.fallbackWidth;
+				return cfg.fallbackWidth;
 			}
 		}
 		else {
@@ -330,7 +360,8 @@ public class TtyLogger extends AbstractLogger {
                 return String.format("%-" + Math.max(1, ( width - diff )) + "s", str);
     		}
     		else {
-    			return str.substring(0, Math.max(0,  width + paramChars - diff - loggerConfiguration.ellipsisWidth)) + loggerConfiguration.ellipsis;
+    			var cfg = loggerConfiguration.compiled;
+    			return str.substring(0, Math.max(0,  width + paramChars - diff - cfg.ellipsisWidth)) + cfg.ellipsis;
     		}
         }
     } 
@@ -6,15 +6,24 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.UncheckedIOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedHashSet;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import sun.misc.Signal;
+import sun.misc.SignalHandler;
 
 import org.jline.terminal.Terminal;
 import org.jline.terminal.TerminalBuilder;
@@ -23,7 +32,6 @@ import org.slf4j.helpers.Reporter;
 
 import com.sshtools.jini.Data;
 import com.sshtools.jini.INI;
-import com.sshtools.jini.INI.Section;
 import com.sshtools.jini.config.INISet;
 import com.sshtools.slf4jtty.OutputChoice.OutputChoiceType;
 
@@ -53,34 +61,56 @@ public class TtyLoggerConfiguration {
 	}
 	
 	public enum Format {
-		AUTO, ANSI, PLAIN, JSON
+		AUTO, ANSI, PLAIN, JSON,
+		/**
+		 * Events are not rendered, but written in a compact binary form to be rendered
+		 * later by {@link Decode}.
+		 */
+		BINARY
 	}
+	
+	public enum Overload {
+		BLOCK, SHED
+	}
+	
+	/**
+	 * A message generated by the logging system itself, such as a summary of
+	 * dropped events. These are queued, and output by the next thread to log.
+	 */
+	record Notice(Level level, String pattern, Object... args) {
+	}
+	
+	/**
+	 * A run of repeated events that is being suppressed, and must be reported
+	 * when its window expires if nothing else ends it first.
+	 */
+	private record PendingRepeat(AbstractLogger logger, RepeatFilter.Run run) {
+	}
+	
+	private final static long HOUSEKEEPING_INTERVAL = 250;
 
-    static int DEFAULT_LOG_LEVEL_DEFAULT = TtyLogger.LOG_LEVEL_INFO;
-    int defaultLogLevel = DEFAULT_LOG_LEVEL_DEFAULT;
-
-    DateFormat dateFormatter = null;
-    OutputChoice outputChoice = null;
-
-    final Map<String, String> fieldStyles = new HashMap<>();
-    final Map<String, String> fieldDecoration = new HashMap<>();
-    final Map<String, Alignment> fieldAlignment = new HashMap<>();
-    final Map<Level, String> levelStyles = new HashMap<>();
-    final Map<Level, String> levelText = new HashMap<>();
-    final Map<String, Integer> loggerLevels = new HashMap<>();
-    boolean styleAsLevel;
-    int gap;
-    int width;
-    int fallbackWidth;
-    Set<String> layout;
-    final Map<String, Integer> fieldWidth = new HashMap<>();
-    String parameterStyle;
-    String ellipsis;
-    int ellipsisWidth;
-    Format format;
+    /**
+     * The current compiled configuration. This is the only mutable configuration state
+     * read when logging an event. Loggers read it once for each event they are handed,
+     * and the checks for events with markers read it for the marker rules.
+     */
+    volatile CompiledConfiguration compiled;
     
+    final Queue<Notice> notices = new ConcurrentLinkedQueue<>();
+    final LoggingMetrics metrics = new LoggingMetrics();
+    final CombiningWriter writer = new CombiningWriter(new OverloadPolicy(Route.DEFAULT, this::notice), metrics.output(Route.DEFAULT));
+    final LoggerTrie loggerTrie = new LoggerTrie();
+
     private Terminal terminal;
 	private final Supplier<Terminal> terminalFactory;
+	private volatile AbstractLogger internalLogger;
+	private final Object internalLoggerLock = new Object();
+	private final AtomicBoolean housekeeping = new AtomicBoolean();
+	private final Queue<PendingRepeat> repeats = new ConcurrentLinkedQueue<>();
+	private long lastThrottleReport = System.currentTimeMillis();
+	private final Set<String> configuredLevels = new HashSet<>();
+	private String ringSignal = "";
+	private SignalHandler previousHandler;
     
     public final static TtyLoggerConfiguration get() {
     	return Default.DEFAULT;
@@ -89,126 +119,366 @@ public class TtyLoggerConfiguration {
     TtyLoggerConfiguration(INISet output, INISet loggers, Supplier<Terminal> terminalFactory) {
     	this.terminalFactory = terminalFactory;
 
-        /* Configuration ... */
-        
-        INI config = output.document();
-		Section outputSection = config.section("output");
-		format = outputSection.getEnum(Format.class, "format");
-		styleAsLevel = outputSection.getBoolean("style-as-level");
-		gap = outputSection.getInt("gap");
-		width = outputSection.getInt("width");
-		fallbackWidth = outputSection.getInt("fallback-width");
-		parameterStyle = outputSection.get("parameter-style");
-		ellipsis = outputSection.get("ellipsis");
-		ellipsisWidth = WCWidth.mk_wcswidth(ellipsis);
-		layout = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(outputSection.getAll("layout"))));
-        
-        Section levels = config.section("levels");
-        for(Level lvl : Level.values()) {
-        	Section levelSection = levels.section(lvl.name());
-        	levelStyles.put(lvl, levelSection.get("style"));
-        	levelText.put(lvl, levelSection.get("text"));
-        }
-        
-        Section fields = config.section("fields");
-        for(Section fieldSection : fields.allSections()) {
-        	fieldDecoration.put(fieldSection.key(), fieldSection.get("decoration"));
-        	fieldStyles.put(fieldSection.key(), fieldSection.get("style"));
-        	fieldWidth.put(fieldSection.key(), fieldSection.getInt("width"));
-        	fieldAlignment.put(fieldSection.key(), fieldSection.getEnum(Alignment.class, "alignment"));
-        	if(fieldSection.key().equals("date-time")) {
-        		TtyConfigurationSet.DateTimeType dateType = fieldSection.getEnum(TtyConfigurationSet.DateTimeType.class, "type");
-        		String dateFormatStr = fieldSection.get("format");
-        		if(dateFormatStr.equals("SHORT")) {
-        			switch(dateType) {
-        			case DATE:
-            			dateFormatter = DateFormat.getDateInstance(DateFormat.SHORT);
-            			break;
-        			case TIME:
-            			dateFormatter = DateFormat.getTimeInstance(DateFormat.SHORT);
-            			break;
-            		default:
-            			dateFormatter = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT);
-            			break;
-        			}
-        		}
-        		else if(dateFormatStr.equals("LONG")) {
-        			switch(dateType) {
-        			case DATE:
-            			dateFormatter = DateFormat.getDateInstance(DateFormat.LONG);
-            			break;
-        			case TIME:
-            			dateFormatter = DateFormat.getTimeInstance(DateFormat.LONG);
-            			break;
-            		default:
-            			dateFormatter = DateFormat.getDateTimeInstance(DateFormat.LONG, DateFormat.LONG);
-            			break;
-        			}
-        		}
-        		else if(dateFormatStr.equals("MEDIUM")) {
-        			switch(dateType) {
-        			case DATE:
-            			dateFormatter = DateFormat.getDateInstance(DateFormat.MEDIUM);
-            			break;
-        			case TIME:
-            			dateFormatter = DateFormat.getTimeInstance(DateFormat.MEDIUM);
-            			break;
-            		default:
-            			dateFormatter = DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.MEDIUM);
-            			break;
-        			}
-        		}
-        		else if(dateFormatStr.equals("FULL")) {
-        			switch(dateType) {
-        			case DATE:
-            			dateFormatter = DateFormat.getDateInstance(DateFormat.FULL);
-            			break;
-        			case TIME:
-            			dateFormatter = DateFormat.getTimeInstance(DateFormat.FULL);
-            			break;
-            		default:
-            			dateFormatter = DateFormat.getDateTimeInstance(DateFormat.FULL, DateFormat.FULL);
-            			break;
-        			}
-        		}
-        		else if(!dateFormatStr.equals("TIMESTAMP")) {
-	        		 try {
-	                     dateFormatter = new SimpleDateFormat(dateFormatStr);
-	                 } catch (IllegalArgumentException e) {
-	                     Reporter.error("Bad date format; will output relative time", e);
-	                 }
-        		}
-        	}
-        }
-
-		Section logSection = config.section("log");
-		if(logSection.getBoolean("enabled")) {
-			defaultLogLevel = stringToLevel(System.getProperty("org.slf4j.simpleLogger.defaultLogLevel", logSection.getEnum(Level.class, "default-level").name()));
-		}
-		else {
-			defaultLogLevel = TtyLogger.LOG_LEVEL_OFF;
-		}
+        var outputDoc = output.document();
+        swap(new CompiledConfiguration.Builder(outputDoc));
 
-        String logFile = logSection.get("log-file", "");
-        if(logFile.startsWith("~/") || logFile.startsWith("~\\"))
-            logFile = System.getProperty("user.home") + logFile.substring(1);
-
-        outputChoice = computeOutputChoice(logFile, logSection.getEnum(OutputChoiceType.class, "output"), () -> terminal());
-
-        addLoggers(loggers.document());
+        var loggersDoc = loggers.document();
+        reloadLoggers(loggersDoc);
+        
+        outputDoc.onValueUpdate(evt -> reload(outputDoc));
+        outputDoc.onSectionUpdate(evt -> reload(outputDoc));
+        loggersDoc.onValueUpdate(evt -> reloadLoggers(loggersDoc));
+        loggersDoc.onSectionUpdate(evt -> reloadLoggers(loggersDoc));
+    }
+    
+    /**
+     * Change the current configuration, by modifying a builder populated with the current
+     * configuration, and then swapping in the resulting snapshot.
+     * 
+     * @param changes changes to make to the builder
+     */
+    synchronized void update(Consumer<CompiledConfiguration.Builder> changes) {
+    	var bldr = new CompiledConfiguration.Builder(compiled);
+    	changes.accept(bldr);
+    	swap(bldr);
+    }
+    
+    /**
+     * Compile and swap in a new snapshot after the output configuration has been
+     * reloaded. If the new configuration cannot be compiled, the current one is retained. 
+     * 
+     * @param data output configuration
+     */
+    synchronized void reload(INI data) {
+    	try {
+    		swap(new CompiledConfiguration.Builder(data));
+    	}
+    	catch(RuntimeException e) {
+    		Reporter.error("Failed to reload logging configuration, keeping current configuration.", e);
+    	}
+    }
+    
+    private void swap(CompiledConfiguration.Builder bldr) {
+    	var was = compiled;
+    	if(was != null) {
+    		if(was.format != bldr.format && (was.format == Format.JSON || bldr.format == Format.JSON)) {
+    			Reporter.warn("Cannot change format to or from JSON without restarting, keeping " + was.format + ".");
+    			bldr.format = was.format;
+    		}
+    		if(bldr.outputChoice == null && was.outputType == bldr.outputType && was.logFile.equals(bldr.logFile)) {
+    			bldr.outputChoice = was.outputChoice;
+    		}
+    		if(was.recordFile.equals(bldr.recordFile)) {
+    			bldr.recorder = was.recorder;
+    		}
+    		if(was.ring != null && was.ringSize == bldr.ringSize) {
+    			bldr.ring = was.ring;
+    		}
+    	}
+    	if(bldr.ring == null && bldr.ringSize > 0) {
+    		bldr.ring = new EventRing(bldr.ringSize);
+    	}
+    	if(bldr.recorder == null && !bldr.recordFile.equals("")) {
+    		bldr.recorder = EventRecorder.open(bldr.recordFile);
+    	}
+    	if(bldr.outputChoice == null) {
+    		bldr.outputChoice = computeOutputChoice(bldr.logFile, bldr.outputType, () -> terminal(), bldr.format, bldr.indexEvents, bldr.indexKb);
+    	}
+    	for(var en : bldr.sinks.entrySet()) {
+    		var sink = en.getValue();
+    		if(sink.outputChoice() == null) {
+    			var old = was == null ? null : was.sink(sink.name());
+    			if(old != null && old.sameOutput(sink)) {
+    				sink = sink.withOutput(old.outputChoice(), old.writer());
+    			}
+    			else {
+    				sink = sink.withOutput(computeOutputChoice(sink.logFile(), sink.outputType(), () -> terminal(), sink.format(), bldr.indexEvents, bldr.indexKb), null);
+    			}
+    		}
+    		if(sink.writer() == null) {
+    			sink = sink.withOutput(sink.outputChoice(), new CombiningWriter(new OverloadPolicy(sink.name(), this::notice), metrics.output(sink.name())));
+    		}
+    		en.setValue(sink);
+    	}
+    	var now = bldr.build();
+    	
+    	compiled = now;
+    	writer.overload().configure(now.overload, now.shedDebugLatency, now.shedInfoLatency, now.jfr);
+    	for(var sink : now.sinks) {
+    		sink.writer().overload().configure(now.overload, now.shedDebugLatency, now.shedInfoLatency, now.jfr);
+    	}
+    	metrics.register(now.jmx);
+    	if(was == null || was.defaultLevel != now.defaultLevel) {
+    		loggerTrie.defaultLevel(now.defaultLevel);
+    	}
+    	loggerTrie.captureLevel(now.captureLevel);
+    	if(was != null) {
+    		loggerTrie.reroute();
+    	}
+    	if(was != null && was.outputChoice != now.outputChoice) {
+    		writer.retire(was.outputChoice, now.outputChoice);
+    	}
+    	if(was != null && was.recorder != null && was.recorder != now.recorder) {
+    		was.recorder.close();
+    	}
+    	if(now.recorder != null) {
+    		/* So recorded events are flushed */
+    		housekeeping();
+    	}
+    	if(!ringSignal.equals(now.ring == null ? "" : now.ringSignal)) {
+    		handleRingSignal(now.ring == null ? "" : now.ringSignal);
+    	}
+    	if(was != null) {
+    		for(var old : was.sinks) {
+    			var sink = now.sink(old.name());
+    			if(sink == null || sink.writer() != old.writer()) {
+    				old.writer().retire(old.outputChoice(), null);
+    			}
+    		}
+    	}
     }
     
-    void addLoggers(Data data) {
+    /**
+     * Apply the loggers configuration, initially and after it has been reloaded. Only
+     * prefixes that were originally configured by file (and are now removed) have their
+     * levels reset, levels set at runtime using {@link #setLevel(String, Level)} for other
+     * prefixes are retained. All throttles and sink routes are replaced.
+     * 
+     * @param data loggers configuration
+     */
+    synchronized void reloadLoggers(Data data) {
+    	var levels = new HashMap<String, Integer>();
+    	var throttles = new HashMap<String, List<Throttle>>();
+    	var routes = new HashMap<String, String[]>();
+    	collectLoggers(data, levels, throttles, routes);
+    	
+    	for(var prefix : configuredLevels) {
+    		if(!levels.containsKey(prefix)) {
+    			loggerTrie.level(prefix, LoggerTrie.UNSET);
+    		}
+    	}
+    	configuredLevels.clear();
+    	for(var en : levels.entrySet()) {
+    		if(loggerTrie.level(en.getKey()) != en.getValue()) {
+    			loggerTrie.level(en.getKey(), en.getValue());
+    		}
+    		configuredLevels.add(en.getKey());
+    	}
+    	
+    	throttles(throttles);
+    	
+    	var cfg = compiled;
+    	for(var en : routes.entrySet()) {
+    		for(var sink : en.getValue()) {
+    			if(!sink.equals(Route.DEFAULT) && cfg.sink(sink) == null) {
+    				Reporter.warn("Loggers under '" + en.getKey() + "' are routed to sink '" + sink + "', which is not configured.");
+    			}
+    		}
+    	}
+    	loggerTrie.routes(routes);
+    }
+    
+    /**
+     * Replace all throttles, and make sure skipped events will be reported.
+     * 
+     * @param throttles throttles for each prefix
+     */
+    void throttles(Map<String, List<Throttle>> throttles) {
+    	loggerTrie.throttles(throttles);
+    	if(!throttles.isEmpty()) {
+    		/* So skipped events are reported */
+    		housekeeping();
+    	}
+    }
+    
+    private static void collectLoggers(Data data, Map<String, Integer> levels, Map<String, List<Throttle>> throttles, Map<String, String[]> routes) {
     	data.sections().values().forEach(sections -> {
     		for(var sec : sections) { 
+    			var name = String.join(".", sec.path());
     			var lvl = sec.get("level", "");
     			if(!lvl.equals("")) {
-    				loggerLevels.put(String.join(".", sec.path()), stringToLevel(lvl));
+    				levels.put(name, stringToLevel(lvl));
+    			}
+    			var throttle = Throttle.of(name, sec);
+    			if(throttle != null) {
+    				throttles.computeIfAbsent(name, k -> new ArrayList<>()).add(throttle);
     			}
-    			addLoggers(sec);
+    			var sinks = sec.getAllOr("sink", new String[0]);
+    			if(sinks.length > 0) {
+    				routes.merge(name, Arrays.stream(sinks).map(String::trim).toArray(String[]::new), 
+    						(a, b) -> Stream.concat(Arrays.stream(a), Arrays.stream(b)).toArray(String[]::new));
+    			}
+    			collectLoggers(sec, levels, throttles, routes);
     		}
     	});
     }
+    
+    /**
+     * Set the level for all loggers whose names start with the given prefix (split at
+     * a '.'), unless a longer prefix has its own level. An empty prefix sets the default
+     * level. A {@code null} level turns off logging for the prefix. 
+     * <p>
+     * All affected loggers that already exist are updated immediately.
+     * 
+     * @param prefix logger name prefix
+     * @param level level or {@code null} for off
+     */
+    public void setLevel(String prefix, Level level) {
+    	loggerTrie.level(prefix, level == null ? TtyLogger.LOG_LEVEL_OFF : level.toInt());
+    }
+    
+    /**
+     * Remove the level set for a prefix, so loggers under it inherit the level of
+     * the next shortest prefix that has a level set (or the default level).
+     * 
+     * @param prefix logger name prefix
+     */
+    public void resetLevel(String prefix) {
+    	loggerTrie.level(prefix, LoggerTrie.UNSET);
+    }
+    
+    /**
+     * Get the effective level of a logger name, or {@code null} if logging is off
+     * for this name.
+     * 
+     * @param name logger name
+     * @return level
+     */
+    public Level getLevel(String name) {
+    	var level = loggerTrie.effectiveLevel(name);
+    	return level == TtyLogger.LOG_LEVEL_OFF ? null : Level.intToLevel(level);
+    }
+    
+    /**
+     * Output the events below the output level that have been kept since the ring was
+     * last output, when <code>ring-size</code> is set. This happens automatically when
+     * an <code>ERROR</code> is logged, and when the process receives the
+     * <code>ring-signal</code>, if set. Does nothing if there is no ring.
+     */
+    public void outputRing() {
+    	if(compiled.ring != null) {
+    		internalLogger().outputRing();
+    	}
+    }
+    
+    private void handleRingSignal(String name) {
+    	if(!ringSignal.equals("")) {
+    		Signal.handle(new Signal(ringSignal), previousHandler);
+    		previousHandler = null;
+    		ringSignal = "";
+    	}
+    	if(!name.equals("")) {
+    		try {
+    			previousHandler = Signal.handle(new Signal(name), sig -> outputRing());
+    			ringSignal = name;
+    		}
+    		catch(IllegalArgumentException e) {
+    			Reporter.warn("Cannot handle signal " + name + " to output the ring of recent events. " + e.getMessage());
+    		}
+    	}
+    }
+    
+	/**
+	 * Get the logger used to output {@link Notice}s generated by the logging system itself.
+	 * 
+	 * @return internal logger
+	 */
+	AbstractLogger internalLogger() {
+		var logger = internalLogger;
+		if(logger == null) {
+			/* Not this monitor, which is held while taking a writer's lock to reconfigure */
+			synchronized(internalLoggerLock) {
+				logger = internalLogger;
+				if(logger == null) {
+					internalLogger = logger = compiled.format == Format.JSON ? new JsonLogger("slf4j-tty", this) : new TtyLogger("slf4j-tty", this);
+				}
+			}
+		}
+		return logger;
+	}
+	
+	/**
+	 * Queue a {@link Notice} to be output by the next thread that logs, or by the
+	 * housekeeping task if no thread logs first.
+	 * 
+	 * @param notice notice
+	 */
+	void notice(Notice notice) {
+		notices.add(notice);
+		housekeeping();
+	}
+	
+	/**
+	 * Called by a logger when a run of identical events first has a repeat suppressed. If
+	 * the run is not ended by another event first, the housekeeping task will report it once
+	 * its window expires.
+	 * 
+	 * @param logger logger
+	 * @param run run
+	 */
+	void repeated(AbstractLogger logger, RepeatFilter.Run run) {
+		repeats.add(new PendingRepeat(logger, run));
+		housekeeping();
+	}
+	
+	/**
+	 * Start the housekeeping task if it is not already running. This is called by a thread
+	 * holding a writer's lock when a {@link Notice} is raised, while a reload holds this
+	 * monitor and then takes writers' locks, so it must not synchronize on this.
+	 */
+	private void housekeeping() {
+		if(!housekeeping.get() && housekeeping.compareAndSet(false, true)) {
+			var executor = Executors.newSingleThreadScheduledExecutor(r -> {
+				var thread = new Thread(r, "slf4j-tty-housekeeping");
+				thread.setDaemon(true);
+				return thread;
+			});
+			executor.scheduleWithFixedDelay(this::housekeep, HOUSEKEEPING_INTERVAL, HOUSEKEEPING_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	private void housekeep() {
+		try {
+			var cfg = compiled;
+			var now = System.currentTimeMillis();
+			for(var it = repeats.iterator(); it.hasNext(); ) {
+				var pending = it.next();
+				if(!pending.logger().repeats.current(pending.run())) {
+					/* Already ended and reported by the next event */
+					it.remove();
+				}
+				else if(pending.run().expired(now, cfg.repeatWindow)) {
+					it.remove();
+					if(pending.logger().repeats.end(pending.run())) {
+						pending.logger().reportRepeats(pending.run());
+					}
+				}
+			}
+			
+			if(now - lastThrottleReport >= cfg.throttleReportInterval) {
+				var secs = TimeUnit.MILLISECONDS.toSeconds(now - lastThrottleReport);
+				lastThrottleReport = now;
+				loggerTrie.throttles(throttle -> {
+					var skipped = throttle.skipped();
+					if(skipped > 0) {
+						notices.add(new Notice(Level.INFO, "Skipped {} events from {} ({}) in the last {}s", 
+								String.format("%,d", skipped), throttle.prefix(), throttle, secs));
+					}
+				});
+			}
+			
+			if(!notices.isEmpty()) {
+				internalLogger().flushNotices();
+			}
+			
+			if(cfg.recorder != null) {
+				cfg.recorder.flush();
+			}
+		}
+		catch(Exception e) {
+			Reporter.error("Logging housekeeping failed.", e);
+		}
+	}
 	
 	Terminal terminal() {
 		if(terminal == null) {
@@ -243,7 +513,7 @@ public class TtyLoggerConfiguration {
         return TtyLogger.LOG_LEVEL_INFO;
     }
 
-    private static OutputChoice computeOutputChoice(String logFile, OutputChoiceType outputChoiceType, Supplier<Terminal> terminal) {
+    private static OutputChoice computeOutputChoice(String logFile, OutputChoiceType outputChoiceType, Supplier<Terminal> terminal, Format format, int indexEvents, int indexKb) {
     	switch(outputChoiceType) {
     	case TERMINAL:
     		return new OutputChoice(terminal.get());
@@ -256,8 +526,10 @@ public class TtyLoggerConfiguration {
                     }
                 }
                 FileOutputStream fos = new FileOutputStream(logFile);
-                PrintStream printStream = new PrintStream(fos);
-                return new OutputChoice(printStream);
+                /* A binary record cannot be read without those before it, so is never indexed */
+                TimeIndex index = format == Format.BINARY ? null : TimeIndex.open(logFile, indexEvents, indexKb);
+                PrintStream printStream = new PrintStream(index == null ? fos : index.counting(fos));
+                return new OutputChoice(printStream, index);
             } catch (FileNotFoundException e) {
                 Reporter.error("Could not open [" + logFile + "]. Defaulting to System.err", e);
                 return new OutputChoice(OutputChoiceType.SYS_ERR);
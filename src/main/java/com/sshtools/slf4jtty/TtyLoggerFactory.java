@@ -19,8 +19,20 @@ import com.sshtools.slf4jtty.TtyLoggerConfiguration.Format;
 public class TtyLoggerFactory implements ILoggerFactory {
 
     ConcurrentMap<String, Logger> loggerMap;
+    private final TtyLoggerConfiguration configuration;
 
     public TtyLoggerFactory() {
+        this(null);
+    }
+
+    /**
+     * Create a factory for loggers using a particular configuration, rather than the
+     * default one.
+     * 
+     * @param configuration configuration, or {@code null} for the default
+     */
+    TtyLoggerFactory(TtyLoggerConfiguration configuration) {
+        this.configuration = configuration;
         loggerMap = new ConcurrentHashMap<>();
     }
 
@@ -32,8 +44,8 @@ public class TtyLoggerFactory implements ILoggerFactory {
         if (simpleLogger != null) {
             return simpleLogger;
         } else {
-            TtyLoggerConfiguration cfg = TtyLoggerConfiguration.get();
-			Logger newInstance = cfg.format == Format.JSON ? new JsonLogger(name, cfg) :  new TtyLogger(name, cfg);
+            TtyLoggerConfiguration cfg = configuration == null ? TtyLoggerConfiguration.get() : configuration;
+			Logger newInstance = cfg.compiled.format == Format.JSON ? new JsonLogger(name, cfg) :  new TtyLogger(name, cfg);
             Logger oldInstance = loggerMap.putIfAbsent(name, newInstance);
             return oldInstance == null ? newInstance : oldInstance;
         }
@@ -0,0 +1,91 @@
+package com.sshtools.slf4jtty;
+
+import java.util.Map;
+
+/**
+ * Metrics about the cost of logging itself, for a single {@link TtyLoggerConfiguration}.
+ * This is registered with the platform MBean server as
+ * <code>com.sshtools.slf4jtty:type=Metrics,name=&lt;n&gt;</code>, unless <code>jmx</code>
+ * in the <code>[log]</code> section is <code>FALSE</code>.
+ * <p>
+ * Counts are cumulative from when the configuration was created, or from the last
+ * {@link #reset()}. Outputs are named <code>default</code> for the primary output, and
+ * otherwise by their sink name.
+ */
+public interface TtyLoggerMetricsMXBean {
+
+	/**
+	 * Get the number of events output at each level, by level name.
+	 *
+	 * @return events
+	 */
+	Map<String, Long> getEvents();
+
+	/**
+	 * Get the number of events that were enabled, but were suppressed by a throttle or
+	 * as a repeat.
+	 *
+	 * @return filtered events
+	 */
+	long getFilteredEvents();
+
+	/**
+	 * Get the number of events dropped because an output could not keep up. Each output
+	 * sheds separately, so an event dropped by more than one is counted for each.
+	 *
+	 * @return dropped events
+	 */
+	long getDroppedEvents();
+
+	/**
+	 * Get the number of characters written to each output in a text format.
+	 *
+	 * @return characters by output name
+	 */
+	Map<String, Long> getCharactersWritten();
+
+	/**
+	 * Get the number of bytes written to each output in the <code>BINARY</code> format.
+	 *
+	 * @return bytes by output name
+	 */
+	Map<String, Long> getBytesWritten();
+
+	/**
+	 * Get the number of times each output has been written to and flushed. As concurrent
+	 * events are written together, this may be fewer than the number of events.
+	 *
+	 * @return flushes by output name
+	 */
+	Map<String, Long> getFlushes();
+
+	/**
+	 * Get the total time threads have spent waiting to write to each output, either for
+	 * its lock, or for another thread to write their event.
+	 *
+	 * @return nanoseconds by output name
+	 */
+	Map<String, Long> getLockWaitNanos();
+
+	/**
+	 * Get the latency of rendering an event in each format it is output in, as the
+	 * <code>count</code>, <code>p50</code>, <code>p99</code>, <code>p99.9</code> and
+	 * <code>max</code> in nanoseconds.
+	 *
+	 * @return render latency
+	 */
+	Map<String, Long> getRenderLatency();
+
+	/**
+	 * Get the latency of writing and flushing to each output, in the same form as
+	 * {@link #getRenderLatency()}.
+	 *
+	 * @return write latency by output name
+	 */
+	Map<String, Map<String, Long>> getWriteLatency();
+
+	/**
+	 * Reset all counts.
+	 */
+	void reset();
+}
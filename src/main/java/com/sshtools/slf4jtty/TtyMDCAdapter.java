@@ -0,0 +1,226 @@
+package com.sshtools.slf4jtty;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.spi.MDCAdapter;
+
+/**
+ * An {@link MDCAdapter} optimised for reading the context when logging an event.
+ * <p>
+ * Each thread's context is an immutable {@link Context}, replaced as a whole (copy on
+ * write) whenever a value is put or removed. Reading the context for an event is then
+ * a single {@link ThreadLocal#get()} with no copying or locking, and the context may be
+ * captured as-is if it is needed after the event returns.
+ * <p>
+ * MDC contexts are typically a handful of entries and are read far more often than
+ * they are written, so entries are held in insertion order in a pair of small arrays
+ * rather than a hash map.
+ * <p>
+ * When a thread's context becomes empty, its thread local is removed, so threads that
+ * use the MDC only briefly (such as virtual threads) do not retain it.
+ */
+public final class TtyMDCAdapter implements MDCAdapter {
+
+	/**
+	 * An immutable MDC context.
+	 */
+	final static class Context {
+		final static Context EMPTY = new Context(new String[0], new String[0]);
+
+		private final String[] keys;
+		private final String[] values;
+
+		Context(String[] keys, String[] values) {
+			this.keys = keys;
+			this.values = values;
+		}
+
+		int size() {
+			return keys.length;
+		}
+
+		String key(int index) {
+			return keys[index];
+		}
+
+		String value(int index) {
+			return values[index];
+		}
+
+		String get(String key) {
+			var idx = indexOf(key);
+			return idx == -1 ? null : values[idx];
+		}
+
+		private int indexOf(String key) {
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i].equals(key)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		private Context with(String key, String value) {
+			var idx = indexOf(key);
+			if (idx == -1) {
+				var nkeys = Arrays.copyOf(keys, keys.length + 1);
+				var nvalues = Arrays.copyOf(values, values.length + 1);
+				nkeys[keys.length] = key;
+				nvalues[values.length] = value;
+				return new Context(nkeys, nvalues);
+			} else {
+				var nvalues = values.clone();
+				nvalues[idx] = value;
+				return new Context(keys, nvalues);
+			}
+		}
+
+		private Context without(String key) {
+			var idx = indexOf(key);
+			if (idx == -1) {
+				return this;
+			}
+			var nkeys = new String[keys.length - 1];
+			var nvalues = new String[values.length - 1];
+			System.arraycopy(keys, 0, nkeys, 0, idx);
+			System.arraycopy(values, 0, nvalues, 0, idx);
+			System.arraycopy(keys, idx + 1, nkeys, idx, nkeys.length - idx);
+			System.arraycopy(values, idx + 1, nvalues, idx, nvalues.length - idx);
+			return new Context(nkeys, nvalues);
+		}
+
+		private Map<String, String> toMap() {
+			var map = new LinkedHashMap<String, String>();
+			for (int i = 0; i < keys.length; i++) {
+				map.put(keys[i], values[i]);
+			}
+			return map;
+		}
+	}
+
+	private final static ThreadLocal<Context> CONTEXT = new ThreadLocal<>();
+	private final static ThreadLocal<Map<String, Deque<String>>> DEQUES = new ThreadLocal<>();
+
+	/**
+	 * Get the current thread's context. This is never {@code null}, and may be retained
+	 * after the event as it will never change.
+	 *
+	 * @return context
+	 */
+	static Context context() {
+		var ctx = CONTEXT.get();
+		return ctx == null ? Context.EMPTY : ctx;
+	}
+
+	@Override
+	public void put(String key, String val) {
+		if (key == null) {
+			throw new IllegalArgumentException("key cannot be null");
+		}
+		set(context().with(key, val));
+	}
+
+	@Override
+	public String get(String key) {
+		var ctx = CONTEXT.get();
+		return ctx == null ? null : ctx.get(key);
+	}
+
+	@Override
+	public void remove(String key) {
+		var ctx = CONTEXT.get();
+		if (ctx != null) {
+			set(ctx.without(key));
+		}
+	}
+
+	@Override
+	public void clear() {
+		CONTEXT.remove();
+	}
+
+	@Override
+	public Map<String, String> getCopyOfContextMap() {
+		var ctx = CONTEXT.get();
+		return ctx == null ? null : ctx.toMap();
+	}
+
+	@Override
+	public void setContextMap(Map<String, String> contextMap) {
+		if (contextMap == null) {
+			/* As returned by getCopyOfContextMap() when empty */
+			set(Context.EMPTY);
+			return;
+		}
+		var keys = new String[contextMap.size()];
+		var values = new String[contextMap.size()];
+		var idx = 0;
+		for (var en : contextMap.entrySet()) {
+			keys[idx] = en.getKey();
+			values[idx++] = en.getValue();
+		}
+		set(new Context(keys, values));
+	}
+
+	@Override
+	public void pushByKey(String key, String value) {
+		var map = DEQUES.get();
+		if (map == null) {
+			map = new HashMap<>();
+			DEQUES.set(map);
+		}
+		map.computeIfAbsent(key, k -> new ArrayDeque<>()).push(value);
+	}
+
+	@Override
+	public String popByKey(String key) {
+		var map = DEQUES.get();
+		if (map == null) {
+			return null;
+		}
+		var deque = map.get(key);
+		if (deque == null) {
+			return null;
+		}
+		var value = deque.poll();
+		if (deque.isEmpty()) {
+			clearDequeByKey(key);
+		}
+		return value;
+	}
+
+	@Override
+	public Deque<String> getCopyOfDequeByKey(String key) {
+		var map = DEQUES.get();
+		if (map == null) {
+			return null;
+		}
+		var deque = map.get(key);
+		return deque == null ? null : new ArrayDeque<>(deque);
+	}
+
+	@Override
+	public void clearDequeByKey(String key) {
+		var map = DEQUES.get();
+		if (map != null) {
+			map.remove(key);
+			if (map.isEmpty()) {
+				DEQUES.remove();
+			}
+		}
+	}
+
+	static void set(Context ctx) {
+		if (ctx.size() == 0) {
+			CONTEXT.remove();
+		} else {
+			CONTEXT.set(ctx);
+		}
+	}
+}
@@ -3,7 +3,6 @@ package com.sshtools.slf4jtty;
 import org.slf4j.ILoggerFactory;
 import org.slf4j.IMarkerFactory;
 import org.slf4j.helpers.BasicMarkerFactory;
-import org.slf4j.helpers.NOPMDCAdapter;
 import org.slf4j.spi.MDCAdapter;
 import org.slf4j.spi.SLF4JServiceProvider;
 
@@ -44,7 +43,7 @@ public class TtyServiceProvider implements SLF4JServiceProvider {
 
         loggerFactory = new TtyLoggerFactory();
         markerFactory = new BasicMarkerFactory();
-        mdcAdapter = new NOPMDCAdapter();
+        mdcAdapter = new TtyMDCAdapter();
     }
 
 }
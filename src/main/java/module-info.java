@@ -8,6 +8,9 @@ open module com.sshtools.slf4jtty {
     exports com.sshtools.slf4jtty;
     requires transitive org.slf4j;
     requires transitive java.logging;
+    requires java.management;
+    requires jdk.jfr;
+    requires jdk.unsupported;
 	requires transitive com.sshtools.jini.config;
 	requires transitive org.jline.terminal;
 	requires transitive org.jline.style;
@@ -0,0 +1,209 @@
+package com.sshtools.slf4jtty;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.slf4j.event.Level;
+
+import com.sshtools.slf4jtty.CompiledConfiguration.FieldType;
+import com.sshtools.slf4jtty.TtyLoggerConfiguration.Format;
+
+/**
+ * Checks the number of bytes allocated by the current thread for each event, or each
+ * stage of rendering an event, stays within a budget. This catches changes that make
+ * logging create more garbage.
+ * <p>
+ * Each operation is run enough times to be compiled first, so the figures are those
+ * after escape analysis. If a budget is exceeded, the failure reports a breakdown of the
+ * stages of rendering so the cause can be narrowed down. If a change deliberately
+ * allocates more, raise the budget in the same change and explain why.
+ * <p>
+ * The budgets are measured on Java 17 without instrumentation, so the tests are skipped
+ * on other versions, or when the JaCoCo agent is attached, unless the system property
+ * {@value #TOLERANCE_PROPERTY} is set. Its value multiplies every budget, e.g.
+ * <code>-Dslf4jtty.allocationTolerance=1.5</code>.
+ */
+public class AllocationBudgetTest {
+
+	/* Budgets, in bytes per event, about 15% over that measured on Java 17 */
+	private final static long DISABLED_BUDGET = 0;
+	private final static long ANSI_BUDGET = 34_000;
+	private final static long PLAIN_BUDGET = 28_500;
+	private final static long JSON_BUDGET = 1_150;
+	private final static long JSON_MIXED_BUDGET = 1_500;
+
+	/* Budgets, in bytes per stage for the message field */
+	private final static long FORMATTING_BUDGET = 400;
+	private final static long STYLING_BUDGET = 9_000;
+	private final static long WIDTH_FITTING_BUDGET = 370;
+	private final static long ENCODING_BUDGET = 1_900;
+	private final static long JSON_ENCODING_BUDGET = 100;
+
+	private final static String TOLERANCE_PROPERTY = "slf4jtty.allocationTolerance";
+
+	private final static int WARMUP = 20_000;
+	private final static int ITERATIONS = 5_000;
+
+	private final static String PATTERN = "User {} connected from {}";
+	private final static int WIDTH = 80;
+	private final static Object[] ARGS = { "joe", "example.com" };
+
+	private record Stage(String name, long budget, Runnable op) {
+	}
+
+	private static com.sun.management.ThreadMXBean threads;
+	private static double tolerance;
+
+	@BeforeAll
+	public static void setup() {
+		var property = System.getProperty(TOLERANCE_PROPERTY);
+		if (property == null) {
+			Assumptions.assumeTrue(Runtime.version().feature() == 17,
+					"Budgets are for Java 17, set " + TOLERANCE_PROPERTY + " to check them on others");
+			Assumptions.assumeFalse(
+					ManagementFactory.getRuntimeMXBean().getInputArguments().stream().anyMatch(a -> a.contains("jacoco")),
+					"Budgets are for uninstrumented code, set " + TOLERANCE_PROPERTY + " to check them with JaCoCo");
+			tolerance = 1;
+		} else {
+			tolerance = Double.parseDouble(property);
+		}
+
+		var bean = ManagementFactory.getThreadMXBean();
+		Assumptions.assumeTrue(bean instanceof com.sun.management.ThreadMXBean, "Allocation counting is not available");
+		threads = (com.sun.management.ThreadMXBean) bean;
+		Assumptions.assumeTrue(threads.isThreadAllocatedMemorySupported(), "Allocation counting is not supported");
+		threads.setThreadAllocatedMemoryEnabled(true);
+	}
+
+	@Test
+	public void testDisabled() {
+		var logger = new TtyLogger("com.acme.Budget", configuration(Format.ANSI));
+		assertBudget("disabled", DISABLED_BUDGET, () -> logger.debug(PATTERN, "joe", "example.com"));
+		assertBudget("disabled fluent", DISABLED_BUDGET, () -> logger.atDebug().setMessage(PATTERN).addArgument("joe").log());
+	}
+
+	@Test
+	public void testAnsi() {
+		var logger = new TtyLogger("com.acme.Budget", configuration(Format.ANSI));
+		assertBudget("ANSI", ANSI_BUDGET, () -> logger.info(PATTERN, "joe", "example.com"));
+	}
+
+	@Test
+	public void testPlain() {
+		var logger = new TtyLogger("com.acme.Budget", configuration(Format.PLAIN));
+		assertBudget("PLAIN", PLAIN_BUDGET, () -> logger.info(PATTERN, "joe", "example.com"));
+	}
+
+	@Test
+	public void testJson() {
+		var logger = new JsonLogger("com.acme.Budget", configuration(Format.ANSI));
+		assertBudget("JSON", JSON_BUDGET, () -> logger.info(PATTERN, "joe", "example.com"));
+		assertBudget("JSON mixed", JSON_MIXED_BUDGET, () -> logger.info("User {} port {} load {} secure {}", "joe", 22, 1.5d, true));
+	}
+
+	@Test
+	public void testStages() {
+		var ctx = LoggingContext.enter();
+		try {
+			var stages = stages(ctx);
+			for (var stage : stages) {
+				var bytes = allocated(stage.op());
+				var budget = tolerated(stage.budget());
+				if (bytes > budget) {
+					Assertions.fail(String.format("%s allocated %,d bytes per operation, over the budget of %,d.%n%s",
+							stage.name(), bytes, budget, breakdown(stages)));
+				}
+			}
+		} finally {
+			ctx.exit();
+		}
+	}
+
+	private static TtyLoggerConfiguration configuration(Format format) {
+		var cfg = new TtyConfigurationSet().build();
+		cfg.update(bldr -> {
+			bldr.format = format;
+			bldr.width = 132;
+			bldr.outputChoice = new OutputChoice(new PrintStream(OutputStream.nullOutputStream()));
+		});
+		return cfg;
+	}
+
+	private static long tolerated(long budget) {
+		return (long) (budget * tolerance);
+	}
+
+	private static void assertBudget(String name, long budget, Runnable op) {
+		budget = tolerated(budget);
+		var bytes = allocated(op);
+		if (bytes > budget) {
+			var ctx = LoggingContext.enter();
+			try {
+				Assertions.fail(String.format("%s allocated %,d bytes per operation, over the budget of %,d.%n%s", name,
+						bytes, budget, breakdown(stages(ctx))));
+			} finally {
+				ctx.exit();
+			}
+		}
+	}
+
+	private static long allocated(Runnable op) {
+		var id = Thread.currentThread().getId();
+		for (int i = 0; i < WARMUP; i++) {
+			op.run();
+		}
+		var before = threads.getThreadAllocatedBytes(id);
+		for (int i = 0; i < ITERATIONS; i++) {
+			op.run();
+		}
+		return (threads.getThreadAllocatedBytes(id) - before) / ITERATIONS;
+	}
+
+	private static String breakdown(Stage[] stages) {
+		var b = new StringBuilder("Breakdown of the message field:");
+		for (var stage : stages) {
+			b.append(String.format("%n  %-14s %,8d", stage.name(), allocated(stage.op())));
+		}
+		return b.toString();
+	}
+
+	/**
+	 * The stages of rendering the message field of an event, using the methods
+	 * {@link TtyLogger} and {@link JsonLogger} render each field with.
+	 */
+	private static Stage[] stages(LoggingContext ctx) {
+		var cfg = configuration(Format.ANSI);
+		var compiled = cfg.compiled;
+		var logger = new TtyLogger("com.acme.Budget", cfg);
+		var field = Arrays.stream(compiled.layout).filter(f -> f.type() == FieldType.MESSAGE).findFirst().orElseThrow();
+		var event = new Event();
+		var message = event.set(Level.INFO, null, PATTERN, ARGS, null).message(compiled.parameterStyle, WIDTH);
+		var styled = TtyLogger.style(ctx, compiled, null, field, message, WIDTH);
+		var styledLength = styled.length();
+		var fitted = TtyLogger.fit(ctx, field, styled, WIDTH);
+		var buf = new StringBuilder(LoggingContext.INITIAL_BUFFER);
+		return new Stage[] {
+			new Stage("formatting", FORMATTING_BUDGET, () -> event.set(Level.INFO, null, PATTERN, ARGS, null).message(compiled.parameterStyle, WIDTH)),
+			new Stage("styling", STYLING_BUDGET, () -> TtyLogger.style(ctx, compiled, null, field, message, WIDTH)),
+			new Stage("width fitting", WIDTH_FITTING_BUDGET, () -> {
+				/* Remove the padding added last time */
+				styled.setLength(styledLength);
+				TtyLogger.fit(ctx, field, styled, WIDTH);
+			}),
+			new Stage("encoding", ENCODING_BUDGET, () -> {
+				buf.setLength(0);
+				TtyLogger.encode(logger, ctx, Format.ANSI, field, fitted, buf);
+			}),
+			new Stage("JSON encoding", JSON_ENCODING_BUDGET, () -> {
+				buf.setLength(0);
+				JsonLogger.appendField(buf, "message", message);
+			})
+		};
+	}
+}
@@ -1,9 +1,30 @@
 package com.sshtools.slf4jtty;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordingFile;
 
 import org.jline.style.StyleExpression;
 import org.jline.utils.AttributedString;
@@ -11,8 +32,14 @@ import org.jline.utils.AttributedStringBuilder;
 import org.jline.utils.AttributedStyle;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.slf4j.event.Level;
+import org.slf4j.helpers.BasicMarkerFactory;
 
+import com.sshtools.slf4jtty.CompiledConfiguration.Sink;
+import com.sshtools.slf4jtty.OutputChoice.OutputChoiceType;
 import com.sshtools.slf4jtty.TtyLoggerConfiguration.Format;
+import com.sshtools.slf4jtty.TtyLoggerConfiguration.Notice;
+import com.sshtools.slf4jtty.TtyLoggerConfiguration.Overload;
 
 public class TtyLoggerTest {
 	
@@ -26,13 +53,12 @@ public class TtyLoggerTest {
 			TtyConfigurationSet set = new TtyConfigurationSet();
 			
 			cfg = set.build();
-			cfg.format = Format.ANSI;
-			cfg.outputChoice = new OutputChoice(new PrintStream(buf));
-			cfg.width = 132;
-			
-			var layout = new LinkedHashSet<>(cfg.layout);
-			layout.removeAll(Arrays.asList(exclude));
-			cfg.layout = layout;
+			cfg.update(bldr -> {
+				bldr.format = Format.ANSI;
+				bldr.outputChoice = new OutputChoice(new PrintStream(buf));
+				bldr.width = 132;
+				bldr.layout.removeAll(Arrays.asList(exclude));
+			});
 		}
 		
 		String bufferText() {
@@ -76,6 +102,1040 @@ public class TtyLoggerTest {
 				lo.bufferText());
 	}
 
+	@Test
+	public void testConcurrentLinesNotInterleaved() throws Exception {
+		var lo = new LogOutput("date-time", "thread-name");
+		var threads = new Thread[8];
+		for(int i = 0 ; i < threads.length; i++) {
+			var logger = lo.logger("TEST" + i);
+			threads[i] = new Thread(() -> {
+				for(int j = 0 ; j < 500; j++) {
+					logger.info("Line {}", j);
+				}
+			});
+			threads[i].start();
+		}
+		for(var thread : threads) {
+			thread.join();
+		}
+		
+		var lines = lo.bufferText().split("\n");
+		Assertions.assertEquals(threads.length * 500, lines.length);
+		for(var line : lines) {
+			Assertions.assertTrue(line.startsWith("[" + ESC + "[34mℹ️ INFO"), line);
+			Assertions.assertEquals(line.indexOf("TEST"), line.lastIndexOf("TEST"), line);
+		}
+	}
+
+	@Test
+	public void testInterruptedWaitDoesNotSpin() throws Exception {
+		var lo = new LogOutput("date-time", "thread-name");
+		var entered = new CountDownLatch(1);
+		var release = new CountDownLatch(1);
+		lo.cfg.update(bldr -> bldr.outputChoice = new OutputChoice(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				lo.buf.write(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				if(entered.getCount() > 0) {
+					entered.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						throw new IOException(e);
+					}
+				}
+				lo.buf.write(b, off, len);
+			}
+		})));
+		var logger = lo.logger("TEST");
+
+		/* Becomes the combiner, and blocks in the stream */
+		var combiner = new Thread(() -> logger.info("First"));
+		combiner.start();
+		Assertions.assertTrue(entered.await(10, TimeUnit.SECONDS));
+
+		var cpu = new AtomicLong();
+		var stillInterrupted = new AtomicBoolean();
+		var waiter = new Thread(() -> {
+			var threads = ManagementFactory.getThreadMXBean();
+			var started = threads.getCurrentThreadCpuTime();
+			Thread.currentThread().interrupt();
+			logger.info("Second");
+			cpu.set(threads.getCurrentThreadCpuTime() - started);
+			stillInterrupted.set(Thread.currentThread().isInterrupted());
+		});
+		waiter.start();
+		Thread.sleep(500);
+		release.countDown();
+		combiner.join();
+		waiter.join();
+
+		Assertions.assertTrue(stillInterrupted.get());
+		Assertions.assertTrue(cpu.get() < TimeUnit.MILLISECONDS.toNanos(200), "Waiter used " + cpu.get() + "ns of CPU");
+		var lines = lo.bufferText().split("\n");
+		Assertions.assertEquals(2, lines.length);
+		Assertions.assertTrue(lines[1].contains("Second"), lines[1]);
+	}
+
+	@Test
+	public void testRetiredOutputReplaced() {
+		var metrics = new LoggingMetrics();
+		var writer = new CombiningWriter(new OverloadPolicy(Route.DEFAULT, n -> {}), metrics.output(Route.DEFAULT));
+		var oldBuf = new ByteArrayOutputStream();
+		var newBuf = new ByteArrayOutputStream();
+		var oldOutput = new OutputChoice(new PrintStream(oldBuf));
+		var newOutput = new OutputChoice(new PrintStream(newBuf));
+
+		writer.write("Before\n", System.currentTimeMillis(), oldOutput, false);
+		writer.retire(oldOutput, newOutput);
+		/* Rendered with the old configuration, but written after it was replaced */
+		writer.write("After\n", System.currentTimeMillis(), oldOutput, false);
+
+		Assertions.assertEquals("Before\n", oldBuf.toString());
+		Assertions.assertEquals("After\n", newBuf.toString());
+	}
+
+	@Test
+	public void testOversizedBuffersReplaced() {
+		var ctx = LoggingContext.enter();
+		try {
+			var attrs = ctx.attrs();
+			Assertions.assertSame(attrs, ctx.attrs());
+			attrs.append("x".repeat(LoggingContext.MAX_BUFFER * 2));
+			var replaced = ctx.attrs();
+			Assertions.assertNotSame(attrs, replaced);
+			Assertions.assertEquals(0, replaced.length());
+			/* The replacement is kept, not allocated again on every use */
+			Assertions.assertSame(replaced, ctx.attrs());
+		}
+		finally {
+			ctx.exit();
+		}
+	}
+
+	@Test
+	public void testRepeatsSuppressed() {
+		var lo = new LogOutput("date-time", "thread-name");
+		lo.cfg.update(bldr -> bldr.repeatWindow = 60000);
+		var logger = lo.logger("TEST");
+		for(int i = 0 ; i < 5; i++) {
+			logger.info("Same {}", "Value");
+		}
+		logger.info("Different");
+		
+		var lines = lo.bufferText().split("\n");
+		Assertions.assertEquals(3, lines.length);
+		Assertions.assertTrue(lines[0].contains("Same "));
+		Assertions.assertTrue(lines[1].contains("Last message repeated " + ESC + "[1m4"), lines[1]);
+		Assertions.assertTrue(lines[2].contains("Different"));
+	}
+
+	@Test
+	public void testOverloadShedding() {
+		var notices = new ArrayList<Notice>();
+		var policy = new OverloadPolicy("test", notices::add);
+		policy.configure(Overload.SHED, 20, 100, false);
+
+		/* Under both thresholds */
+		writes(policy, 20, 5);
+		Assertions.assertFalse(policy.shed(AbstractLogger.LOG_LEVEL_DEBUG));
+		Assertions.assertFalse(policy.shed(AbstractLogger.LOG_LEVEL_INFO));
+
+		/* Over the DEBUG threshold */
+		writes(policy, 40, 50);
+		Assertions.assertTrue(policy.shed(AbstractLogger.LOG_LEVEL_TRACE));
+		Assertions.assertTrue(policy.shed(AbstractLogger.LOG_LEVEL_DEBUG));
+		Assertions.assertFalse(policy.shed(AbstractLogger.LOG_LEVEL_INFO));
+		Assertions.assertFalse(policy.shed(AbstractLogger.LOG_LEVEL_WARN));
+
+		/* Over the INFO threshold */
+		writes(policy, 40, 300);
+		Assertions.assertTrue(policy.shed(AbstractLogger.LOG_LEVEL_DEBUG));
+		Assertions.assertTrue(policy.shed(AbstractLogger.LOG_LEVEL_INFO));
+		Assertions.assertFalse(policy.shed(AbstractLogger.LOG_LEVEL_WARN));
+		Assertions.assertFalse(policy.shed(AbstractLogger.LOG_LEVEL_ERROR));
+
+		/* Back under the INFO threshold, but not yet under half of it */
+		writes(policy, 40, 70);
+		Assertions.assertTrue(policy.shed(AbstractLogger.LOG_LEVEL_INFO));
+
+		/* Under half the INFO threshold, but not yet under half the DEBUG threshold */
+		writes(policy, 60, 15);
+		Assertions.assertFalse(policy.shed(AbstractLogger.LOG_LEVEL_INFO));
+		Assertions.assertTrue(policy.shed(AbstractLogger.LOG_LEVEL_DEBUG));
+		Assertions.assertTrue(notices.isEmpty());
+
+		/* Recovered, so the drops are summarised */
+		writes(policy, 60, 1);
+		Assertions.assertFalse(policy.shed(AbstractLogger.LOG_LEVEL_TRACE));
+		Assertions.assertFalse(policy.shed(AbstractLogger.LOG_LEVEL_DEBUG));
+		Assertions.assertEquals(3, notices.size());
+		for(var notice : notices) {
+			Assertions.assertEquals(Level.WARN, notice.level());
+			Assertions.assertEquals("Dropped {} {} events for output {} in {}s", notice.pattern());
+		}
+		Assertions.assertEquals(List.of("1", Level.TRACE), List.of(notices.get(0).args()).subList(0, 2));
+		Assertions.assertEquals(List.of("3", Level.DEBUG), List.of(notices.get(1).args()).subList(0, 2));
+		Assertions.assertEquals(List.of("2", Level.INFO), List.of(notices.get(2).args()).subList(0, 2));
+	}
+
+	@Test
+	public void testNoticeDuringReload() throws Exception {
+		var lo = new LogOutput("date-time", "thread-name");
+		var held = new CountDownLatch(1);
+		var release = new CountDownLatch(1);
+		/* Stands in for a reload, which holds the monitor while it takes writer locks */
+		var reload = new Thread(() -> {
+			synchronized(lo.cfg) {
+				held.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		reload.start();
+		try {
+			Assertions.assertTrue(held.await(10, TimeUnit.SECONDS));
+			/* As raised by a writer holding its lock when shedding ends */
+			var raiser = new Thread(() -> lo.cfg.notice(new Notice(Level.WARN, "Dropped {} events", 1)));
+			raiser.start();
+			raiser.join(TimeUnit.SECONDS.toMillis(5));
+			Assertions.assertFalse(raiser.isAlive(), "Raising a notice waited for the configuration monitor");
+		}
+		finally {
+			release.countDown();
+			reload.join();
+		}
+	}
+
+	@Test
+	public void testOverloadNoticeOutput() {
+		var lo = new LogOutput("date-time", "thread-name", "short-name");
+		lo.cfg.update(bldr -> bldr.overload = Overload.SHED);
+		var logger = lo.logger("TEST");
+
+		writes(lo.cfg.writer.overload(), 40, 500);
+		logger.info("Dropped 1");
+		logger.info("Dropped 2");
+		logger.warn("Kept");
+		logger.error("Also kept");
+
+		writes(lo.cfg.writer.overload(), 60, 0);
+		logger.info("Recovered");
+
+		var lines = lo.bufferText().split("\n");
+		Assertions.assertEquals(4, lines.length);
+		Assertions.assertTrue(lines[0].contains("Kept"), lines[0]);
+		Assertions.assertTrue(lines[1].contains("Also kept"), lines[1]);
+		Assertions.assertTrue(lines[2].contains("Dropped " + ESC + "[1m2" + ESC + "[22m " + ESC + "[1mINFO"), lines[2]);
+		Assertions.assertTrue(lines[3].contains("Recovered"), lines[3]);
+	}
+
+	@Test
+	public void testOverloadPerSink() {
+		var lo = new LogOutput("date-time", "thread-name", "short-name");
+		var slow = new ByteArrayOutputStream();
+		lo.cfg.update(bldr -> {
+			bldr.overload = Overload.SHED;
+			bldr.sinks.put("slow", new Sink("slow", Format.PLAIN, AbstractLogger.LOG_LEVEL_TRACE, 80, false, OutputChoiceType.FILE, "", new OutputChoice(new PrintStream(slow)), null, 0));
+		});
+		var logger = lo.logger("TEST");
+
+		writes(lo.cfg.compiled.sink("slow").writer().overload(), 40, 500);
+		logger.info("Info");
+		logger.warn("Warning");
+
+		Assertions.assertEquals(2, lo.bufferText().split("\n").length);
+		var slowLines = slow.toString().split("\n");
+		Assertions.assertEquals(1, slowLines.length);
+		Assertions.assertTrue(slowLines[0].contains("Warning"), slowLines[0]);
+		Assertions.assertEquals(1, lo.cfg.metrics.getDroppedEvents());
+	}
+
+	private static void writes(OverloadPolicy policy, int count, long millis) {
+		for(int i = 0 ; i < count; i++) {
+			policy.written(TimeUnit.MILLISECONDS.toNanos(millis));
+		}
+	}
+
+	@Test
+	public void testThrottleSample() {
+		var throttle = new Throttle("TEST", null, 3, 0, 0);
+		var allowed = new ArrayList<Integer>();
+		for(int i = 0 ; i < 9; i++) {
+			if(throttle.allow("Event {}")) {
+				allowed.add(i);
+			}
+		}
+		Assertions.assertEquals(List.of(0, 3, 6), allowed);
+		Assertions.assertEquals(6, throttle.skipped());
+		Assertions.assertEquals(0, throttle.skipped());
+	}
+
+	@Test
+	public void testThrottleRateLimit() throws Exception {
+		/* One event every 250ms, with bursts of up to 5 */
+		var throttle = new Throttle("TEST", null, 0, 4, 5);
+		for(int i = 0 ; i < 5; i++) {
+			Assertions.assertTrue(throttle.allow("Event"), "Burst " + i);
+		}
+		Assertions.assertFalse(throttle.allow("Event"));
+		Assertions.assertFalse(throttle.allow("Event"));
+
+		/* The burst is used up, so now limited to the rate */
+		Thread.sleep(300);
+		Assertions.assertTrue(throttle.allow("Event"));
+		Assertions.assertFalse(throttle.allow("Event"));
+		Assertions.assertEquals(3, throttle.skipped());
+	}
+
+	@Test
+	public void testThrottleSelection() throws Exception {
+		var lo = new LogOutput("date-time", "thread-name");
+		lo.cfg.update(bldr -> bldr.throttleReportInterval = 0);
+		lo.cfg.throttles(Map.of(
+			"com.acme", List.of(new Throttle("com.acme", null, 2, 0, 0)),
+			"com.acme.net", List.of(new Throttle("com.acme.net", new String[] { "Packet {}" }, 1000, 0, 0))
+		));
+		var main = lo.logger("com.acme.Main");
+		var net = lo.logger("com.acme.net.Connection");
+		var other = lo.logger("org.other.Thing");
+		for(int i = 0 ; i < 4; i++) {
+			main.info("Tick {}", i);
+			/* Only the nearest prefix applies, and only to its patterns */
+			net.info("Packet {}", i);
+			net.info("Connected {}", i);
+			other.info("Other {}", i);
+		}
+
+		var text = lo.bufferText();
+		Assertions.assertEquals(2, count(text, "Tick "));
+		Assertions.assertEquals(1, count(text, "Packet "));
+		Assertions.assertEquals(4, count(text, "Connected "));
+		Assertions.assertEquals(4, count(text, "Other "));
+
+		/* Skipped events are reported by the housekeeping task */
+		var end = System.currentTimeMillis() + 10000;
+		while(count(lo.bufferText(), "Skipped ") < 2 && System.currentTimeMillis() < end) {
+			Thread.sleep(50);
+		}
+		var lines = Arrays.stream(lo.bufferText().split("\n")).filter(l -> l.contains("Skipped ")).toList();
+		Assertions.assertEquals(2, lines.size(), lines.toString());
+		Assertions.assertTrue(lines.stream().anyMatch(l -> l.contains("Skipped " + ESC + "[1m2" + ESC + "[22m events from " + ESC + "[1mcom.acme" + ESC + "[22m")), lines.toString());
+		Assertions.assertTrue(lines.stream().anyMatch(l -> l.contains("Skipped " + ESC + "[1m3" + ESC + "[22m events from " + ESC + "[1mcom.acme.net" + ESC + "[22m")), lines.toString());
+	}
+
+	private static int count(String text, String str) {
+		var count = 0;
+		for(int idx = text.indexOf(str); idx != -1; idx = text.indexOf(str, idx + 1)) {
+			count++;
+		}
+		return count;
+	}
+
+	@Test
+	public void testMetrics() throws Exception {
+		var lo = new LogOutput("date-time", "thread-name");
+		lo.cfg.update(bldr -> bldr.repeatWindow = 60000);
+		var logger = lo.logger("TEST");
+		for(int i = 0 ; i < 3; i++) {
+			logger.info("Same");
+		}
+		logger.warn("Different");
+		logger.debug("Not enabled");
+		
+		var metrics = lo.cfg.metrics;
+		var events = metrics.getEvents();
+		Assertions.assertEquals(1, events.get("INFO"));
+		Assertions.assertEquals(1, events.get("WARN"));
+		Assertions.assertEquals(0, events.get("DEBUG"));
+		Assertions.assertEquals(2, metrics.getFilteredEvents());
+		Assertions.assertEquals(0, metrics.getDroppedEvents());
+		/* Including the summary of repeats */
+		Assertions.assertEquals(lo.bufferText().length(), metrics.getCharactersWritten().get(Route.DEFAULT));
+		Assertions.assertEquals(3, metrics.getFlushes().get(Route.DEFAULT));
+		Assertions.assertEquals(3, metrics.getRenderLatency().get("count"));
+		Assertions.assertEquals(3, metrics.getWriteLatency().get(Route.DEFAULT).get("count"));
+		Assertions.assertEquals(0, metrics.getBytesWritten().get(Route.DEFAULT));
+		
+		var server = ManagementFactory.getPlatformMBeanServer();
+		var names = server.queryNames(new ObjectName("com.sshtools.slf4jtty:type=Metrics,*"), null);
+		Assertions.assertTrue(names.stream().anyMatch(n -> {
+			try {
+				return server.getAttribute(n, "FilteredEvents").equals(2L) && server.getAttribute(n, "Events") != null
+						&& server.getAttribute(n, "WriteLatency") != null;
+			} catch (JMException e) {
+				throw new IllegalStateException(e);
+			}
+		}));
+		
+		metrics.reset();
+		Assertions.assertEquals(0, metrics.getFilteredEvents());
+		lo.cfg.update(bldr -> bldr.jmx = false);
+		Assertions.assertTrue(server.queryNames(new ObjectName("com.sshtools.slf4jtty:type=Metrics,*"), null).size() < names.size());
+	}
+
+	@Test
+	public void testJfrEvents() throws Exception {
+		var lo = new LogOutput("date-time", "thread-name");
+		lo.cfg.update(bldr -> {
+			bldr.jfr = true;
+			bldr.jfrLogEvents = true;
+		});
+		var logger = lo.logger("TEST");
+		var file = Files.createTempFile("slf4j-tty", ".jfr");
+		try {
+			try(var recording = new Recording()) {
+				recording.enable("com.sshtools.slf4jtty.Render");
+				recording.enable("com.sshtools.slf4jtty.Write");
+				recording.enable("com.sshtools.slf4jtty.Log");
+				recording.start();
+				logger.info("Hello {}", "JFR");
+				logger.atWarn().setCause(new IllegalStateException("Oops")).log("Warned");
+				recording.stop();
+				recording.dump(file);
+			}
+			
+			var events = RecordingFile.readAllEvents(file);
+			var logged = events.stream().filter(e -> e.getEventType().getName().equals("com.sshtools.slf4jtty.Log")).toList();
+			Assertions.assertEquals(2, logged.size());
+			Assertions.assertEquals("TEST", logged.get(0).getString("logger"));
+			Assertions.assertEquals("INFO", logged.get(0).getString("level"));
+			Assertions.assertEquals("Hello {}", logged.get(0).getString("pattern"));
+			Assertions.assertEquals(IllegalStateException.class.getName(), logged.get(1).getClass("throwable").getName());
+			Assertions.assertEquals(2, events.stream().filter(e -> e.getEventType().getName().equals("com.sshtools.slf4jtty.Render")).count());
+			Assertions.assertEquals(2, events.stream().filter(e -> e.getEventType().getName().equals("com.sshtools.slf4jtty.Write")).count());
+		}
+		finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testRuntimeLevelChanges() {
+		var lo = new LogOutput("date-time", "thread-name");
+		var logger = lo.logger("com.acme.sub.Test");
+		var other = lo.logger("com.other.Test");
+		Assertions.assertFalse(logger.isDebugEnabled());
+		
+		lo.cfg.setLevel("com.acme", Level.DEBUG);
+		Assertions.assertTrue(logger.isDebugEnabled());
+		Assertions.assertFalse(other.isDebugEnabled());
+		
+		lo.cfg.setLevel("com.acme.sub", Level.WARN);
+		Assertions.assertFalse(logger.isInfoEnabled());
+		
+		lo.cfg.setLevel("com", Level.TRACE);
+		Assertions.assertFalse(logger.isInfoEnabled());
+		Assertions.assertTrue(other.isTraceEnabled());
+		
+		lo.cfg.resetLevel("com.acme.sub");
+		Assertions.assertTrue(logger.isDebugEnabled());
+		Assertions.assertFalse(logger.isTraceEnabled());
+		Assertions.assertEquals(Level.DEBUG, lo.cfg.getLevel("com.acme.sub.Test"));
+		
+		lo.cfg.setLevel("com", null);
+		Assertions.assertTrue(logger.isDebugEnabled());
+		Assertions.assertFalse(other.isErrorEnabled());
+	}
+
+	@Test
+	public void testConfigurationSwap() {
+		var lo = new LogOutput("date-time", "thread-name");
+		var logger = lo.logger("TEST");
+		logger.info("Before");
+		lo.cfg.update(bldr -> {
+			bldr.layout.remove("short-name");
+			bldr.width = 40;
+		});
+		logger.info("After");
+		
+		var lines = lo.bufferText().split("\n");
+		Assertions.assertEquals(2, lines.length);
+		Assertions.assertTrue(lines[0].contains("TEST") && lines[0].contains("Before"), lines[0]);
+		Assertions.assertFalse(lines[1].contains("TEST"), lines[1]);
+		Assertions.assertTrue(lines[1].contains("After"), lines[1]);
+		Assertions.assertTrue(lines[1].length() < lines[0].length(), lines[1]);
+	}
+
+	@Test
+	public void testMdc() {
+		var lo = new LogOutput("date-time", "thread-name", "short-name");
+		lo.cfg.update(bldr -> bldr.layout.add("mdc"));
+		var logger = lo.logger("TEST");
+		var mdc = new TtyMDCAdapter();
+		try {
+			mdc.put("request", "r1");
+			mdc.put("user", "joe");
+			mdc.put("request", "r2");
+			logger.info("With MDC");
+			mdc.remove("request");
+			Assertions.assertEquals("joe", mdc.get("user"));
+			Assertions.assertNull(mdc.get("request"));
+			
+			lo.cfg.update(bldr -> bldr.mdcKeys.add("request"));
+			logger.info("Selected keys");
+		}
+		finally {
+			mdc.clear();
+		}
+		Assertions.assertNull(mdc.getCopyOfContextMap());
+		
+		/* The usual save and restore, when the saved context was empty */
+		var saved = mdc.getCopyOfContextMap();
+		mdc.put("user", "joe");
+		mdc.setContextMap(saved);
+		Assertions.assertNull(mdc.get("user"));
+		Assertions.assertNull(mdc.getCopyOfContextMap());
+		
+		var lines = lo.bufferText().split("\n");
+		Assertions.assertTrue(lines[0].contains("request=r2 user=joe"), lines[0]);
+		Assertions.assertFalse(lines[1].contains("user="), lines[1]);
+	}
+
+	@Test
+	public void testKeyValues() {
+		var lo = new LogOutput("date-time", "thread-name", "short-name");
+		lo.cfg.update(bldr -> {
+			bldr.layout.add("kv");
+			bldr.kvStyles.put("count", "#${value}");
+		});
+		lo.logger("TEST").atInfo().addKeyValue("user", "joe").addKeyValue("count", 3).log("With KV");
+		new JsonLogger("TEST", lo.cfg).atWarn().addKeyValue("user", "joe").addKeyValue("count", 3).addKeyValue("ok", true).log("With KV");
+		
+		var lines = lo.bufferText().split("\n");
+		Assertions.assertTrue(lines[0].contains("user" + ESC + "[22m=" + ESC + "[1mjoe"), lines[0]);
+		Assertions.assertTrue(lines[0].contains("count" + ESC + "[22m=#3"), lines[0]);
+		Assertions.assertTrue(lines[1].contains("\"kv\":{\"user\":\"joe\",\"count\":3,\"ok\":true}"), lines[1]);
+	}
+
+	@Test
+	public void testFluentApi() {
+		var lo = new LogOutput("date-time", "thread-name", "short-name");
+		var logger = lo.logger("TEST");
+		for(int i = 0 ; i < 2 ; i++) {
+			logger.atInfo().setMessage("Fluent {} {}").addArgument(1).addArgument(() -> "two").log();
+		}
+		logger.atInfo().log("Outer {}", nested(logger));
+		logger.atWarn().log("Failed {}", "badly", new IllegalStateException("Oops"));
+		logger.atDebug().log("Not enabled");
+		
+		var lines = lo.bufferText().split("\n");
+		Assertions.assertTrue(lines[0].contains("Fluent " + ESC + "[1m1" + ESC + "[22m " + ESC + "[1mtwo"), lines[0]);
+		Assertions.assertEquals(lines[0], lines[1]);
+		Assertions.assertTrue(lines[2].contains("Inner"), lines[2]);
+		Assertions.assertTrue(lines[3].contains("Outer " + ESC + "[1mnested"), lines[3]);
+		Assertions.assertTrue(lines[4].contains("Failed " + ESC + "[1mbadly"), lines[4]);
+		Assertions.assertTrue(lines[5].contains("Oops"), lines[5]);
+		Assertions.assertTrue(lines[6].contains("at "), lines[6]);
+		Assertions.assertFalse(lo.bufferText().contains("Not enabled"));
+	}
+	
+	private static String nested(TtyLogger logger) {
+		logger.atInfo().log("Inner");
+		return "nested";
+	}
+
+	@Test
+	public void testCallerLocation() {
+		var lo = new LogOutput("date-time", "thread-name", "short-name");
+		lo.cfg.update(bldr -> {
+			bldr.layout.addAll(Arrays.asList("caller-class", "caller-method", "caller-file", "caller-line"));
+			bldr.fieldWidth.put("caller-class", 40);
+			bldr.fieldWidth.put("caller-method", 20);
+		});
+		var logger = lo.logger("TEST");
+		var line = new Throwable().getStackTrace()[0].getLineNumber() + 1;
+		logger.info("Classic");
+		logger.atInfo().log("Fluent");
+		new JsonLogger("TEST", lo.cfg).info("JSON");
+
+		var lines = lo.bufferText().split("\n");
+		for(int i = 0 ; i < 2 ; i++) {
+			Assertions.assertTrue(lines[i].contains(TtyLoggerTest.class.getName()), lines[i]);
+			Assertions.assertTrue(lines[i].contains("testCallerLocation"), lines[i]);
+			Assertions.assertTrue(lines[i].contains("TtyLoggerTest.java"), lines[i]);
+			Assertions.assertTrue(lines[i].contains(String.valueOf(line + i)), lines[i]);
+		}
+		Assertions.assertTrue(lines[2].contains("\"caller-method\":\"testCallerLocation\""), lines[2]);
+		Assertions.assertTrue(lines[2].contains("\"caller-line\":" + (line + 2)), lines[2]);
+	}
+
+	@Test
+	public void testCallerOverloads() {
+		var lo = new LogOutput("date-time", "thread-name", "short-name");
+		lo.cfg.update(bldr -> {
+			bldr.format = Format.PLAIN;
+			bldr.layout.add("caller-line");
+		});
+		var logger = lo.logger("TEST");
+		/* Log from the same bytecode index of two methods with the same name */
+		Overloads.log(logger, "a");
+		Overloads.log(logger, 1);
+
+		var lines = lo.bufferText().split("\n");
+		Assertions.assertTrue(lines[0].contains("String"), lines[0]);
+		Assertions.assertTrue(lines[1].contains("Integer"), lines[1]);
+		var first = Integer.parseInt(lines[0].substring(lines[0].lastIndexOf(' ', lines[0].stripTrailing().length() - 1)).trim());
+		var second = Integer.parseInt(lines[1].substring(lines[1].lastIndexOf(' ', lines[1].stripTrailing().length() - 1)).trim());
+		Assertions.assertEquals(first + 4, second);
+	}
+
+	private final static class Overloads {
+		static void log(TtyLogger logger, String arg) {
+			logger.info("String");
+		}
+
+		static void log(TtyLogger logger, int arg) {
+			logger.info("Integer");
+		}
+	}
+
+	@Test
+	public void testMarkerRules() {
+		var lo = new LogOutput("date-time", "thread-name", "short-name");
+		lo.cfg.update(bldr -> {
+			bldr.layout.add("markers");
+			bldr.markerRules.addAll(Arrays.asList("AUDIT:DEBUG", "NOISY:DENY", "SECURITY:ACCEPT"));
+		});
+		var markers = new BasicMarkerFactory();
+		var audit = markers.getMarker("AUDIT");
+		var noisy = markers.getMarker("NOISY");
+		var poller = markers.getMarker("POLLER");
+		poller.add(noisy);
+		var logger = lo.logger("TEST");
+
+		Assertions.assertFalse(logger.isDebugEnabled());
+		Assertions.assertTrue(logger.isDebugEnabled(audit));
+		Assertions.assertFalse(logger.isErrorEnabled(poller));
+
+		logger.debug(audit, "Audit debug");
+		logger.debug("Plain debug");
+		logger.info(noisy, "Noisy info");
+		logger.error(poller, "Poller error");
+		logger.atInfo().addMarker(audit).addMarker(noisy).log("Audit and noisy");
+		logger.atWarn().addMarker(noisy).log("Fluent noisy");
+		logger.atInfo().addMarker(markers.getMarker("OTHER")).addMarker(markers.getMarker("SECURITY")).log("Two markers");
+
+		var lines = lo.bufferText().split("\n");
+		Assertions.assertEquals(3, lines.length, lo.bufferText());
+		Assertions.assertTrue(lines[0].contains("Audit debug") && lines[0].contains("AUDIT"), lines[0]);
+		Assertions.assertTrue(lines[1].contains("Audit and noisy") && lines[1].contains("AUDIT,NOISY"), lines[1]);
+		Assertions.assertTrue(lines[2].contains("Two markers") && lines[2].contains("OTHER,SECURITY"), lines[2]);
+	}
+
+	@Test
+	public void testSinks() {
+		var lo = new LogOutput("date-time", "thread-name", "short-name");
+		var json = new ByteArrayOutputStream();
+		var warnings = new ByteArrayOutputStream();
+		var plain = new ByteArrayOutputStream();
+		lo.cfg.update(bldr -> {
+			bldr.sinks.put("json", new Sink("json", Format.JSON, AbstractLogger.LOG_LEVEL_INFO, 0, false, OutputChoiceType.FILE, "", new OutputChoice(new PrintStream(json)), null, 0));
+			bldr.sinks.put("warnings", new Sink("warnings", Format.JSON, AbstractLogger.LOG_LEVEL_WARN, 0, false, OutputChoiceType.FILE, "", new OutputChoice(new PrintStream(warnings)), null, 0));
+			bldr.sinks.put("plain", new Sink("plain", Format.PLAIN, AbstractLogger.LOG_LEVEL_TRACE, 60, false, OutputChoiceType.FILE, "", new OutputChoice(new PrintStream(plain)), null, 0));
+		});
+		var evaluated = new AtomicInteger();
+		Supplier<Object> supplier = () -> "lazy" + evaluated.incrementAndGet();
+		var logger = lo.logger("TEST");
+		logger.info("Info {}", supplier);
+		logger.warn("Warning");
+
+		Assertions.assertEquals(1, evaluated.get());
+		Assertions.assertEquals(2, lo.bufferText().split("\n").length);
+		Assertions.assertTrue(lo.bufferText().contains(ESC + "[1mlazy1"), lo.bufferText());
+
+		var jsonLines = json.toString().split("\n");
+		Assertions.assertEquals(2, jsonLines.length);
+		Assertions.assertTrue(jsonLines[0].contains("\"message\":\"Info lazy1\""), jsonLines[0]);
+		Assertions.assertEquals(jsonLines[1] + "\n", warnings.toString());
+
+		var plainLines = plain.toString().split("\n");
+		Assertions.assertEquals(2, plainLines.length);
+		for(var line : plainLines) {
+			Assertions.assertFalse(line.contains(ESC), line);
+			Assertions.assertTrue(line.length() < 70, line);
+		}
+		Assertions.assertTrue(plainLines[0].contains("Info lazy1"), plainLines[0]);
+	}
+
+	@Test
+	public void testSinkRoutes() {
+		var lo = new LogOutput("date-time", "thread-name", "short-name");
+		var audit = new ByteArrayOutputStream();
+		var sql = new ByteArrayOutputStream();
+		lo.cfg.update(bldr -> {
+			bldr.sinks.put("audit", new Sink("audit", Format.JSON, AbstractLogger.LOG_LEVEL_TRACE, 0, true, OutputChoiceType.FILE, "", new OutputChoice(new PrintStream(audit)), null, 0));
+			bldr.sinks.put("sql", new Sink("sql", Format.PLAIN, AbstractLogger.LOG_LEVEL_TRACE, 80, false, OutputChoiceType.FILE, "", new OutputChoice(new PrintStream(sql)), null, 0));
+		});
+		var auditLogger = lo.logger("com.acme.audit.Login");
+		lo.cfg.loggerTrie.routes(Map.of("com.acme.audit", new String[] { "audit" }, "org.hibernate.SQL", new String[] { "sql", "default" }));
+		var sqlLogger = lo.logger("org.hibernate.SQL");
+		var other = lo.logger("com.acme.Other");
+
+		auditLogger.info("Audit");
+		sqlLogger.info("Select");
+		other.info("Other");
+
+		Assertions.assertEquals(1, audit.toString().split("\n").length);
+		Assertions.assertTrue(audit.toString().contains("\"message\":\"Audit\""), audit.toString());
+		Assertions.assertEquals(2, sql.toString().split("\n").length);
+		Assertions.assertFalse(lo.bufferText().contains("Audit"), lo.bufferText());
+		Assertions.assertEquals(2, lo.bufferText().split("\n").length);
+
+		/* Routes are resolved again against the new sinks */
+		var audit2 = new ByteArrayOutputStream();
+		lo.cfg.update(bldr -> {
+			bldr.sinks.put("audit", new Sink("audit", Format.PLAIN, AbstractLogger.LOG_LEVEL_TRACE, 0, true, OutputChoiceType.FILE, "", new OutputChoice(new PrintStream(audit2)), null, 0));
+		});
+		auditLogger.info("Audit 2");
+		Assertions.assertTrue(audit2.toString().contains("Audit 2"), audit2.toString());
+		Assertions.assertEquals(1, audit.toString().split("\n").length);
+	}
+
+	@Test
+	public void testRecordAndReplay() throws Exception {
+		var file = Files.createTempFile("slf4j-tty", ".rec");
+		try {
+			var lo = new LogOutput("date-time", "short-name");
+			lo.cfg.update(bldr -> {
+				bldr.layout.addAll(Arrays.asList("markers", "mdc", "kv"));
+				bldr.recordFile = file.toString();
+			});
+			var logger = lo.logger("com.acme.Recorded");
+			var mdc = new TtyMDCAdapter();
+			try {
+				mdc.put("request", "r1");
+				logger.info("User {} port {} load {} secure {} in {}", "joe", 22, 1.5d, true, List.of(1, 2));
+				logger.info(new BasicMarkerFactory().getMarker("AUDIT"), "Audited");
+				logger.atWarn().addKeyValue("count", 3L).log("Failed {}", (Supplier<Object>) () -> "lazily",
+						new IllegalStateException("Oops", new IOException("Cause")));
+				logger.debug("Not enabled");
+			}
+			finally {
+				mdc.clear();
+			}
+			lo.cfg.update(bldr -> bldr.recordFile = "");
+			
+			var events = Replay.read(file.toString());
+			Assertions.assertEquals(3, events.size());
+			var first = events.get(0);
+			Assertions.assertEquals(Level.INFO, first.level());
+			Assertions.assertEquals("com.acme.Recorded", first.logger());
+			Assertions.assertEquals(Thread.currentThread().getName(), first.thread());
+			Assertions.assertArrayEquals(new Object[] { "joe", 22, 1.5d, true, "[1, 2]" }, first.arguments());
+			Assertions.assertEquals("r1", first.mdc().get("request"));
+			Assertions.assertEquals("AUDIT", events.get(1).markers().get(0).getName());
+			var third = events.get(2);
+			Assertions.assertArrayEquals(new Object[] { "lazily" }, third.arguments());
+			Assertions.assertArrayEquals(new Object[] { 3L }, third.values());
+			Assertions.assertEquals("java.lang.IllegalStateException", ((EventDecoder.Recorded)third.throwable()).className());
+			Assertions.assertEquals("Cause", third.throwable().getCause().getMessage());
+			Assertions.assertTrue(third.nanos() >= first.nanos());
+			
+			var replayed = new LogOutput("date-time", "short-name");
+			replayed.cfg.update(bldr -> bldr.layout.addAll(Arrays.asList("markers", "mdc", "kv")));
+			var latency = new LatencyHistogram();
+			Replay.replay(new TtyLoggerFactory(replayed.cfg), events, 0, latency);
+			Assertions.assertEquals(3, latency.count());
+			Assertions.assertEquals(lo.bufferText(), replayed.bufferText());
+		}
+		finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testBinaryFormat() throws Exception {
+		var text = new LogOutput("date-time", "short-name");
+		var binary = new LogOutput("date-time", "short-name");
+		binary.cfg.update(bldr -> bldr.format = Format.BINARY);
+		var mdc = new TtyMDCAdapter();
+		try {
+			mdc.put("request", "r1");
+			for(var lo : List.of(text, binary)) {
+				lo.cfg.update(bldr -> bldr.layout.addAll(Arrays.asList("thread-id", "markers", "mdc", "kv")));
+				var logger = lo.logger("com.acme.Binary");
+				logger.info("User {} port {} load {} secure {}", "joe", 22, 1.5d, true);
+				logger.info(new BasicMarkerFactory().getMarker("AUDIT"), "Audited");
+				logger.atWarn().addKeyValue("count", 3L).log("Failed {}", (Supplier<Object>) () -> "lazily",
+						new IllegalStateException("Oops", new IOException("Cause")));
+				logger.debug("Not enabled");
+			}
+		}
+		finally {
+			mdc.clear();
+		}
+
+		Assertions.assertFalse(binary.bufferText().contains("joe port"));
+		Assertions.assertEquals(binary.buf.size(), binary.cfg.metrics.getBytesWritten().get(Route.DEFAULT));
+		Assertions.assertEquals(0, binary.cfg.metrics.getCharactersWritten().get(Route.DEFAULT));
+		var decoded = new StringWriter();
+		Assertions.assertEquals(3, Decode.decode(text.cfg, new ByteArrayInputStream(binary.buf.toByteArray()), Format.ANSI, 132, decoded));
+		Assertions.assertEquals(text.bufferText(), decoded.toString());
+
+		var json = new StringWriter();
+		Decode.decode(text.cfg, new ByteArrayInputStream(binary.buf.toByteArray()), Format.JSON, 0, json);
+		var first = json.toString().split(System.lineSeparator())[0];
+		Assertions.assertTrue(first.contains("\"message\":\"User joe port 22 load 1.5 secure true\""), first);
+		Assertions.assertTrue(first.contains("\"request\":\"r1\""), first);
+	}
+
+	@Test
+	public void testJsonView() throws Exception {
+		var text = new LogOutput("date-time");
+		var json = new LogOutput("date-time");
+		var mdc = new TtyMDCAdapter();
+		try {
+			mdc.put("request", "r1");
+			for(var lo : List.of(text, json)) {
+				lo.cfg.update(bldr -> bldr.layout.addAll(Arrays.asList("name", "thread-id", "markers", "mdc", "kv")));
+				var logger = lo == text ? lo.logger("com.acme.View") : new JsonLogger("com.acme.View", lo.cfg);
+				logger.info("User {} port {} load {} secure {}", "joe", 22, 1.5d, true);
+				logger.info(new BasicMarkerFactory().getMarker("AUDIT"), "Audited \"quoted\"");
+				logger.atWarn().addKeyValue("count", 3L).log("Failed {}", "badly");
+			}
+		}
+		finally {
+			mdc.clear();
+		}
+
+		var gzipped = new ByteArrayOutputStream();
+		try(var out = new GZIPOutputStream(gzipped)) {
+			out.write(("not json" + System.lineSeparator()).getBytes());
+			out.write(json.buf.toByteArray());
+		}
+
+		var all = new StringWriter();
+		new JsonView(text.cfg, Format.ANSI, 132, null, new String[0], null, null, 2).render(new ByteArrayInputStream(gzipped.toByteArray()), all);
+		Assertions.assertEquals("not json" + System.lineSeparator() + text.bufferText(), all.toString());
+
+		var warnings = new StringWriter();
+		new JsonView(text.cfg, Format.ANSI, 132, Level.WARN, new String[0], null, null, 2).render(new ByteArrayInputStream(gzipped.toByteArray()), warnings);
+		Assertions.assertEquals(text.bufferText().split("\n")[2] + "\n", warnings.toString());
+
+		var other = new StringWriter();
+		new JsonView(text.cfg, Format.ANSI, 132, null, new String[] { "com.acme.Vie" }, null, null, 2).render(new ByteArrayInputStream(json.buf.toByteArray()), other);
+		Assertions.assertEquals("", other.toString());
+	}
+
+	@Test
+	public void testTimeIndex() throws Exception {
+		var dir = Files.createTempDirectory("slf4j-tty");
+		var log = dir.resolve("test.log");
+		var idx = dir.resolve("test.log" + TimeIndex.EXTENSION);
+		try {
+			var lo = new LogOutput("date-time", "thread-name");
+			lo.cfg.update(bldr -> {
+				bldr.format = Format.PLAIN;
+				bldr.outputChoice = null;
+				bldr.outputType = OutputChoiceType.FILE;
+				bldr.logFile = log.toString();
+				bldr.indexEvents = 10;
+			});
+			var logger = lo.logger("TEST");
+			for(int i = 0 ; i < 30; i++) {
+				logger.info("A {}", i);
+			}
+			Thread.sleep(20);
+			var from = System.currentTimeMillis();
+			for(int i = 0 ; i < 30; i++) {
+				logger.info("B {}", i);
+			}
+			Thread.sleep(20);
+			var to = System.currentTimeMillis() - 1;
+			for(int i = 0 ; i < 30; i++) {
+				logger.info("C {}", i);
+			}
+			lo.cfg.update(bldr -> bldr.outputChoice = new OutputChoice(new PrintStream(lo.buf)));
+			Assertions.assertEquals(TimeIndex.ENTRY_SIZE * 10, Files.size(idx));
+
+			/* A partial entry from a crash is ignored */
+			Files.write(idx, new byte[5], java.nio.file.StandardOpenOption.APPEND);
+
+			String text;
+			try(var in = TimeIndex.open(log.toString(), from, to)) {
+				text = new String(in.readAllBytes());
+			}
+			var lines = text.split("\n");
+			Assertions.assertEquals(40, lines.length);
+			Assertions.assertTrue(lines[0].contains("A 20"), lines[0]);
+			Assertions.assertTrue(lines[10].contains("B 0"), lines[10]);
+			Assertions.assertTrue(lines[39].contains("B 29"), lines[39]);
+
+			var all = TimeIndex.range(log.toString(), Long.MIN_VALUE, Long.MAX_VALUE);
+			Assertions.assertEquals(new TimeIndex.Range(0, Files.size(log)), all);
+		}
+		finally {
+			Files.deleteIfExists(log);
+			Files.deleteIfExists(idx);
+			Files.delete(dir);
+		}
+	}
+
+	@Test
+	public void testBinaryNotIndexed() throws Exception {
+		var dir = Files.createTempDirectory("slf4j-tty");
+		var log = dir.resolve("test.bin");
+		var idx = dir.resolve("test.bin" + TimeIndex.EXTENSION);
+		try {
+			var lo = new LogOutput();
+			lo.cfg.update(bldr -> {
+				bldr.format = Format.BINARY;
+				bldr.outputChoice = null;
+				bldr.outputType = OutputChoiceType.FILE;
+				bldr.logFile = log.toString();
+				bldr.indexEvents = 10;
+			});
+			var logger = lo.logger("TEST");
+			for(int i = 0 ; i < 30; i++) {
+				logger.info("A {}", i);
+			}
+			lo.cfg.update(bldr -> bldr.outputChoice = new OutputChoice(new PrintStream(lo.buf)));
+			Assertions.assertTrue(Files.size(log) > 0);
+			Assertions.assertFalse(Files.exists(idx));
+		}
+		finally {
+			Files.deleteIfExists(log);
+			Files.deleteIfExists(idx);
+			Files.delete(dir);
+		}
+	}
+
+	@Test
+	public void testLazyArguments() {
+		var lo = new LogOutput("date-time", "thread-name", "short-name");
+		var logger = lo.logger("TEST");
+		var evaluated = new AtomicInteger();
+		Supplier<Object> supplier = () -> "lazy" + evaluated.incrementAndGet();
+
+		logger.atDebug().setMessage("Disabled {}").addArgument(supplier).log();
+		Assertions.assertEquals(0, evaluated.get());
+
+		logger.info("Full {} {}", "x".repeat(200), supplier);
+		Assertions.assertEquals(0, evaluated.get());
+
+		logger.atInfo().setMessage("Enabled {} {}").addArgument(supplier).addArgument((LazyArgument)b -> b.append("appended")).log();
+		Assertions.assertEquals(1, evaluated.get());
+
+		var lines = lo.bufferText().split("\n");
+		Assertions.assertEquals(2, lines.length);
+		Assertions.assertTrue(lines[1].contains("Enabled " + ESC + "[1mlazy1" + ESC + "[22m " + ESC + "[1mappended"), lines[1]);
+	}
+
+	@Test
+	public void testFluentBuilderReuse() {
+		var lo = new LogOutput("date-time", "thread-name", "short-name");
+		var logger = lo.logger("TEST");
+
+		/* An abandoned builder is replaced once, then the replacement is re-used */
+		logger.atInfo().setMessage("Abandoned");
+		var first = logger.atInfo();
+		first.log("First");
+		var second = logger.atInfo();
+		Assertions.assertSame(first, second);
+		second.log("Second");
+
+		/* One fluent call in the middle of another */
+		var outer = logger.atInfo();
+		var inner = logger.atInfo();
+		Assertions.assertNotSame(outer, inner);
+		inner.log("Inner");
+		outer.log("Outer");
+
+		/* As used by virtual threads, returned to the pool once logged */
+		var pooled = LoggingContext.borrowBuilder();
+		pooled.start(logger, Level.INFO).log("Pooled");
+		var again = LoggingContext.borrowBuilder();
+		Assertions.assertSame(pooled, again);
+		again.start(logger, Level.INFO).log("Pooled again");
+
+		var lines = lo.bufferText().split("\n");
+		Assertions.assertEquals(6, lines.length);
+		Assertions.assertFalse(lo.bufferText().contains("Abandoned"));
+		Assertions.assertTrue(lines[2].contains("Inner"), lines[2]);
+		Assertions.assertTrue(lines[3].contains("Outer"), lines[3]);
+	}
+
+	@Test
+	public void testRingBuffer() {
+		var lo = new LogOutput("date-time", "thread-name", "short-name");
+		lo.cfg.update(bldr -> {
+			bldr.format = Format.PLAIN;
+			bldr.layout.add("kv");
+			bldr.ringSize = 4;
+		});
+		var logger = lo.logger("TEST");
+
+		Assertions.assertTrue(logger.isDebugEnabled());
+		Assertions.assertFalse(logger.isTraceEnabled());
+
+		for(int i = 0 ; i < 6; i++) {
+			logger.debug("Debug {}", i);
+		}
+		logger.trace("Not kept");
+		logger.info("Info");
+		Assertions.assertEquals(1, lo.bufferText().split("\n").length);
+
+		logger.error("Failed");
+		var lines = lo.bufferText().split("\n");
+		Assertions.assertEquals(7, lines.length);
+		Assertions.assertTrue(lines[1].contains("The last 4 events below the output level follow"), lines[1]);
+		for(int i = 0 ; i < 4; i++) {
+			Assertions.assertTrue(lines[2 + i].contains("DEBUG") && lines[2 + i].contains("Debug " + (i + 2)), lines[2 + i]);
+		}
+		Assertions.assertTrue(lines[6].contains("Failed"), lines[6]);
+
+		/* Each event is only output once */
+		logger.error("Failed again");
+		Assertions.assertEquals(8, lo.bufferText().split("\n").length);
+
+		logger.atDebug().setMessage("Fluent {}").addArgument("arg").addKeyValue("key", "value").log();
+		lo.cfg.outputRing();
+		lines = lo.bufferText().split("\n");
+		Assertions.assertEquals(10, lines.length);
+		Assertions.assertTrue(lines[8].contains("The last 1 events below the output level follow"), lines[8]);
+		Assertions.assertTrue(lines[9].contains("Fluent arg"), lines[9]);
+		Assertions.assertTrue(lines[9].contains("value"), lines[9]);
+
+		/* The level kept reaches loggers with their own level, and is withdrawn with the ring */
+		lo.cfg.setLevel("com.acme", Level.WARN);
+		var child = lo.logger("com.acme.Child");
+		Assertions.assertTrue(child.isDebugEnabled());
+		Assertions.assertFalse(child.isTraceEnabled());
+		lo.cfg.update(bldr -> bldr.ringSize = 0);
+		Assertions.assertFalse(logger.isDebugEnabled());
+		Assertions.assertFalse(child.isDebugEnabled());
+		Assertions.assertFalse(child.isInfoEnabled());
+		Assertions.assertTrue(child.isWarnEnabled());
+	}
+
+	@Test
+	public void testRingBufferThread() throws Exception {
+		var lo = new LogOutput("date-time", "short-name");
+		lo.cfg.update(bldr -> {
+			bldr.format = Format.PLAIN;
+			bldr.layout.add("thread-id");
+			bldr.ringSize = 4;
+		});
+		var logger = lo.logger("TEST");
+		var worker = new Thread(() -> logger.debug("Kept"), "ring-worker");
+		worker.start();
+		worker.join();
+
+		lo.cfg.outputRing();
+		var lines = lo.bufferText().split("\n");
+		Assertions.assertEquals(2, lines.length);
+		Assertions.assertTrue(lines[1].contains("ring-worker"), lines[1]);
+		Assertions.assertTrue(lines[1].contains("(" + worker.getId() + " "), lines[1]);
+	}
+
     @Test
     public void evaluateExpressionWithRecursiveReplacements() {
     	StyleExpression underTest = new StyleExpression();